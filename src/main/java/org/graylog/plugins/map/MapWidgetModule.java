@@ -18,6 +18,7 @@ package org.graylog.plugins.map;
 
 import org.graylog.plugins.map.geoip.MaxmindDataAdapter;
 import org.graylog.plugins.map.geoip.processor.GeoIpProcessor;
+import org.graylog.plugins.map.rest.GeoIpDiagnosticsResource;
 import org.graylog.plugins.map.rest.MapDataResource;
 import org.graylog.plugins.map.widget.strategy.MapWidgetStrategy;
 import org.graylog2.plugin.PluginModule;
@@ -28,6 +29,7 @@ public class MapWidgetModule extends PluginModule {
         addMessageProcessor(GeoIpProcessor.class, GeoIpProcessor.Descriptor.class);
         addWidgetStrategy(MapWidgetStrategy.class, MapWidgetStrategy.Factory.class);
         addRestResource(MapDataResource.class);
+        addRestResource(GeoIpDiagnosticsResource.class);
 
         installLookupDataAdapter(MaxmindDataAdapter.NAME,
                 MaxmindDataAdapter.class,
@@ -17,16 +17,45 @@
 package org.graylog.plugins.map.config;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableSet;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import javax.annotation.Nullable;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 @JsonAutoDetect
 @JsonIgnoreProperties(ignoreUnknown = true)
 @AutoValue
 public abstract class GeoIpResolverConfig {
+    private static final long DEFAULT_CACHE_SIZE = 100_000L;
+    private static final long DEFAULT_NETWORK_CACHE_SIZE = 100_000L;
+    private static final long DEFAULT_NEGATIVE_CACHE_SIZE = 10_000L;
+    private static final long DEFAULT_CACHE_TTL = 1L;
+    private static final TimeUnit DEFAULT_CACHE_TTL_UNIT = TimeUnit.HOURS;
+    private static final int DEFAULT_FIELD_SKIP_THRESHOLD = 1000;
+    private static final int DEFAULT_FIELD_REPROBE_INTERVAL = 1000;
+    private static final ResolverBackend DEFAULT_RESOLVER_BACKEND = ResolverBackend.MAXMIND;
+    private static final int DEFAULT_PARALLEL_BATCH_THRESHOLD = 0;
+    private static final int DEFAULT_PARALLELISM = 0;
+    private static final int DEFAULT_COORDINATE_PRECISION = -1;
+    private static final MetricsMode DEFAULT_METRICS_MODE = MetricsMode.STANDARD;
+    private static final int DEFAULT_TIMING_SAMPLE_INTERVAL = 16;
+    public static final long DEFAULT_NODE_CACHE_MAX_BYTES = 16L * 1024 * 1024;
+    private static final long DEFAULT_CACHE_SNAPSHOT_INTERVAL = 0L;
+    private static final TimeUnit DEFAULT_CACHE_SNAPSHOT_INTERVAL_UNIT = TimeUnit.MINUTES;
+    private static final String DEFAULT_CACHE_SNAPSHOT_DIRECTORY = "";
+    private static final long DEFAULT_CACHE_SNAPSHOT_MAX_ENTRIES = 10_000L;
+    private static final long DEFAULT_READY_TIMEOUT = 0L;
+    private static final TimeUnit DEFAULT_READY_TIMEOUT_UNIT = TimeUnit.SECONDS;
+    private static final long DEFAULT_BATCH_TIME_BUDGET = 0L;
+    private static final TimeUnit DEFAULT_BATCH_TIME_BUDGET_UNIT = TimeUnit.MILLISECONDS;
+    private static final double DEFAULT_MIN_CACHE_HIT_RATE = 0.0;
+    private static final int DEFAULT_DEGRADED_SAMPLE_INTERVAL = 16;
 
     @JsonProperty("enabled")
     public abstract boolean enabled();
@@ -37,14 +66,234 @@ public abstract class GeoIpResolverConfig {
     @JsonProperty("db_path")
     public abstract String dbPath();
 
+    /**
+     * Maximum number of resolved addresses kept in the location cache of the resolver engine. Zero disables the cache.
+     */
+    @JsonProperty("cache_size")
+    public abstract long cacheSize();
+
+    /**
+     * Time after which a cached location gets evicted. Zero keeps entries until they get evicted by size.
+     */
+    @JsonProperty("cache_ttl")
+    public abstract long cacheTtl();
+
+    @JsonProperty("cache_ttl_unit")
+    public abstract TimeUnit cacheTtlUnit();
+
+    /**
+     * Maximum number of database network blocks kept in the network cache of the resolver engine. All addresses of
+     * a network block share the same location, so one entry serves a whole block. Zero disables the cache.
+     */
+    @JsonProperty("network_cache_size")
+    public abstract long networkCacheSize();
+
+    /**
+     * Maximum number of addresses kept in the negative cache of the resolver engine, which remembers addresses the
+     * database doesn't contain. Zero disables the cache.
+     */
+    @JsonProperty("negative_cache_size")
+    public abstract long negativeCacheSize();
+
+    /**
+     * Names of the message fields which get checked for IP addresses. An empty set checks all fields.
+     */
+    @JsonProperty("include_fields")
+    public abstract ImmutableSet<String> includeFields();
+
+    /**
+     * Names of the message fields which never get checked for IP addresses.
+     */
+    @JsonProperty("exclude_fields")
+    public abstract ImmutableSet<String> excludeFields();
+
+    /**
+     * Number of consecutive messages without an IP address in a field after which the field doesn't get checked
+     * anymore. Zero disables skipping fields.
+     */
+    @JsonProperty("field_skip_threshold")
+    public abstract int fieldSkipThreshold();
+
+    /**
+     * Skipped fields still get checked in one out of this many messages to pick up changes of the message schema.
+     */
+    @JsonProperty("field_reprobe_interval")
+    public abstract int fieldReprobeInterval();
+
+    /**
+     * Reader used to get the location of an address from the database. Defaults to the official MaxMind reader, the
+     * built-in decoders have to be enabled explicitly.
+     */
+    @JsonProperty("resolver_backend")
+    public abstract ResolverBackend resolverBackend();
+
+    /**
+     * Message batches with at least this many messages get split up and processed in parallel. Zero processes all
+     * batches on the calling thread.
+     */
+    @JsonProperty("parallel_batch_threshold")
+    public abstract int parallelBatchThreshold();
+
+    /**
+     * Number of threads used to process large batches in parallel. Zero uses one thread per CPU.
+     */
+    @JsonProperty("parallelism")
+    public abstract int parallelism();
+
+    /**
+     * Number of decimal places the coordinates in the geolocation fields get rounded to. Rounded coordinates have
+     * fewer distinct values, which makes aggregating them cheaper. A negative value keeps the full precision.
+     */
+    @JsonProperty("coordinate_precision")
+    public abstract int coordinatePrecision();
+
+    /**
+     * Lengths of the geohash prefixes which get written to additional {@code <field>_geohash_<length>} fields, one
+     * field per length. Maps can aggregate these cells instead of single coordinates. An empty set disables the
+     * geohash fields.
+     */
+    @JsonProperty("geohash_precisions")
+    public abstract ImmutableSet<Integer> geohashPrecisions();
+
+    /**
+     * How the resolver engine records its lookup metrics.
+     */
+    @JsonProperty("metrics_mode")
+    public abstract MetricsMode metricsMode();
+
+    /**
+     * With {@link MetricsMode#LOW_OVERHEAD} metrics, one in this many lookups gets timed.
+     */
+    @JsonProperty("timing_sample_interval")
+    public abstract int timingSampleInterval();
+
+    /**
+     * Memory cap in bytes of the node cache of the MaxMind reader, which keeps decoded database records shared by
+     * many networks. Only used if locations are read with the MaxMind reader. Zero disables the cache.
+     */
+    @JsonProperty("node_cache_max_bytes")
+    public abstract long nodeCacheMaxBytes();
+
+    /**
+     * How often the most used cached locations are written to a snapshot file, which is loaded into the cache on the
+     * next start if it belongs to the same database version. Zero disables snapshots.
+     */
+    @JsonProperty("cache_snapshot_interval")
+    public abstract long cacheSnapshotInterval();
+
+    @JsonProperty("cache_snapshot_interval_unit")
+    public abstract TimeUnit cacheSnapshotIntervalUnit();
+
+    /**
+     * Directory of the location cache snapshots. Empty uses the {@code geoip} directory in the data directory of the
+     * node.
+     */
+    @JsonProperty("cache_snapshot_directory")
+    public abstract String cacheSnapshotDirectory();
+
+    /**
+     * Maximum number of locations in a snapshot. The most recently used locations are written.
+     */
+    @JsonProperty("cache_snapshot_max_entries")
+    public abstract long cacheSnapshotMaxEntries();
+
+    /**
+     * How long message processing waits for the database to be opened after the node has started. Messages which
+     * are processed before the database is ready pass through without being enriched. Zero doesn't wait at all.
+     */
+    @JsonProperty("ready_timeout")
+    public abstract long readyTimeout();
+
+    @JsonProperty("ready_timeout_unit")
+    public abstract TimeUnit readyTimeoutUnit();
+
+    /**
+     * Maximum processing time of a message batch. If a batch takes longer, the following batches only get enriched
+     * from the location cache until no batch has exceeded the budget for a few seconds. Zero disables the budget.
+     */
+    @JsonProperty("batch_time_budget")
+    public abstract long batchTimeBudget();
+
+    @JsonProperty("batch_time_budget_unit")
+    public abstract TimeUnit batchTimeBudgetUnit();
+
+    /**
+     * Lowest acceptable hit rate of the location cache, between 0 and 1. If the hit rate of a batch drops below it,
+     * the following batches only get enriched from the location cache like with an exceeded batch time budget. Zero
+     * disables the check.
+     */
+    @JsonProperty("min_cache_hit_rate")
+    public abstract double minCacheHitRate();
+
+    /**
+     * While only cached addresses get enriched, one in this many uncached addresses still gets resolved to keep
+     * filling the cache. Zero doesn't resolve any uncached addresses.
+     */
+    @JsonProperty("degraded_sample_interval")
+    public abstract int degradedSampleInterval();
+
     @JsonCreator
     public static GeoIpResolverConfig create(@JsonProperty("enabled") boolean enabled,
                                              @JsonProperty("db_type") DatabaseType dbType,
-                                             @JsonProperty("db_path") String dbPath) {
+                                             @JsonProperty("db_path") String dbPath,
+                                             @JsonProperty("cache_size") @Nullable Long cacheSize,
+                                             @JsonProperty("cache_ttl") @Nullable Long cacheTtl,
+                                             @JsonProperty("cache_ttl_unit") @Nullable TimeUnit cacheTtlUnit,
+                                             @JsonProperty("network_cache_size") @Nullable Long networkCacheSize,
+                                             @JsonProperty("negative_cache_size") @Nullable Long negativeCacheSize,
+                                             @JsonProperty("include_fields") @Nullable Set<String> includeFields,
+                                             @JsonProperty("exclude_fields") @Nullable Set<String> excludeFields,
+                                             @JsonProperty("field_skip_threshold") @Nullable Integer fieldSkipThreshold,
+                                             @JsonProperty("field_reprobe_interval") @Nullable Integer fieldReprobeInterval,
+                                             @JsonProperty("resolver_backend") @Nullable ResolverBackend resolverBackend,
+                                             @JsonProperty("parallel_batch_threshold") @Nullable Integer parallelBatchThreshold,
+                                             @JsonProperty("parallelism") @Nullable Integer parallelism,
+                                             @JsonProperty("coordinate_precision") @Nullable Integer coordinatePrecision,
+                                             @JsonProperty("geohash_precisions") @Nullable Set<Integer> geohashPrecisions,
+                                             @JsonProperty("metrics_mode") @Nullable MetricsMode metricsMode,
+                                             @JsonProperty("timing_sample_interval") @Nullable Integer timingSampleInterval,
+                                             @JsonProperty("node_cache_max_bytes") @Nullable Long nodeCacheMaxBytes,
+                                             @JsonProperty("cache_snapshot_interval") @Nullable Long cacheSnapshotInterval,
+                                             @JsonProperty("cache_snapshot_interval_unit") @Nullable TimeUnit cacheSnapshotIntervalUnit,
+                                             @JsonProperty("cache_snapshot_directory") @Nullable String cacheSnapshotDirectory,
+                                             @JsonProperty("cache_snapshot_max_entries") @Nullable Long cacheSnapshotMaxEntries,
+                                             @JsonProperty("ready_timeout") @Nullable Long readyTimeout,
+                                             @JsonProperty("ready_timeout_unit") @Nullable TimeUnit readyTimeoutUnit,
+                                             @JsonProperty("batch_time_budget") @Nullable Long batchTimeBudget,
+                                             @JsonProperty("batch_time_budget_unit") @Nullable TimeUnit batchTimeBudgetUnit,
+                                             @JsonProperty("min_cache_hit_rate") @Nullable Double minCacheHitRate,
+                                             @JsonProperty("degraded_sample_interval") @Nullable Integer degradedSampleInterval) {
         return builder()
                 .enabled(enabled)
                 .dbType(dbType)
                 .dbPath(dbPath)
+                .cacheSize(cacheSize == null ? DEFAULT_CACHE_SIZE : cacheSize)
+                .cacheTtl(cacheTtl == null ? DEFAULT_CACHE_TTL : cacheTtl)
+                .cacheTtlUnit(cacheTtlUnit == null ? DEFAULT_CACHE_TTL_UNIT : cacheTtlUnit)
+                .networkCacheSize(networkCacheSize == null ? DEFAULT_NETWORK_CACHE_SIZE : networkCacheSize)
+                .negativeCacheSize(negativeCacheSize == null ? DEFAULT_NEGATIVE_CACHE_SIZE : negativeCacheSize)
+                .includeFields(includeFields == null ? ImmutableSet.of() : ImmutableSet.copyOf(includeFields))
+                .excludeFields(excludeFields == null ? ImmutableSet.of() : ImmutableSet.copyOf(excludeFields))
+                .fieldSkipThreshold(fieldSkipThreshold == null ? DEFAULT_FIELD_SKIP_THRESHOLD : fieldSkipThreshold)
+                .fieldReprobeInterval(fieldReprobeInterval == null ? DEFAULT_FIELD_REPROBE_INTERVAL : fieldReprobeInterval)
+                .resolverBackend(resolverBackend == null ? DEFAULT_RESOLVER_BACKEND : resolverBackend)
+                .parallelBatchThreshold(parallelBatchThreshold == null ? DEFAULT_PARALLEL_BATCH_THRESHOLD : parallelBatchThreshold)
+                .parallelism(parallelism == null ? DEFAULT_PARALLELISM : parallelism)
+                .coordinatePrecision(coordinatePrecision == null ? DEFAULT_COORDINATE_PRECISION : coordinatePrecision)
+                .geohashPrecisions(geohashPrecisions == null ? ImmutableSet.of() : ImmutableSet.copyOf(geohashPrecisions))
+                .metricsMode(metricsMode == null ? DEFAULT_METRICS_MODE : metricsMode)
+                .timingSampleInterval(timingSampleInterval == null ? DEFAULT_TIMING_SAMPLE_INTERVAL : timingSampleInterval)
+                .nodeCacheMaxBytes(nodeCacheMaxBytes == null ? DEFAULT_NODE_CACHE_MAX_BYTES : nodeCacheMaxBytes)
+                .cacheSnapshotInterval(cacheSnapshotInterval == null ? DEFAULT_CACHE_SNAPSHOT_INTERVAL : cacheSnapshotInterval)
+                .cacheSnapshotIntervalUnit(cacheSnapshotIntervalUnit == null ? DEFAULT_CACHE_SNAPSHOT_INTERVAL_UNIT : cacheSnapshotIntervalUnit)
+                .cacheSnapshotDirectory(cacheSnapshotDirectory == null ? DEFAULT_CACHE_SNAPSHOT_DIRECTORY : cacheSnapshotDirectory)
+                .cacheSnapshotMaxEntries(cacheSnapshotMaxEntries == null ? DEFAULT_CACHE_SNAPSHOT_MAX_ENTRIES : cacheSnapshotMaxEntries)
+                .readyTimeout(readyTimeout == null ? DEFAULT_READY_TIMEOUT : readyTimeout)
+                .readyTimeoutUnit(readyTimeoutUnit == null ? DEFAULT_READY_TIMEOUT_UNIT : readyTimeoutUnit)
+                .batchTimeBudget(batchTimeBudget == null ? DEFAULT_BATCH_TIME_BUDGET : batchTimeBudget)
+                .batchTimeBudgetUnit(batchTimeBudgetUnit == null ? DEFAULT_BATCH_TIME_BUDGET_UNIT : batchTimeBudgetUnit)
+                .minCacheHitRate(minCacheHitRate == null ? DEFAULT_MIN_CACHE_HIT_RATE : minCacheHitRate)
+                .degradedSampleInterval(degradedSampleInterval == null ? DEFAULT_DEGRADED_SAMPLE_INTERVAL : degradedSampleInterval)
                 .build();
     }
 
@@ -53,6 +302,33 @@ public abstract class GeoIpResolverConfig {
                .enabled(false)
                .dbType(DatabaseType.MAXMIND_CITY)
                .dbPath("/etc/graylog/server/GeoLite2-City.mmdb")
+               .cacheSize(DEFAULT_CACHE_SIZE)
+               .cacheTtl(DEFAULT_CACHE_TTL)
+               .cacheTtlUnit(DEFAULT_CACHE_TTL_UNIT)
+               .networkCacheSize(DEFAULT_NETWORK_CACHE_SIZE)
+               .negativeCacheSize(DEFAULT_NEGATIVE_CACHE_SIZE)
+               .includeFields(ImmutableSet.of())
+               .excludeFields(ImmutableSet.of())
+               .fieldSkipThreshold(DEFAULT_FIELD_SKIP_THRESHOLD)
+               .fieldReprobeInterval(DEFAULT_FIELD_REPROBE_INTERVAL)
+               .resolverBackend(DEFAULT_RESOLVER_BACKEND)
+               .parallelBatchThreshold(DEFAULT_PARALLEL_BATCH_THRESHOLD)
+               .parallelism(DEFAULT_PARALLELISM)
+               .coordinatePrecision(DEFAULT_COORDINATE_PRECISION)
+               .geohashPrecisions(ImmutableSet.of())
+               .metricsMode(DEFAULT_METRICS_MODE)
+               .timingSampleInterval(DEFAULT_TIMING_SAMPLE_INTERVAL)
+               .nodeCacheMaxBytes(DEFAULT_NODE_CACHE_MAX_BYTES)
+               .cacheSnapshotInterval(DEFAULT_CACHE_SNAPSHOT_INTERVAL)
+               .cacheSnapshotIntervalUnit(DEFAULT_CACHE_SNAPSHOT_INTERVAL_UNIT)
+               .cacheSnapshotDirectory(DEFAULT_CACHE_SNAPSHOT_DIRECTORY)
+               .cacheSnapshotMaxEntries(DEFAULT_CACHE_SNAPSHOT_MAX_ENTRIES)
+               .readyTimeout(DEFAULT_READY_TIMEOUT)
+               .readyTimeoutUnit(DEFAULT_READY_TIMEOUT_UNIT)
+               .batchTimeBudget(DEFAULT_BATCH_TIME_BUDGET)
+               .batchTimeBudgetUnit(DEFAULT_BATCH_TIME_BUDGET_UNIT)
+               .minCacheHitRate(DEFAULT_MIN_CACHE_HIT_RATE)
+               .degradedSampleInterval(DEFAULT_DEGRADED_SAMPLE_INTERVAL)
                .build();
     }
 
@@ -67,6 +343,33 @@ public abstract class GeoIpResolverConfig {
         public abstract Builder enabled(boolean enabled);
         public abstract Builder dbType(DatabaseType dbType);
         public abstract Builder dbPath(String dbPath);
+        public abstract Builder cacheSize(long cacheSize);
+        public abstract Builder cacheTtl(long cacheTtl);
+        public abstract Builder cacheTtlUnit(TimeUnit cacheTtlUnit);
+        public abstract Builder networkCacheSize(long networkCacheSize);
+        public abstract Builder negativeCacheSize(long negativeCacheSize);
+        public abstract Builder includeFields(Set<String> includeFields);
+        public abstract Builder excludeFields(Set<String> excludeFields);
+        public abstract Builder fieldSkipThreshold(int fieldSkipThreshold);
+        public abstract Builder fieldReprobeInterval(int fieldReprobeInterval);
+        public abstract Builder resolverBackend(ResolverBackend resolverBackend);
+        public abstract Builder parallelBatchThreshold(int parallelBatchThreshold);
+        public abstract Builder parallelism(int parallelism);
+        public abstract Builder coordinatePrecision(int coordinatePrecision);
+        public abstract Builder geohashPrecisions(Set<Integer> geohashPrecisions);
+        public abstract Builder metricsMode(MetricsMode metricsMode);
+        public abstract Builder timingSampleInterval(int timingSampleInterval);
+        public abstract Builder nodeCacheMaxBytes(long nodeCacheMaxBytes);
+        public abstract Builder cacheSnapshotInterval(long cacheSnapshotInterval);
+        public abstract Builder cacheSnapshotIntervalUnit(TimeUnit cacheSnapshotIntervalUnit);
+        public abstract Builder cacheSnapshotDirectory(String cacheSnapshotDirectory);
+        public abstract Builder cacheSnapshotMaxEntries(long cacheSnapshotMaxEntries);
+        public abstract Builder readyTimeout(long readyTimeout);
+        public abstract Builder readyTimeoutUnit(TimeUnit readyTimeoutUnit);
+        public abstract Builder batchTimeBudget(long batchTimeBudget);
+        public abstract Builder batchTimeBudgetUnit(TimeUnit batchTimeBudgetUnit);
+        public abstract Builder minCacheHitRate(double minCacheHitRate);
+        public abstract Builder degradedSampleInterval(int degradedSampleInterval);
 
         public abstract GeoIpResolverConfig build();
     }
@@ -0,0 +1,32 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.config;
+
+/**
+ * How the resolver engine records its lookup metrics.
+ */
+public enum MetricsMode {
+    /**
+     * Times every lookup with a regular Codahale timer.
+     */
+    STANDARD,
+    /**
+     * Counts every lookup but only times a sample of them, and records the timings in a histogram without locks.
+     * Meant for nodes with many processing threads, where the shared timer becomes a point of contention.
+     */
+    LOW_OVERHEAD
+}
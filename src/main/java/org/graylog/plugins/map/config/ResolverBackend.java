@@ -0,0 +1,36 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.config;
+
+/**
+ * How the resolver engine reads the location of an address from the database.
+ */
+public enum ResolverBackend {
+    /**
+     * Official MaxMind reader, deserializes complete database records.
+     */
+    MAXMIND,
+    /**
+     * Built-in decoder which only reads the location values of a record. Requires a City database.
+     */
+    MMDB,
+    /**
+     * Sorted range index of all IPv4 networks of the database, compiled once and persisted next to the database file.
+     * IPv6 addresses are read with the built-in decoder. Requires a City database.
+     */
+    RANGE_INDEX
+}
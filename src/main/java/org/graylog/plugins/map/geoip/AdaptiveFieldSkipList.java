@@ -0,0 +1,126 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSortedSet;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Learns which message fields don't contain IP addresses so they don't have to be checked for every message.
+ * <p>
+ * A field gets skipped once its value hasn't been an IP address for a number of consecutive checks. Skipped fields
+ * still get checked for a small random sample of messages, a single IP address found in them brings them back.
+ */
+public class AdaptiveFieldSkipList {
+    // Upper bound for the number of tracked fields, messages with random field names must not fill up the heap
+    private static final int MAX_TRACKED_FIELDS = 10_000;
+
+    private final int failureThreshold;
+    private final int reprobeInterval;
+    private final Map<String, AtomicInteger> consecutiveFailures = new ConcurrentHashMap<>();
+    private final Meter skippedChecks;
+
+    /**
+     * @param failureThreshold number of consecutive checks without an IP address after which a field gets skipped
+     * @param reprobeInterval  skipped fields get checked again with a probability of 1 / {@code reprobeInterval},
+     *                         zero to never check them again
+     * @param metricRegistry   registry for the skip metrics
+     */
+    public AdaptiveFieldSkipList(int failureThreshold, int reprobeInterval, MetricRegistry metricRegistry) {
+        this.failureThreshold = failureThreshold;
+        this.reprobeInterval = reprobeInterval;
+        this.skippedChecks = metricRegistry.meter(name(GeoIpResolverEngine.class, "skippedFieldChecks"));
+
+        // Replace the gauges of a previous engine, they would keep reporting its state otherwise
+        final String skippedFieldsName = name(GeoIpResolverEngine.class, "skippedFields");
+        final String skippedFieldCountName = name(GeoIpResolverEngine.class, "skippedFieldCount");
+        metricRegistry.remove(skippedFieldsName);
+        metricRegistry.remove(skippedFieldCountName);
+        metricRegistry.register(skippedFieldsName, (Gauge<Set<String>>) this::skippedFields);
+        metricRegistry.register(skippedFieldCountName, (Gauge<Integer>) () -> skippedFields().size());
+    }
+
+    /**
+     * Returns whether the given field should be checked for an IP address.
+     */
+    public boolean shouldCheck(String field) {
+        final AtomicInteger failures = consecutiveFailures.get(field);
+        if (failures == null || failures.get() < failureThreshold) {
+            return true;
+        }
+
+        if (reprobeInterval > 0 && ThreadLocalRandom.current().nextInt(reprobeInterval) == 0) {
+            return true;
+        }
+
+        skippedChecks.mark();
+        return false;
+    }
+
+    /**
+     * Records that the given field contained an IP address.
+     */
+    public void recordHit(String field) {
+        final AtomicInteger failures = consecutiveFailures.get(field);
+        // Avoid writes to the shared counter for fields which always contain IP addresses
+        if (failures != null && failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    /**
+     * Records that the given field didn't contain an IP address.
+     */
+    public void recordMiss(String field) {
+        AtomicInteger failures = consecutiveFailures.get(field);
+        if (failures == null) {
+            if (consecutiveFailures.size() >= MAX_TRACKED_FIELDS) {
+                return;
+            }
+            failures = consecutiveFailures.computeIfAbsent(field, key -> new AtomicInteger());
+        }
+
+        // Stop counting once the field is skipped, there is nothing to learn from it anymore
+        if (failures.get() < failureThreshold) {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the names of all fields which are currently skipped.
+     */
+    public Set<String> skippedFields() {
+        final ImmutableSortedSet.Builder<String> skippedFields = ImmutableSortedSet.naturalOrder();
+        consecutiveFailures.forEach((field, failures) -> {
+            if (failures.get() >= failureThreshold) {
+                skippedFields.add(field);
+            }
+        });
+
+        return skippedFields.build();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.maxmind.db.NodeCache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Node cache for the MaxMind reader which is bounded by the estimated memory of the cached nodes.
+ * <p>
+ * Many networks point to the same data section nodes, like the records of countries and continents, so caching
+ * decoded nodes saves decoding them on every lookup. Unlike the {@link com.maxmind.db.CHMCache} of the MaxMind
+ * reader, which stops caching once it holds a fixed number of nodes, this cache evicts the least recently used
+ * nodes when it reaches its memory cap.
+ */
+public class BoundedNodeCache implements NodeCache {
+    // Rough heap sizes of the Jackson nodes created by the MaxMind decoder on a 64-bit JVM with compressed oops
+    private static final int OBJECT_NODE_SIZE = 96;
+    private static final int OBJECT_ENTRY_SIZE = 40;
+    private static final int ARRAY_NODE_SIZE = 64;
+    private static final int ARRAY_ELEMENT_SIZE = 8;
+    private static final int STRING_SIZE = 40;
+    private static final int VALUE_NODE_SIZE = 24;
+
+    private final Cache<Integer, JsonNode> cache;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    /**
+     * @param maximumBytes   memory cap of the cached nodes, as estimated from their contents
+     * @param metricRegistry registry for the hit, miss and eviction meters
+     * @param metricPrefix   name prefix of the meters
+     */
+    public BoundedNodeCache(long maximumBytes, MetricRegistry metricRegistry, String metricPrefix) {
+        this.hits = metricRegistry.meter(name(metricPrefix, "hits"));
+        this.misses = metricRegistry.meter(name(metricPrefix, "misses"));
+        this.evictions = metricRegistry.meter(name(metricPrefix, "evictions"));
+
+        final RemovalListener<Integer, JsonNode> evictionListener = notification -> {
+            if (notification.wasEvicted()) {
+                evictions.mark();
+            }
+        };
+        this.cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .maximumWeight(maximumBytes)
+                .weigher((Integer offset, JsonNode node) -> (int) Math.min(Integer.MAX_VALUE, estimateSize(node)))
+                .removalListener(evictionListener)
+                .build();
+    }
+
+    @Override
+    public JsonNode get(int key, Loader loader) throws IOException {
+        final JsonNode cachedNode = cache.getIfPresent(key);
+        if (cachedNode != null) {
+            hits.mark();
+            return cachedNode;
+        }
+
+        misses.mark();
+        // Concurrent misses of the same node decode it more than once, which is cheaper than locking the loader
+        final JsonNode node = loader.load(key);
+        cache.put(key, node);
+        return node;
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    static long estimateSize(JsonNode node) {
+        if (node.isObject()) {
+            long size = OBJECT_NODE_SIZE;
+            final Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                size += OBJECT_ENTRY_SIZE + STRING_SIZE + 2L * field.getKey().length() + estimateSize(field.getValue());
+            }
+            return size;
+        } else if (node.isArray()) {
+            long size = ARRAY_NODE_SIZE;
+            for (JsonNode element : node) {
+                size += ARRAY_ELEMENT_SIZE + estimateSize(element);
+            }
+            return size;
+        } else if (node.isTextual()) {
+            return VALUE_NODE_SIZE + STRING_SIZE + 2L * node.textValue().length();
+        } else if (node instanceof BinaryNode) {
+            return VALUE_NODE_SIZE + 16 + ((BinaryNode) node).binaryValue().length;
+        }
+        return VALUE_NODE_SIZE;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of a lookup result record, backed by a key array shared by all records of the same kind and a
+ * value array. Serializes to the same JSON as the MaxMind record it replaces and costs a fraction of its heap.
+ */
+public class CompactRecord extends AbstractMap<Object, Object> {
+    private final String[] keys;
+    private final Object[] values;
+
+    CompactRecord(String[] keys, Object[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Number of keys and values differ");
+        }
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Creates a record whose latitude and longitude are kept as primitive values.
+     */
+    static CompactRecord withCoordinates(String[] keys, Object[] values, double latitude, double longitude) {
+        return new WithCoordinates(keys, values, latitude, longitude);
+    }
+
+    Object value(int index) {
+        return values[index];
+    }
+
+    /**
+     * Returns a copy of this record with a different value for the given key.
+     *
+     * @throws IllegalArgumentException if this record doesn't have the given key
+     */
+    CompactRecord with(String key, Object value) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown key \"" + key + "\"");
+        }
+        final Object[] newValues = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            newValues[i] = i == index ? value : value(i);
+        }
+
+        return new CompactRecord(keys, newValues);
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int index = indexOf(key);
+        return index < 0 ? null : value(index);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Entry<Object, Object>>() {
+            @Override
+            public Iterator<Entry<Object, Object>> iterator() {
+                return new Iterator<Entry<Object, Object>>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    @Override
+                    public Entry<Object, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final int i = index++;
+                        return new SimpleImmutableEntry<>(keys[i], value(i));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    // Same results as the implementations of AbstractMap, without creating entries. Records get interned, so
+    // these are called a lot.
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CompactRecord) || ((CompactRecord) o).keys != keys) {
+            return super.equals(o);
+        }
+        final CompactRecord that = (CompactRecord) o;
+        for (int i = 0; i < keys.length; i++) {
+            final Object value = value(i);
+            final Object otherValue = that.value(i);
+            if (value == null ? otherValue != null : !value.equals(otherValue)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 0;
+        for (int i = 0; i < keys.length; i++) {
+            final Object value = value(i);
+            hashCode += keys[i].hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        return hashCode;
+    }
+
+    private static class WithCoordinates extends CompactRecord {
+        private final int latitudeIndex;
+        private final int longitudeIndex;
+        private final double latitude;
+        private final double longitude;
+
+        private WithCoordinates(String[] keys, Object[] values, double latitude, double longitude) {
+            super(keys, values);
+            this.latitudeIndex = Arrays.asList(keys).indexOf("latitude");
+            this.longitudeIndex = Arrays.asList(keys).indexOf("longitude");
+            if (latitudeIndex < 0 || longitudeIndex < 0) {
+                throw new IllegalArgumentException("Keys don't contain latitude and longitude");
+            }
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        Object value(int index) {
+            if (index == latitudeIndex) {
+                return latitude;
+            } else if (index == longitudeIndex) {
+                return longitude;
+            }
+
+            return super.value(index);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.graylog2.plugin.lookup.LookupResult;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates lookup results of {@link CompactRecord compact records} from raw database records. The records have the
+ * keys and values of the JSON serialization of MaxMind's {@code CityResponse} and {@code CountryResponse} records.
+ * <p>
+ * Equal records and strings are shared between all results, so the countries, continents and usually the cities
+ * and locations of cached results only exist once on the heap.
+ */
+class CompactResults {
+    private static final String[] CITY_RESULT_KEYS = {"city", "continent", "country", "location", "postal",
+            "registered_country", "represented_country", "subdivisions", "traits"};
+    private static final String[] CITY_RESULT_WITH_COORDINATES_KEYS = {"city", "continent", "country", "location",
+            "postal", "registered_country", "represented_country", "subdivisions", "traits", "coordinates"};
+    private static final String[] COUNTRY_RESULT_KEYS = {"continent", "country", "registered_country",
+            "represented_country", "traits"};
+
+    private static final String[] CITY_KEYS = {"confidence", "geoname_id", "names"};
+    private static final String[] CONTINENT_KEYS = {"code", "geoname_id", "names"};
+    private static final String[] COUNTRY_KEYS = {"confidence", "geoname_id", "iso_code", "names"};
+    private static final String[] LOCATION_KEYS = {"accuracy_radius", "average_income", "latitude", "longitude",
+            "metro_code", "population_density", "time_zone"};
+    private static final String[] POSTAL_KEYS = {"code", "confidence"};
+    private static final String[] REPRESENTED_COUNTRY_KEYS = {"confidence", "geoname_id", "iso_code", "names", "type"};
+    private static final String[] SUBDIVISION_KEYS = {"confidence", "geoname_id", "iso_code", "names"};
+    private static final String[] TRAITS_KEYS = {"autonomous_system_number", "autonomous_system_organization",
+            "connection_type", "domain", "ip_address", "is_anonymous_proxy", "is_legitimate_proxy",
+            "is_satellite_provider", "isp", "organization", "user_type"};
+    private static final int TRAITS_IP_ADDRESS_INDEX = Arrays.asList(TRAITS_KEYS).indexOf("ip_address");
+
+    private static final Interner<Object> RECORDS = Interners.newWeakInterner();
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    private CompactResults() {
+    }
+
+    static LookupResult cityResult(Map<?, ?> record, String ipAddress) {
+        final CompactRecord location = location(record.get("location"));
+        final Object latitude = location.get("latitude");
+        final Object longitude = location.get("longitude");
+        final String coordinates = latitude == null || longitude == null ? null : latitude + "," + longitude;
+
+        final Object[] values = new Object[coordinates == null ? CITY_RESULT_KEYS.length : CITY_RESULT_WITH_COORDINATES_KEYS.length];
+        values[0] = record(CITY_KEYS, record.get("city"));
+        values[1] = record(CONTINENT_KEYS, record.get("continent"));
+        values[2] = record(COUNTRY_KEYS, record.get("country"));
+        values[3] = location;
+        values[4] = record(POSTAL_KEYS, record.get("postal"));
+        values[5] = record(COUNTRY_KEYS, record.get("registered_country"));
+        values[6] = record(REPRESENTED_COUNTRY_KEYS, record.get("represented_country"));
+        values[7] = subdivisions(record.get("subdivisions"));
+        values[8] = traits(record.get("traits"), ipAddress);
+        if (coordinates != null) {
+            values[9] = coordinates;
+        }
+
+        final CompactRecord result = new CompactRecord(
+                coordinates == null ? CITY_RESULT_KEYS : CITY_RESULT_WITH_COORDINATES_KEYS, values);
+        return LookupResult.multi(coordinates, result);
+    }
+
+    static LookupResult countryResult(Map<?, ?> record, String ipAddress) {
+        final CompactRecord country = record(COUNTRY_KEYS, record.get("country"));
+        final CompactRecord result = new CompactRecord(COUNTRY_RESULT_KEYS, new Object[]{
+                record(CONTINENT_KEYS, record.get("continent")),
+                country,
+                record(COUNTRY_KEYS, record.get("registered_country")),
+                record(REPRESENTED_COUNTRY_KEYS, record.get("represented_country")),
+                traits(record.get("traits"), ipAddress)
+        });
+
+        return LookupResult.multi((String) country.get("iso_code"), result);
+    }
+
+    /**
+     * Returns a copy of the given compact result with the given IP address in its traits.
+     */
+    static CompactRecord withIpAddress(CompactRecord result, String ipAddress) {
+        final Object traits = result.get("traits");
+        if (!(traits instanceof CompactRecord)) {
+            return result;
+        }
+
+        return result.with("traits", ((CompactRecord) traits).with("ip_address", ipAddress));
+    }
+
+    private static CompactRecord record(String[] keys, @Nullable Object record) {
+        final Map<?, ?> map = record instanceof Map ? (Map<?, ?>) record : ImmutableMap.of();
+        final Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = value(keys[i], map.get(keys[i]));
+        }
+
+        return intern(new CompactRecord(keys, values));
+    }
+
+    private static CompactRecord location(@Nullable Object record) {
+        final Map<?, ?> map = record instanceof Map ? (Map<?, ?>) record : ImmutableMap.of();
+        final Object latitude = map.get("latitude");
+        final Object longitude = map.get("longitude");
+        if (!(latitude instanceof Number) || !(longitude instanceof Number)) {
+            return record(LOCATION_KEYS, map);
+        }
+
+        final Object[] values = new Object[LOCATION_KEYS.length];
+        for (int i = 0; i < LOCATION_KEYS.length; i++) {
+            final String key = LOCATION_KEYS[i];
+            if (!"latitude".equals(key) && !"longitude".equals(key)) {
+                values[i] = value(key, map.get(key));
+            }
+        }
+
+        return intern(CompactRecord.withCoordinates(LOCATION_KEYS, values,
+                ((Number) latitude).doubleValue(), ((Number) longitude).doubleValue()));
+    }
+
+    private static List<CompactRecord> subdivisions(@Nullable Object subdivisions) {
+        if (!(subdivisions instanceof List)) {
+            return ImmutableList.of();
+        }
+
+        final ImmutableList.Builder<CompactRecord> builder = ImmutableList.builder();
+        for (Object subdivision : (List<?>) subdivisions) {
+            builder.add(record(SUBDIVISION_KEYS, subdivision));
+        }
+
+        return intern(builder.build());
+    }
+
+    private static CompactRecord traits(@Nullable Object traits, String ipAddress) {
+        // Not interned, results of different addresses only differ in their traits
+        final Map<?, ?> map = traits instanceof Map ? (Map<?, ?>) traits : ImmutableMap.of();
+        final Object[] values = new Object[TRAITS_KEYS.length];
+        for (int i = 0; i < TRAITS_KEYS.length; i++) {
+            values[i] = value(TRAITS_KEYS[i], map.get(TRAITS_KEYS[i]));
+        }
+        values[TRAITS_IP_ADDRESS_INDEX] = ipAddress;
+
+        return new CompactRecord(TRAITS_KEYS, values);
+    }
+
+    /**
+     * Converts a raw database value to the type of the MaxMind record property with the given key.
+     */
+    @Nullable
+    private static Object value(String key, @Nullable Object value) {
+        if ("names".equals(key)) {
+            return names(value);
+        } else if (key.startsWith("is_")) {
+            // MaxMind's boolean properties are never null
+            return Boolean.TRUE.equals(value);
+        } else if (value instanceof String) {
+            return STRINGS.intern((String) value);
+        } else if (value instanceof Number && !(value instanceof Double) && !(value instanceof Float)) {
+            // All integer properties of MaxMind records are Integers
+            return ((Number) value).intValue();
+        }
+
+        return value;
+    }
+
+    private static Map<String, String> names(@Nullable Object names) {
+        if (!(names instanceof Map)) {
+            return ImmutableMap.of();
+        }
+
+        final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) names).entrySet()) {
+            if (entry.getKey() instanceof String && entry.getValue() instanceof String) {
+                builder.put(STRINGS.intern((String) entry.getKey()), STRINGS.intern((String) entry.getValue()));
+            }
+        }
+
+        return intern(builder.build());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T intern(T value) {
+        return (T) RECORDS.intern(value);
+    }
+}
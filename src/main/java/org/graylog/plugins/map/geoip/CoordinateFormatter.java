@@ -0,0 +1,48 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+/**
+ * Formats coordinates as "lat,long" strings. The text is assembled in a reused per-thread buffer, so the only
+ * allocation is the resulting string.
+ */
+class CoordinateFormatter {
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(48));
+
+    // Zero keeps the full precision of coordinates
+    private final double scale;
+
+    /**
+     * @param precision number of decimal places the coordinates get rounded to, a negative value keeps the full
+     *                  precision
+     */
+    CoordinateFormatter(int precision) {
+        this.scale = precision >= 0 ? Math.pow(10, precision) : 0;
+    }
+
+    String format(double latitude, double longitude) {
+        final StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        // Same text as Double.toString(), without creating intermediate strings
+        buffer.append(round(latitude)).append(',').append(round(longitude));
+        return buffer.toString();
+    }
+
+    private double round(double coordinate) {
+        return scale > 0 ? Math.round(coordinate * scale) / scale : coordinate;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Approximate geographic centers of all countries, used as coordinates of addresses which have only been resolved
+ * to their country. Loaded from a bundled table.
+ */
+class CountryCentroids {
+    private static final String RESOURCE = "country-centroids.csv";
+    private static final Splitter CSV_SPLITTER = Splitter.on(',').trimResults();
+
+    private final ImmutableMap<String, double[]> centroids;
+
+    private CountryCentroids(ImmutableMap<String, double[]> centroids) {
+        this.centroids = centroids;
+    }
+
+    static CountryCentroids load() {
+        final URL resource = Resources.getResource(CountryCentroids.class, RESOURCE);
+        final ImmutableMap.Builder<String, double[]> centroids = ImmutableMap.builder();
+        try {
+            for (String line : Resources.readLines(resource, StandardCharsets.UTF_8)) {
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("country,")) {
+                    continue;
+                }
+                final List<String> columns = CSV_SPLITTER.splitToList(line);
+                centroids.put(columns.get(0), new double[]{Double.parseDouble(columns.get(1)), Double.parseDouble(columns.get(2))});
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read country centroids from " + resource, e);
+        }
+
+        return new CountryCentroids(centroids.build());
+    }
+
+    boolean contains(String countryIsoCode) {
+        return centroids.containsKey(countryIsoCode);
+    }
+
+    /**
+     * @return the latitude of the country's center, {@link Double#NaN} for unknown countries
+     */
+    double latitude(String countryIsoCode) {
+        final double[] centroid = centroids.get(countryIsoCode);
+        return centroid == null ? Double.NaN : centroid[0];
+    }
+
+    /**
+     * @return the longitude of the country's center, {@link Double#NaN} for unknown countries
+     */
+    double longitude(String countryIsoCode) {
+        final double[] centroid = centroids.get(countryIsoCode);
+        return centroid == null ? Double.NaN : centroid[1];
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a database file for changes with the file system's change notifications instead of polling its
+ * attributes. The listener is called on the watcher's thread once the file has settled, that is once no further
+ * change has been reported for the settle time, so a file which is still being written doesn't get loaded.
+ * <p>
+ * Only the directory of the file is watched, so replacing the file by renaming a new one over it, as done by
+ * {@code geoipupdate}, is detected as well. If the path is a symbolic link, the directory of the file it points to is
+ * watched, too, and follows the link whenever it changes.
+ * <p>
+ * Network file systems usually don't report changes, so the watcher doesn't replace checking the file periodically.
+ */
+class DatabaseFileWatcher implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(DatabaseFileWatcher.class);
+
+    static final long DEFAULT_SETTLE_MILLIS = 2000L;
+
+    private final Path file;
+    private final long settleMillis;
+    private final Runnable listener;
+    private final WatchService watchService;
+    private final WatchKey directoryKey;
+    private final Thread thread;
+    private volatile boolean watching = true;
+
+    // The file the path resolves to, only accessed by the watcher's thread after construction
+    private Path realFile;
+    @Nullable
+    private WatchKey realDirectoryKey;
+
+    private DatabaseFileWatcher(Path file, long settleMillis, Runnable listener) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.settleMillis = settleMillis;
+        this.listener = listener;
+        this.watchService = this.file.getFileSystem().newWatchService();
+        try {
+            this.directoryKey = register(this.file.getParent());
+            watchRealFile();
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "geoip-database-watcher-" + this.file.getFileName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching the given file.
+     *
+     * @throws IOException if the file system doesn't support watching the directory of the file
+     */
+    static DatabaseFileWatcher start(Path file, long settleMillis, Runnable listener) throws IOException {
+        final DatabaseFileWatcher watcher = new DatabaseFileWatcher(file, settleMillis, listener);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    /**
+     * Returns whether changes of the file are still reported. Watching stops if the directory has been removed or
+     * the watcher has been closed.
+     */
+    boolean isWatching() {
+        return watching;
+    }
+
+    private WatchKey register(Path directory) throws IOException {
+        return directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Resolves the path of the file again and watches the directory of the file it points to, unless that's the
+     * directory of the path anyway.
+     */
+    private void watchRealFile() throws IOException {
+        Path resolvedFile;
+        try {
+            resolvedFile = file.toRealPath();
+        } catch (IOException e) {
+            // Missing file or dangling link, wait for it to show up in the directory of the path
+            resolvedFile = file;
+        }
+        if (resolvedFile.equals(realFile)) {
+            return;
+        }
+
+        final Path realDirectory = resolvedFile.getParent();
+        final boolean sameDirectory = realDirectory.equals(file.getParent().toRealPath());
+        if (realDirectoryKey != null && !(realDirectoryKey.watchable().equals(realDirectory) && realDirectoryKey.isValid())) {
+            realDirectoryKey.cancel();
+            realDirectoryKey = null;
+        }
+        if (realDirectoryKey == null && !sameDirectory) {
+            realDirectoryKey = register(realDirectory);
+        }
+        realFile = resolvedFile;
+    }
+
+    private void run() {
+        try {
+            boolean changed = false;
+            while (true) {
+                final WatchKey key = changed ? watchService.poll(settleMillis, TimeUnit.MILLISECONDS) : watchService.take();
+                if (key == null) {
+                    // No further changes within the settle time, the file has been written completely
+                    changed = false;
+                    followLink();
+                    notifyListener();
+                    continue;
+                }
+
+                changed |= isFileChanged(key);
+                if (!key.reset()) {
+                    if (key != directoryKey) {
+                        // The directory the link pointed to has been removed, the link must have changed as well
+                        changed = true;
+                        continue;
+                    }
+                    LOG.warn("Directory of database file {} can't be watched anymore, falling back to polling", file);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Closed
+        } finally {
+            watching = false;
+        }
+    }
+
+    private boolean isFileChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // Lost events might have been changes of the file
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || isWatchedFile(key, event.context())) {
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean isWatchedFile(WatchKey key, Object fileName) {
+        if (key == directoryKey) {
+            // Changes of the link itself or of the file it points to if it's in the same directory
+            return fileName.equals(file.getFileName()) || fileName.equals(realFile.getFileName());
+        }
+
+        return key == realDirectoryKey && fileName.equals(realFile.getFileName());
+    }
+
+    private void followLink() {
+        try {
+            watchRealFile();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Couldn't watch the file which database file {} points to", file, e);
+        }
+    }
+
+    private void notifyListener() {
+        try {
+            listener.run();
+        } catch (Exception e) {
+            LOG.warn("Couldn't handle change of database file {}", file, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        watching = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.warn("Couldn't stop watching database file {}", file, e);
+        }
+    }
+}
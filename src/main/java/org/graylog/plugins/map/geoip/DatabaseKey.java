@@ -0,0 +1,49 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.auto.value.AutoValue;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Identifies a database file by its canonical path and the identity of its contents. Replacing or modifying the file
+ * results in a different key, even if the path stays the same.
+ */
+@AutoValue
+abstract class DatabaseKey {
+    abstract Path path();
+
+    // Inode on Unix-like systems, null on systems which don't support file keys
+    @Nullable
+    abstract Object fileKey();
+
+    abstract long lastModified();
+
+    abstract long size();
+
+    static DatabaseKey forPath(Path path) throws IOException {
+        final Path realPath = path.toRealPath();
+        final BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+
+        return new AutoValue_DatabaseKey(realPath, attributes.fileKey(), attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+}
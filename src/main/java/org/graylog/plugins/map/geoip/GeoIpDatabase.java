@@ -0,0 +1,132 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.maxmind.geoip2.DatabaseReader;
+import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog.plugins.map.geoip.mmdb.Ipv4RangeIndex;
+import org.graylog.plugins.map.geoip.mmdb.MmdbReader;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A consumer's handle of a database opened by {@link GeoIpDatabaseRegistry}. The readers and caches are shared with
+ * all other handles of the same database file. Closing the handle releases the caches it has acquired and the
+ * database itself once no other handle uses it anymore.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class GeoIpDatabase implements Closeable {
+    @Nullable
+    private final GeoIpDatabaseRegistry registry;
+    private final SharedDatabase database;
+    @Nullable
+    private final DatabaseReader databaseReader;
+    private final Map<String, NetworkBlockCache<?>> networkCaches = new ConcurrentHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    GeoIpDatabase(GeoIpDatabaseRegistry registry, SharedDatabase database) {
+        this(registry, database, null);
+    }
+
+    private GeoIpDatabase(@Nullable GeoIpDatabaseRegistry registry, SharedDatabase database, @Nullable DatabaseReader databaseReader) {
+        this.registry = registry;
+        this.database = database;
+        this.databaseReader = databaseReader;
+    }
+
+    /**
+     * Returns a handle of the same database which uses the given MaxMind reader. The returned handle isn't managed
+     * by the registry, closing it does nothing.
+     */
+    @VisibleForTesting
+    GeoIpDatabase withDatabaseReader(DatabaseReader databaseReader) {
+        return new GeoIpDatabase(null, database, databaseReader);
+    }
+
+    public Path path() {
+        return database.key().path();
+    }
+
+    DatabaseKey key() {
+        return database.key();
+    }
+
+    public MmdbReader mmdbReader() {
+        return database.mmdbReader();
+    }
+
+    public DatabaseReader databaseReader() throws IOException {
+        return databaseReader(GeoIpResolverConfig.DEFAULT_NODE_CACHE_MAX_BYTES);
+    }
+
+    /**
+     * Returns the MaxMind reader of the database whose node cache is capped at the given size. Zero disables the
+     * node cache.
+     */
+    public DatabaseReader databaseReader(long nodeCacheMaxBytes) throws IOException {
+        return databaseReader != null ? databaseReader : database.databaseReader(nodeCacheMaxBytes);
+    }
+
+    /**
+     * Returns the IPv4 range index of the database, see {@link Ipv4RangeIndex}. Only supported for City databases.
+     */
+    public Ipv4RangeIndex ipv4RangeIndex() throws IOException {
+        return database.ipv4RangeIndex();
+    }
+
+    /**
+     * Returns whether both handles belong to the same, unchanged database file.
+     */
+    public boolean isSameDatabase(GeoIpDatabase other) {
+        return database == other.database;
+    }
+
+    /**
+     * Returns the network block cache with the given name, shared by all handles of this database which use the same
+     * name. The cache is created with the settings of the first handle, so the name should include all settings to
+     * keep reconfigured consumers from using a cache with outdated settings.
+     */
+    @SuppressWarnings("unchecked")
+    public <V> NetworkBlockCache<V> networkCache(String name, long maximumSize, long expireAfterWrite, TimeUnit unit, String metricPrefix) {
+        final NetworkBlockCache<?> cache = networkCaches.get(name);
+        if (cache != null) {
+            return (NetworkBlockCache<V>) cache;
+        }
+
+        return (NetworkBlockCache<V>) networkCaches.computeIfAbsent(name,
+                key -> database.acquireNetworkCache(key, maximumSize, expireAfterWrite, unit, metricPrefix));
+    }
+
+    @Override
+    public void close() {
+        if (registry == null || !closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        networkCaches.keySet().forEach(database::releaseNetworkCache);
+        registry.release(database);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide registry of opened GeoIP databases. All consumers of the same database file (the GeoIP processor and
+ * any number of lookup adapters) share one set of readers and caches instead of mapping and warming up the file
+ * separately.
+ * <p>
+ * Databases are keyed by canonical path and file identity, so a replaced or modified file gets loaded as a new
+ * database on the next {@link #open(Path)}, while consumers of the old file keep using it until they close their
+ * handles.
+ */
+@Singleton
+public class GeoIpDatabaseRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(GeoIpDatabaseRegistry.class);
+
+    private final MetricRegistry metricRegistry;
+    private final Map<DatabaseKey, SharedDatabase> databases = new HashMap<>();
+
+    @Inject
+    public GeoIpDatabaseRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Opens the database file at the given path or shares the already opened database if the file hasn't changed.
+     *
+     * @return a handle which has to be closed once the database isn't used anymore
+     */
+    public GeoIpDatabase open(Path path) throws IOException {
+        final DatabaseKey key = DatabaseKey.forPath(path);
+        synchronized (this) {
+            SharedDatabase database = databases.get(key);
+            if (database == null) {
+                LOG.debug("Loading GeoIP database {}", key.path());
+                database = new SharedDatabase(key, metricRegistry);
+                databases.put(key, database);
+            }
+            database.references++;
+
+            return new GeoIpDatabase(this, database);
+        }
+    }
+
+    synchronized void release(SharedDatabase database) {
+        if (--database.references == 0) {
+            LOG.debug("Closing GeoIP database {}", database.key().path());
+            databases.remove(database.key());
+            database.close();
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int openDatabases() {
+        return databases.size();
+    }
+}
@@ -16,48 +16,211 @@
  */
 package org.graylog.plugins.map.geoip;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.net.InetAddresses;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.AbstractCountryResponse;
 import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.record.City;
 import com.maxmind.geoip2.record.Country;
 import com.maxmind.geoip2.record.Location;
+import org.graylog.plugins.map.config.DatabaseType;
 import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog.plugins.map.config.MetricsMode;
+import org.graylog.plugins.map.config.ResolverBackend;
+import org.graylog.plugins.map.geoip.mmdb.Ipv4RangeIndex;
+import org.graylog.plugins.map.geoip.mmdb.LocationRecord;
+import org.graylog.plugins.map.geoip.mmdb.MmdbReader;
+import org.graylog.plugins.map.geoip.mmdb.NetworkBlock;
+import org.graylog.plugins.map.geoip.mmdb.RecordProjection;
 import org.graylog2.plugin.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
-public class GeoIpResolverEngine {
+public class GeoIpResolverEngine implements Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(GeoIpResolverEngine.class);
     private static final String INTERNAL_FIELD_PREFIX = "gl2_";
+    private static final String COUNTRY_ISO_CODE_PATH = "country.iso_code";
+    private static final RecordProjection COUNTRY_PROJECTION = RecordProjection.of(ImmutableList.of(COUNTRY_ISO_CODE_PATH));
+    // Upper bound for messages with arbitrary field names, the names of further fields get derived on every use
+    private static final int MAX_DERIVED_FIELD_NAMES = 10_000;
+    private static final String CACHE_SNAPSHOT_SUFFIX = ".location-cache";
+    private static final String CACHE_SNAPSHOT_DIRECTORY = "geoip";
 
     private final Timer resolveTime;
+    private final Timer scanTime;
+    private final Timer parseTime;
+    private final Timer writeTime;
+    private final Meter fieldsScanned;
+    private final Meter parseAttempts;
+    private final Meter parseHits;
+    private final Meter notFound;
+    private final Meter fieldsWritten;
+    private final Meter cacheHits;
+    private final Meter cacheMisses;
+    private final Meter cacheEvictions;
+    private final Meter reservedAddresses;
+    private final Meter negativeCacheHits;
+    private final Meter batchAddresses;
+    private final Meter batchDistinctAddresses;
+    private final Histogram batchDeduplicationRatio;
+    private final Meter degradedMessages;
+    private final Meter shedAddresses;
+    private final Cache<IpAddressKey, GeoLocationInformation> locationCache;
+    private final Cache<IpAddressKey, Boolean> negativeCache;
+    private NetworkBlockCache<GeoLocationInformation> networkCache;
+    private final Set<String> includeFields;
+    private final Set<String> excludeFields;
+    private final AdaptiveFieldSkipList fieldSkipList;
+    private final LoadShedder loadShedder;
+    // Country mode only resolves the country of addresses, the coordinates are the center of the country
+    private final boolean countryMode;
+    private final CountryCentroids countryCentroids;
+    private final Map<String, GeoLocationInformation> countryLocations = new ConcurrentHashMap<>();
+    private final CoordinateFormatter coordinateFormatter;
+    private final int[] geohashPrecisions;
+    private final Map<String, DerivedFieldNames> derivedFieldNames = new ConcurrentHashMap<>();
+    private final GeoIpResolverStatistics statistics;
+    private GeoIpDatabase database;
+    private Path cacheSnapshotPath;
+    // The most recently used addresses of the location cache, which get written to the snapshot
+    private Cache<IpAddressKey, Boolean> snapshotAddresses;
     private DatabaseReader databaseReader;
+    private MmdbReader networkReader;
+    private Ipv4RangeIndex rangeIndex;
+    private boolean decodeLocations;
     private boolean enabled;
 
 
     public GeoIpResolverEngine(GeoIpResolverConfig config, MetricRegistry metricRegistry) {
-        this.resolveTime = metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime"));
+        this(config, new GeoIpDatabaseRegistry(metricRegistry), metricRegistry);
+    }
+
+    public GeoIpResolverEngine(GeoIpResolverConfig config, GeoIpDatabaseRegistry databaseRegistry, MetricRegistry metricRegistry) {
+        this(config, databaseRegistry, new GeoIpResolverStatistics(), metricRegistry);
+    }
+
+    public GeoIpResolverEngine(GeoIpResolverConfig config, GeoIpDatabaseRegistry databaseRegistry,
+                               GeoIpResolverStatistics statistics, MetricRegistry metricRegistry) {
+        this(config, databaseRegistry, statistics, metricRegistry, null);
+    }
+
+    /**
+     * @param dataDirectory data directory of the node, which keeps the location cache snapshots unless another
+     *                      directory has been configured. Without either, no snapshots are written.
+     */
+    public GeoIpResolverEngine(GeoIpResolverConfig config, GeoIpDatabaseRegistry databaseRegistry,
+                               GeoIpResolverStatistics statistics, MetricRegistry metricRegistry,
+                               @Nullable Path dataDirectory) {
+        final boolean lowOverheadMetrics = config.metricsMode() == MetricsMode.LOW_OVERHEAD;
+        this.resolveTime = registerTimer(metricRegistry, name(GeoIpResolverEngine.class, "resolveTime"),
+                lowOverheadMetrics ? new SampledTimer(config.timingSampleInterval()) : new Timer());
+        this.scanTime = registerTimer(metricRegistry, name(GeoIpResolverEngine.class, "scanTime"),
+                lowOverheadMetrics ? new SampledTimer(config.timingSampleInterval()) : new Timer());
+        // Timing every single field would cost about as much as parsing it, so parsing is always sampled
+        this.parseTime = registerTimer(metricRegistry, name(GeoIpResolverEngine.class, "parseTime"),
+                new SampledTimer(config.timingSampleInterval()));
+        this.writeTime = registerTimer(metricRegistry, name(GeoIpResolverEngine.class, "writeTime"),
+                lowOverheadMetrics ? new SampledTimer(config.timingSampleInterval()) : new Timer());
+        this.fieldsScanned = metricRegistry.meter(name(GeoIpResolverEngine.class, "fieldsScanned"));
+        this.parseAttempts = metricRegistry.meter(name(GeoIpResolverEngine.class, "parseAttempts"));
+        this.parseHits = metricRegistry.meter(name(GeoIpResolverEngine.class, "parseHits"));
+        this.notFound = metricRegistry.meter(name(GeoIpResolverEngine.class, "notFound"));
+        this.fieldsWritten = metricRegistry.meter(name(GeoIpResolverEngine.class, "fieldsWritten"));
+        this.statistics = statistics;
+        this.cacheHits = metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits"));
+        this.cacheMisses = metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheMisses"));
+        this.cacheEvictions = metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheEvictions"));
+        this.reservedAddresses = metricRegistry.meter(name(GeoIpResolverEngine.class, "reservedAddresses"));
+        this.negativeCacheHits = metricRegistry.meter(name(GeoIpResolverEngine.class, "negativeCacheHits"));
+        this.batchAddresses = metricRegistry.meter(name(GeoIpResolverEngine.class, "batchAddresses"));
+        this.batchDistinctAddresses = metricRegistry.meter(name(GeoIpResolverEngine.class, "batchDistinctAddresses"));
+        // Percentage of the addresses in a batch which didn't have to be resolved because they occurred more than once
+        this.batchDeduplicationRatio = metricRegistry.histogram(name(GeoIpResolverEngine.class, "batchDeduplicationRatio"));
+        this.degradedMessages = metricRegistry.meter(name(GeoIpResolverEngine.class, "degradedMessages"));
+        this.shedAddresses = metricRegistry.meter(name(GeoIpResolverEngine.class, "shedAddresses"));
+        this.includeFields = config.includeFields();
+        this.excludeFields = config.excludeFields();
+        this.fieldSkipList = config.fieldSkipThreshold() > 0 ? new AdaptiveFieldSkipList(config.fieldSkipThreshold(),
+                config.fieldReprobeInterval(), metricRegistry) : null;
+        this.loadShedder = config.batchTimeBudget() > 0 || config.minCacheHitRate() > 0 ? new LoadShedder(
+                config.batchTimeBudgetUnit().toNanos(config.batchTimeBudget()), config.minCacheHitRate(),
+                config.degradedSampleInterval(), Ticker.systemTicker(), metricRegistry) : null;
+        if (loadShedder == null) {
+            // The gauge of a previous engine would keep reporting its state otherwise
+            metricRegistry.remove(name(GeoIpResolverEngine.class, "degraded"));
+        }
+        this.countryMode = config.dbType() == DatabaseType.MAXMIND_COUNTRY;
+        this.countryCentroids = countryMode ? CountryCentroids.load() : null;
+        this.coordinateFormatter = new CoordinateFormatter(config.coordinatePrecision());
+        this.geohashPrecisions = validGeohashPrecisions(config.geohashPrecisions());
+        this.locationCache = buildLocationCache(config);
+        this.negativeCache = buildNegativeCache(config);
 
         try {
-            final File database = new File(config.dbPath());
-            if (Files.exists(database.toPath())) {
-                this.databaseReader = new DatabaseReader.Builder(database).build();
+            final Path databasePath = Paths.get(config.dbPath());
+            if (Files.exists(databasePath)) {
+                // Shares readers and caches with the lookup adapters using the same file
+                this.database = databaseRegistry.open(databasePath);
+                this.networkReader = database.mmdbReader();
+                this.networkCache = config.networkCacheSize() > 0 ? database.networkCache(networkCacheName(config), config.networkCacheSize(),
+                        config.cacheTtl(), config.cacheTtlUnit(), name(GeoIpResolverEngine.class, "networkCache")) : null;
+                // The built-in decoder reads countries from all databases but locations only from City records, use
+                // the MaxMind reader for all other databases
+                final boolean mmdbBackend = config.resolverBackend() != ResolverBackend.MAXMIND;
+                this.decodeLocations = mmdbBackend && (countryMode || networkReader.databaseType().contains("City"));
+                if (mmdbBackend && !decodeLocations) {
+                    LOG.debug("Using MaxMind reader for GeoIP database of type {}", networkReader.databaseType());
+                }
+                this.databaseReader = decodeLocations ? null : database.databaseReader(config.nodeCacheMaxBytes());
+                this.rangeIndex = decodeLocations && !countryMode && config.resolverBackend() == ResolverBackend.RANGE_INDEX
+                        ? database.ipv4RangeIndex() : null;
                 this.enabled = config.enabled();
+                final Path cacheSnapshotDirectory = cacheSnapshotDirectory(config, dataDirectory);
+                if (enabled && locationCache != null && config.cacheSnapshotInterval() > 0 && cacheSnapshotDirectory != null) {
+                    // The directory of the database usually belongs to the updater or is read-only
+                    this.cacheSnapshotPath = cacheSnapshotDirectory.resolve(databasePath.getFileName() + CACHE_SNAPSHOT_SUFFIX);
+                    this.snapshotAddresses = CacheBuilder.newBuilder()
+                            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                            .maximumSize(Math.min(config.cacheSnapshotMaxEntries(), config.cacheSize()))
+                            .build();
+                    restoreCacheSnapshot();
+                }
             } else {
                 LOG.warn("GeoIP database file does not exist: {}", config.dbPath());
                 this.enabled = false;
@@ -68,83 +231,684 @@ public class GeoIpResolverEngine {
         }
     }
 
+    /**
+     * Returns the timer registered under the given name, replacing it if it was registered by an engine with
+     * different metrics settings.
+     */
+    private static Timer registerTimer(MetricRegistry metricRegistry, String name, Timer timer) {
+        final Metric metric = metricRegistry.getMetrics().get(name);
+        if (metric != null && metric.getClass() == timer.getClass()
+                && (!(timer instanceof SampledTimer) || ((SampledTimer) timer).sampleInterval() == ((SampledTimer) metric).sampleInterval())) {
+            return (Timer) metric;
+        }
+        if (metric != null) {
+            metricRegistry.remove(name);
+        }
+        try {
+            return metricRegistry.register(name, timer);
+        } catch (IllegalArgumentException e) {
+            // Registered concurrently by another engine
+            return metricRegistry.timer(name);
+        }
+    }
+
+    private static long startTiming(Timer timer) {
+        return timer instanceof SampledTimer ? ((SampledTimer) timer).start() : System.nanoTime();
+    }
+
+    private static void stopTiming(Timer timer, long start) {
+        if (timer instanceof SampledTimer) {
+            ((SampledTimer) timer).stop(start);
+        } else {
+            timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static int[] validGeohashPrecisions(Set<Integer> geohashPrecisions) {
+        return geohashPrecisions.stream()
+                .filter(precision -> {
+                    if (precision < 1 || precision > Geohash.MAX_PRECISION) {
+                        LOG.warn("Ignoring invalid geohash precision {}, must be between 1 and {}", precision, Geohash.MAX_PRECISION);
+                        return false;
+                    }
+                    return true;
+                })
+                .mapToInt(Integer::intValue)
+                .sorted()
+                .toArray();
+    }
+
+    @Nullable
+    private static Path cacheSnapshotDirectory(GeoIpResolverConfig config, @Nullable Path dataDirectory) {
+        if (!config.cacheSnapshotDirectory().isEmpty()) {
+            return Paths.get(config.cacheSnapshotDirectory());
+        }
+
+        return dataDirectory == null ? null : dataDirectory.resolve(CACHE_SNAPSHOT_DIRECTORY);
+    }
+
+    private static String networkCacheName(GeoIpResolverConfig config) {
+        // Engines with different cache settings must not share the cache. The database type and backend decide what
+        // gets resolved, a country mode engine must not serve the city locations cached by a city mode engine.
+        return "location:" + config.dbType() + ":" + config.resolverBackend() + ":" + config.networkCacheSize()
+                + ":" + config.cacheTtlUnit().toMillis(config.cacheTtl());
+    }
+
+    @Nullable
+    private Cache<IpAddressKey, GeoLocationInformation> buildLocationCache(GeoIpResolverConfig config) {
+        if (config.cacheSize() <= 0) {
+            return null;
+        }
+
+        final RemovalListener<IpAddressKey, GeoLocationInformation> evictionListener = notification -> {
+            if (notification.wasEvicted()) {
+                cacheEvictions.mark();
+            }
+        };
+        final CacheBuilder<IpAddressKey, GeoLocationInformation> cacheBuilder = CacheBuilder.newBuilder()
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .maximumSize(config.cacheSize())
+                .removalListener(evictionListener);
+        if (config.cacheTtl() > 0) {
+            cacheBuilder.expireAfterWrite(config.cacheTtl(), config.cacheTtlUnit());
+        }
+
+        return cacheBuilder.build();
+    }
+
+    @Nullable
+    private static Cache<IpAddressKey, Boolean> buildNegativeCache(GeoIpResolverConfig config) {
+        if (config.negativeCacheSize() <= 0) {
+            return null;
+        }
+
+        final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .maximumSize(config.negativeCacheSize());
+        if (config.cacheTtl() > 0) {
+            cacheBuilder.expireAfterWrite(config.cacheTtl(), config.cacheTtlUnit());
+        }
+
+        return cacheBuilder.build();
+    }
+
+    /**
+     * Loads the pages of the database into memory, so the first messages after startup don't page fault their way
+     * through the search tree.
+     */
+    public void warmUp() {
+        if (networkReader != null) {
+            final long bytes = networkReader.pretouch();
+            LOG.debug("Loaded {} bytes of GeoIP database {}", bytes, database.path());
+        }
+    }
+
+    /**
+     * Fills the location cache with the snapshot written by a previous engine, if it belongs to the same database
+     * version. Failing to read the snapshot is logged, the cache just starts empty.
+     */
+    private void restoreCacheSnapshot() {
+        if (!Files.exists(cacheSnapshotPath)) {
+            return;
+        }
+
+        try {
+            final Map<IpAddressKey, GeoLocationInformation> locations = LocationCacheSnapshot.read(cacheSnapshotPath, networkReader, countryMode);
+            if (locations == null) {
+                LOG.debug("Location cache snapshot {} belongs to another database version, ignoring it", cacheSnapshotPath);
+                return;
+            }
+            locationCache.putAll(locations);
+            for (IpAddressKey ipAddress : locations.keySet()) {
+                snapshotAddresses.put(ipAddress, Boolean.TRUE);
+            }
+            LOG.debug("Restored {} cached locations from {}", locations.size(), cacheSnapshotPath);
+        } catch (IOException e) {
+            LOG.warn("Couldn't read location cache snapshot {}", cacheSnapshotPath, e);
+        }
+    }
+
+    /**
+     * Writes the most recently used cached locations to the snapshot file, which is loaded by the engines of the next
+     * start. Does nothing if snapshots are disabled.
+     */
+    public void writeCacheSnapshot() throws IOException {
+        if (cacheSnapshotPath == null) {
+            return;
+        }
+
+        // Copied, the snapshot must not change while it's being written
+        final Map<IpAddressKey, GeoLocationInformation> locations = new HashMap<>();
+        for (IpAddressKey ipAddress : snapshotAddresses.asMap().keySet()) {
+            final GeoLocationInformation location = locationCache.getIfPresent(ipAddress);
+            if (location != null) {
+                locations.put(ipAddress, location);
+            }
+        }
+        Files.createDirectories(cacheSnapshotPath.getParent());
+        LocationCacheSnapshot.write(cacheSnapshotPath, networkReader, countryMode, locations);
+        LOG.debug("Wrote {} cached locations to {}", locations.size(), cacheSnapshotPath);
+    }
+
+    /**
+     * Drops all cached locations.
+     */
+    public void purgeCache() {
+        if (locationCache != null) {
+            locationCache.invalidateAll();
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidateAll();
+        }
+        if (networkCache != null) {
+            networkCache.invalidateAll();
+        }
+        if (snapshotAddresses != null) {
+            snapshotAddresses.invalidateAll();
+        }
+    }
+
+    /**
+     * Drops the cached locations of this engine and releases the database, which gets closed if no lookup adapter
+     * uses it. Must not be called while messages are being processed, see {@link SwappableReader} for replacing
+     * engines which are in use.
+     * <p>
+     * The network cache is shared with the engine which replaces this one and outlives it, so it gets purged as
+     * well. Replacing the engine always starts with empty caches, apart from a restored cache snapshot.
+     */
+    @Override
+    public void close() {
+        purgeCache();
+        if (database != null) {
+            database.close();
+        }
+    }
+
     public boolean filter(Message message) {
         if (!enabled) {
             return false;
         }
 
-        for (Map.Entry<String, Object> field : message.getFields().entrySet()) {
+        // A single message doesn't need the address deduplication of batches
+        final List<AddressField> addressFields = new ArrayList<>(4);
+        final long scanStart = startTiming(scanTime);
+        collectAddressFields(message, addressFields, null);
+        stopTiming(scanTime, scanStart);
+        final boolean degraded = loadShedder != null && loadShedder.isDegraded();
+        boolean shed = false;
+        for (AddressField addressField : addressFields) {
+            if (degraded && shouldShed(addressField.ipAddress)) {
+                shed = true;
+                continue;
+            }
+            final GeoLocationInformation locationInformation = resolveGeoLocationInformation(addressField.ipAddress).orElse(null);
+            if (locationInformation != null) {
+                final long writeStart = startTiming(writeTime);
+                addLocationFields(message, addressField.key, locationInformation);
+                stopTiming(writeTime, writeStart);
+            }
+        }
+        if (shed) {
+            degradedMessages.mark();
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the IP addresses of all messages of a batch. The addresses of all messages are collected first, so
+     * every distinct address only gets resolved once even if it occurs in many messages.
+     */
+    public void filter(Iterable<Message> messages) {
+        if (!enabled) {
+            return;
+        }
+
+        // The fields of a message cannot be modified while iterating over them, so the results get added afterwards
+        final List<AddressField> addressFields = new ArrayList<>();
+        final Set<IpAddressKey> addresses = new HashSet<>();
+        final long scanStart = startTiming(scanTime);
+        for (Message message : messages) {
+            collectAddressFields(message, addressFields, addresses);
+        }
+        stopTiming(scanTime, scanStart);
+        if (addressFields.isEmpty()) {
+            return;
+        }
+
+        final boolean degraded = loadShedder != null && loadShedder.isDegraded();
+        final Set<IpAddressKey> skippedAddresses = degraded ? new HashSet<>() : Collections.emptySet();
+        final Map<IpAddressKey, GeoLocationInformation> locations = new HashMap<>(addresses.size() * 2);
+        for (IpAddressKey address : addresses) {
+            if (degraded && shouldShed(address)) {
+                skippedAddresses.add(address);
+                continue;
+            }
+            resolveGeoLocationInformation(address).ifPresent(locationInformation -> locations.put(address, locationInformation));
+        }
+        final long writeStart = startTiming(writeTime);
+        // The fields of a message are collected one after the other, so a message only gets counted once
+        Message lastDegradedMessage = null;
+        for (AddressField addressField : addressFields) {
+            final GeoLocationInformation locationInformation = locations.get(addressField.ipAddress);
+            if (locationInformation != null) {
+                addLocationFields(addressField.message, addressField.key, locationInformation);
+            } else if (addressField.message != lastDegradedMessage && skippedAddresses.contains(addressField.ipAddress)) {
+                lastDegradedMessage = addressField.message;
+                degradedMessages.mark();
+            }
+        }
+        stopTiming(writeTime, writeStart);
+
+        batchAddresses.mark(addressFields.size());
+        batchDistinctAddresses.mark(addresses.size());
+        batchDeduplicationRatio.update(100 * (addressFields.size() - addresses.size()) / addressFields.size());
+    }
+
+    /**
+     * Records the processing time of a message batch, which decides whether the following batches only get enriched
+     * from the location cache. Does nothing if neither a batch time budget nor a minimum cache hit rate is configured.
+     */
+    public void recordBatchTime(long elapsedNanos) {
+        if (loadShedder != null) {
+            loadShedder.recordBatch(elapsedNanos);
+        }
+    }
+
+    /**
+     * Returns whether the resolution of the address should be skipped while degraded, which is the case if it would
+     * need a database lookup and doesn't get sampled. Skipped addresses don't count as cache misses, so the cache
+     * hit rate only reflects the addresses which actually got resolved.
+     */
+    private boolean shouldShed(IpAddressKey ipAddress) {
+        if (ReservedAddresses.isReserved(ipAddress)
+                || (locationCache != null && locationCache.getIfPresent(ipAddress) != null)
+                || (negativeCache != null && negativeCache.getIfPresent(ipAddress) != null)
+                || loadShedder.sampleMiss()) {
+            return false;
+        }
+
+        shedAddresses.mark();
+        return true;
+    }
+
+    private void collectAddressFields(Message message, List<AddressField> addressFields, @Nullable Set<IpAddressKey> addresses) {
+        // Counted locally and marked once per message instead of once per field
+        int scanned = 0;
+        int attempts = 0;
+        final int found = addressFields.size();
+        if (!includeFields.isEmpty()) {
+            // Only look at the configured fields instead of scanning the whole message
+            for (String key : includeFields) {
+                scanned++;
+                if (isCandidateField(key)) {
+                    final Object value = message.getField(key);
+                    if (isParseable(value)) {
+                        attempts++;
+                    }
+                    final IpAddressKey ipAddress = value != null ? parseIpAddress(value) : null;
+                    if (ipAddress != null) {
+                        addressFields.add(new AddressField(message, key, ipAddress));
+                        if (addresses != null) {
+                            addresses.add(ipAddress);
+                        }
+                    }
+                }
+            }
+            markScanned(scanned, attempts, addressFields.size() - found);
+            return;
+        }
+
+        for (Map.Entry<String, Object> field : message.getFieldsEntries()) {
             final String key = field.getKey();
-            if (!key.startsWith(INTERNAL_FIELD_PREFIX)) {
-                final Optional<GeoLocationInformation> geoLocationInformation = extractGeoLocationInformation(field.getValue());
-                geoLocationInformation.ifPresent(locationInformation -> {
-                    // We will store the coordinates as a "lat,long" string
-                    message.addField(key + "_geolocation", locationInformation.latitude() + "," + locationInformation.longitude());
-                    message.addField(key + "_country_code", locationInformation.countryIsoCode());
-                    message.addField(key + "_city_name", locationInformation.cityName());
-                });
+            scanned++;
+            if (isCandidateField(key) && (fieldSkipList == null || fieldSkipList.shouldCheck(key))) {
+                if (isParseable(field.getValue())) {
+                    attempts++;
+                }
+                final IpAddressKey ipAddress = parseIpAddress(field.getValue());
+                if (fieldSkipList != null) {
+                    if (ipAddress == null) {
+                        fieldSkipList.recordMiss(key);
+                    } else {
+                        fieldSkipList.recordHit(key);
+                    }
+                }
+                if (ipAddress != null) {
+                    addressFields.add(new AddressField(message, key, ipAddress));
+                    if (addresses != null) {
+                        addresses.add(ipAddress);
+                    }
+                }
             }
         }
+        markScanned(scanned, attempts, addressFields.size() - found);
+    }
 
-        return false;
+    private void markScanned(int scanned, int attempts, int hits) {
+        fieldsScanned.mark(scanned);
+        if (attempts > 0) {
+            parseAttempts.mark(attempts);
+        }
+        if (hits > 0) {
+            parseHits.mark(hits);
+        }
+    }
+
+    private static boolean isParseable(@Nullable Object fieldValue) {
+        return fieldValue instanceof String || fieldValue instanceof InetAddress;
+    }
+
+    @Nullable
+    private IpAddressKey parseIpAddress(Object fieldValue) {
+        final long start = startTiming(parseTime);
+        try {
+            return getIpAddress(fieldValue);
+        } finally {
+            stopTiming(parseTime, start);
+        }
+    }
+
+    private boolean isCandidateField(String key) {
+        return !key.startsWith(INTERNAL_FIELD_PREFIX) && !excludeFields.contains(key);
+    }
+
+    private void addLocationFields(Message message, String key, GeoLocationInformation locationInformation) {
+        final DerivedFieldNames fieldNames = derivedFieldNames(key);
+        // We will store the coordinates as a "lat,long" string
+        if (!Double.isNaN(locationInformation.latitude()) && !Double.isNaN(locationInformation.longitude())) {
+            message.addField(fieldNames.geolocation, coordinateFormatter.format(locationInformation.latitude(), locationInformation.longitude()));
+            if (geohashPrecisions.length > 0) {
+                // Shorter geohashes are prefixes of the longest one
+                final String geohash = Geohash.encode(locationInformation.latitude(), locationInformation.longitude(),
+                        geohashPrecisions[geohashPrecisions.length - 1]);
+                for (int i = 0; i < geohashPrecisions.length; i++) {
+                    message.addField(fieldNames.geohashes[i], geohash.substring(0, geohashPrecisions[i]));
+                }
+            }
+        }
+        message.addField(fieldNames.countryCode, locationInformation.countryIsoCode());
+        if (locationInformation.cityName() != null) {
+            message.addField(fieldNames.cityName, locationInformation.cityName());
+        }
+        fieldsWritten.mark();
+        fieldNames.writes.increment();
+    }
+
+    private DerivedFieldNames derivedFieldNames(String key) {
+        final DerivedFieldNames fieldNames = derivedFieldNames.get(key);
+        if (fieldNames != null) {
+            return fieldNames;
+        }
+
+        final DerivedFieldNames newFieldNames = new DerivedFieldNames(key, geohashPrecisions, statistics.fieldWrites(key));
+        if (derivedFieldNames.size() < MAX_DERIVED_FIELD_NAMES) {
+            derivedFieldNames.putIfAbsent(key, newFieldNames);
+        }
+        return newFieldNames;
     }
 
     @VisibleForTesting
     Optional<GeoLocationInformation> extractGeoLocationInformation(Object fieldValue) {
-        final InetAddress ipAddress;
+        final IpAddressKey ipAddress = getIpAddress(fieldValue);
+        if (ipAddress == null) {
+            return Optional.empty();
+        }
+
+        return resolveGeoLocationInformation(ipAddress);
+    }
+
+    @Nullable
+    private IpAddressKey getIpAddress(Object fieldValue) {
         if (fieldValue instanceof InetAddress) {
-            ipAddress = (InetAddress) fieldValue;
+            return IpAddressKey.forInetAddress((InetAddress) fieldValue);
         } else if (fieldValue instanceof String) {
-            ipAddress = getIpFromFieldValue((String) fieldValue);
+            return IpAddressParser.parse((String) fieldValue);
         } else {
-            ipAddress = null;
+            return null;
+        }
+    }
+
+    private Optional<GeoLocationInformation> resolveGeoLocationInformation(IpAddressKey ipAddress) {
+        if (ReservedAddresses.isReserved(ipAddress)) {
+            reservedAddresses.mark();
+            return Optional.empty();
+        }
+        if (locationCache != null) {
+            final GeoLocationInformation cachedLocation = locationCache.getIfPresent(ipAddress);
+            if (cachedLocation != null) {
+                cacheHits.mark();
+                markUsed(ipAddress);
+                return Optional.of(cachedLocation);
+            }
+            cacheMisses.mark();
+        }
+        if (negativeCache != null && negativeCache.getIfPresent(ipAddress) != null) {
+            negativeCacheHits.mark();
+            return Optional.empty();
+        }
+
+        final Optional<GeoLocationInformation> geoLocationInformation = lookupGeoLocationInformation(ipAddress);
+        if (locationCache != null && geoLocationInformation.isPresent()) {
+            locationCache.put(ipAddress, geoLocationInformation.get());
+            markUsed(ipAddress);
+        }
+
+        return geoLocationInformation;
+    }
+
+    /**
+     * Moves the address to the front of the addresses which get written to the snapshot. Reading an address which
+     * is already there only records the access, it's cheaper than writing it again.
+     */
+    private void markUsed(IpAddressKey ipAddress) {
+        if (snapshotAddresses != null && snapshotAddresses.getIfPresent(ipAddress) == null) {
+            snapshotAddresses.put(ipAddress, Boolean.TRUE);
         }
+    }
+
+    private Optional<GeoLocationInformation> lookupGeoLocationInformation(IpAddressKey ipAddress) {
+        final long start = startTiming(resolveTime);
+        try {
+            if (networkReader == null) {
+                // The database couldn't be opened
+                return Optional.empty();
+            }
+
+            if (rangeIndex != null && ipAddress.ipv4()) {
+                return lookupInRangeIndex(ipAddress);
+            }
+            if (!decodeLocations && networkCache == null) {
+                // The MaxMind reader walks the search tree itself, the built-in reader would only walk it a second
+                // time to find the network block for the network cache
+                return Optional.ofNullable(countryMode ? readCountry(ipAddress) : readLocation(ipAddress));
+            }
+
+            final long result = ipAddress.findIn(networkReader);
+            if (!MmdbReader.isFound(result)) {
+                recordNotFound(ipAddress);
+                return Optional.empty();
+            }
 
-        GeoLocationInformation geoLocationInformation = null;
-        if (ipAddress != null) {
-            try (Timer.Context ignored = resolveTime.time()) {
-                final CityResponse response = databaseReader.city(ipAddress);
-                final Location location = response.getLocation();
-                final Country country = response.getCountry();
-                final City city = response.getCity();
+            final NetworkBlock networkBlock = networkCache != null ? ipAddress.networkBlock(MmdbReader.prefixLength(result)) : null;
+            if (networkBlock != null) {
+                final GeoLocationInformation cachedLocation = networkCache.getIfPresent(networkBlock);
+                if (cachedLocation != null) {
+                    return Optional.of(cachedLocation);
+                }
+            }
 
-                geoLocationInformation = GeoLocationInformation.create(
-                        location.getLatitude(), location.getLongitude(),
-                        country.getGeoNameId() != null ? country.getIsoCode() : "N/A",
-                        city.getGeoNameId() != null ? city.getName() : "N/A" // calling to .getName() may throw a NPE
-                );
-            } catch (Exception e) {
-                LOG.debug("Could not get location from IP {}", ipAddress.getHostAddress(), e);
+            final GeoLocationInformation geoLocationInformation;
+            if (countryMode) {
+                geoLocationInformation = decodeLocations ? decodeCountry(result) : readCountry(ipAddress);
+            } else {
+                geoLocationInformation = decodeLocations ? decodeLocation(result) : readLocation(ipAddress);
             }
+            if (networkBlock != null && geoLocationInformation != null) {
+                networkCache.put(networkBlock, geoLocationInformation);
+            }
+
+            return Optional.ofNullable(geoLocationInformation);
+        } catch (AddressNotFoundException e) {
+            recordNotFound(ipAddress);
+        } catch (Exception e) {
+            LOG.debug("Could not get location from IP {}", ipAddress, e);
+        } finally {
+            stopTiming(resolveTime, start);
+        }
+
+        return Optional.empty();
+    }
+
+    private void recordNotFound(IpAddressKey ipAddress) {
+        notFound.mark();
+        if (negativeCache != null) {
+            negativeCache.put(ipAddress, Boolean.TRUE);
+        }
+    }
+
+    private Optional<GeoLocationInformation> lookupInRangeIndex(IpAddressKey ipAddress) {
+        final int location = rangeIndex.find((int) ipAddress.low());
+        if (location < 0) {
+            recordNotFound(ipAddress);
+            return Optional.empty();
         }
 
-        return Optional.ofNullable(geoLocationInformation);
+        final String countryIsoCode = rangeIndex.countryIsoCode(location);
+        final String cityName = rangeIndex.cityName(location);
+        return Optional.of(GeoLocationInformation.create(
+                rangeIndex.latitude(location), rangeIndex.longitude(location),
+                countryIsoCode != null ? countryIsoCode : "N/A",
+                cityName != null ? cityName : "N/A"
+        ));
+    }
+
+    /**
+     * Reads the location of the record found in the search tree with the built-in decoder.
+     */
+    @Nullable
+    private GeoLocationInformation decodeLocation(long result) throws IOException {
+        final LocationRecord record = networkReader.readLocation(result);
+        if (record == null) {
+            return null;
+        }
+
+        return GeoLocationInformation.create(
+                record.latitude(), record.longitude(),
+                record.countryIsoCode() != null ? record.countryIsoCode() : "N/A",
+                record.cityName() != null ? record.cityName() : "N/A"
+        );
+    }
+
+    /**
+     * Reads the location of the given address with the MaxMind reader.
+     */
+    private GeoLocationInformation readLocation(IpAddressKey ipAddress) throws IOException, GeoIp2Exception {
+        final CityResponse response = databaseReader.city(ipAddress.toInetAddress());
+        final Location location = response.getLocation();
+        final Country country = response.getCountry();
+        final City city = response.getCity();
+
+        return GeoLocationInformation.create(
+                location.getLatitude(), location.getLongitude(),
+                country.getGeoNameId() != null ? country.getIsoCode() : "N/A",
+                city.getGeoNameId() != null ? city.getName() : "N/A" // calling to .getName() may throw a NPE
+        );
+    }
+
+    /**
+     * Reads the country of the record found in the search tree with the built-in decoder.
+     */
+    @Nullable
+    private GeoLocationInformation decodeCountry(long result) throws IOException {
+        final Object countryIsoCode = networkReader.readProjection(result, COUNTRY_PROJECTION).get(COUNTRY_ISO_CODE_PATH);
+        return countryIsoCode instanceof String ? countryLocation((String) countryIsoCode) : null;
+    }
+
+    /**
+     * Reads the country of the given address with the MaxMind reader.
+     */
+    @Nullable
+    private GeoLocationInformation readCountry(IpAddressKey ipAddress) throws IOException, GeoIp2Exception {
+        // The MaxMind reader only returns country responses for Country databases
+        final AbstractCountryResponse response = networkReader.databaseType().contains("City")
+                ? databaseReader.city(ipAddress.toInetAddress()) : databaseReader.country(ipAddress.toInetAddress());
+        final String countryIsoCode = response.getCountry().getIsoCode();
+        return countryIsoCode != null ? countryLocation(countryIsoCode) : null;
+    }
+
+    private GeoLocationInformation countryLocation(String countryIsoCode) {
+        // All addresses of a country share the same instance
+        return countryLocations.computeIfAbsent(countryIsoCode, isoCode -> GeoLocationInformation.create(
+                countryCentroids.latitude(isoCode), countryCentroids.longitude(isoCode), isoCode, null));
     }
 
     @Nullable
     @VisibleForTesting
     InetAddress getIpFromFieldValue(String fieldValue) {
-        try {
-            return InetAddresses.forString(fieldValue.trim());
-        } catch (IllegalArgumentException e) {
-            // Do nothing, field is not an IP
+        final IpAddressKey ipAddress = IpAddressParser.parse(fieldValue);
+        return ipAddress == null ? null : ipAddress.toInetAddress();
+    }
+
+    private static class AddressField {
+        private final Message message;
+        private final String key;
+        private final IpAddressKey ipAddress;
+
+        private AddressField(Message message, String key, IpAddressKey ipAddress) {
+            this.message = message;
+            this.key = key;
+            this.ipAddress = ipAddress;
         }
+    }
+
+    /**
+     * Names of the fields added for an address field, which would otherwise be concatenated for every message.
+     */
+    private static class DerivedFieldNames {
+        private final String geolocation;
+        private final String countryCode;
+        private final String cityName;
+        private final String[] geohashes;
+        private final LongAdder writes;
 
-        return null;
+        private DerivedFieldNames(String key, int[] geohashPrecisions, LongAdder writes) {
+            this.writes = writes;
+            this.geolocation = key + "_geolocation";
+            this.countryCode = key + "_country_code";
+            this.cityName = key + "_city_name";
+            this.geohashes = new String[geohashPrecisions.length];
+            for (int i = 0; i < geohashPrecisions.length; i++) {
+                geohashes[i] = key + "_geohash_" + geohashPrecisions[i];
+            }
+        }
     }
 
     @AutoValue
     static abstract class GeoLocationInformation {
+        // Country and city names repeat across many locations, the cached locations and the message fields share them
+        private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+        /**
+         * {@link Double#NaN} if the location is unknown
+         */
         public abstract double latitude();
 
+        /**
+         * {@link Double#NaN} if the location is unknown
+         */
         public abstract double longitude();
 
         public abstract String countryIsoCode();
 
+        /**
+         * {@code null} if the address has only been resolved to its country
+         */
+        @Nullable
         public abstract String cityName();
 
-        public static GeoLocationInformation create(double latitude, double longitude, String countryIsoCode, String cityName) {
-            return new AutoValue_GeoIpResolverEngine_GeoLocationInformation(latitude, longitude, countryIsoCode, cityName);
+        public static GeoLocationInformation create(double latitude, double longitude, String countryIsoCode, @Nullable String cityName) {
+            return new AutoValue_GeoIpResolverEngine_GeoLocationInformation(latitude, longitude, NAMES.intern(countryIsoCode),
+                    cityName == null ? null : NAMES.intern(cityName));
         }
     }
 }
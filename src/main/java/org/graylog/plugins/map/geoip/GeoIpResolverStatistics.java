@@ -0,0 +1,70 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the resolver engines which don't fit into the metric registry because they are kept per message
+ * field. Shared by all engines, so they survive configuration changes.
+ */
+@Singleton
+public class GeoIpResolverStatistics {
+    // Messages can have arbitrary field names, writes to further fields are counted together
+    private static final int MAX_FIELDS = 1000;
+    static final String OTHER_FIELDS = "_other";
+
+    private final Map<String, LongAdder> fieldWrites = new ConcurrentHashMap<>();
+
+    @Inject
+    public GeoIpResolverStatistics() {
+    }
+
+    /**
+     * Returns the counter of location fields written for the given address field.
+     */
+    LongAdder fieldWrites(String field) {
+        final LongAdder writes = fieldWrites.get(field);
+        if (writes != null) {
+            return writes;
+        }
+        if (fieldWrites.size() >= MAX_FIELDS) {
+            return fieldWrites.computeIfAbsent(OTHER_FIELDS, key -> new LongAdder());
+        }
+        return fieldWrites.computeIfAbsent(field, key -> new LongAdder());
+    }
+
+    /**
+     * Returns how often locations were written for each address field, most frequent fields first.
+     */
+    public Map<String, Long> fieldWrites() {
+        final ImmutableMap.Builder<String, Long> snapshot = ImmutableMap.builder();
+        fieldWrites.entrySet().stream()
+                .map(entry -> Maps.immutableEntry(entry.getKey(), entry.getValue().sum()))
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()))
+                .forEach(snapshot::put);
+        return snapshot.build();
+    }
+}
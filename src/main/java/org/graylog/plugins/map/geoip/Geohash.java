@@ -0,0 +1,127 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Encodes coordinates as <a href="https://en.wikipedia.org/wiki/Geohash">geohashes</a>. Every character of a
+ * geohash narrows down the cell containing the coordinates, so the prefixes of a geohash are the cells containing
+ * it on coarser zoom levels.
+ */
+public final class Geohash {
+    public static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    private static final int[] BASE32_INDEX = new int[128];
+
+    static {
+        Arrays.fill(BASE32_INDEX, -1);
+        for (int i = 0; i < BASE32.length; i++) {
+            BASE32_INDEX[BASE32[i]] = i;
+        }
+    }
+
+    private Geohash() {
+    }
+
+    /**
+     * @param precision number of characters of the geohash, between 1 and {@link #MAX_PRECISION}
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        checkArgument(precision >= 1 && precision <= MAX_PRECISION, "Invalid geohash precision: %s", precision);
+
+        double minLatitude = -90.0, maxLatitude = 90.0;
+        double minLongitude = -180.0, maxLongitude = 180.0;
+        final char[] geohash = new char[precision];
+        // Bits alternate between longitude and latitude, starting with longitude
+        boolean longitudeBit = true;
+        for (int i = 0; i < precision; i++) {
+            int index = 0;
+            for (int bit = 0; bit < 5; bit++) {
+                index <<= 1;
+                if (longitudeBit) {
+                    final double middle = (minLongitude + maxLongitude) / 2;
+                    if (longitude >= middle) {
+                        index |= 1;
+                        minLongitude = middle;
+                    } else {
+                        maxLongitude = middle;
+                    }
+                } else {
+                    final double middle = (minLatitude + maxLatitude) / 2;
+                    if (latitude >= middle) {
+                        index |= 1;
+                        minLatitude = middle;
+                    } else {
+                        maxLatitude = middle;
+                    }
+                }
+                longitudeBit = !longitudeBit;
+            }
+            geohash[i] = BASE32[index];
+        }
+
+        return new String(geohash);
+    }
+
+    /**
+     * @return the latitude and longitude of the center of the geohash cell, {@code null} if the given string is
+     * no valid geohash
+     */
+    @Nullable
+    public static double[] decodeCenter(String geohash) {
+        if (geohash.isEmpty() || geohash.length() > MAX_PRECISION) {
+            return null;
+        }
+
+        double minLatitude = -90.0, maxLatitude = 90.0;
+        double minLongitude = -180.0, maxLongitude = 180.0;
+        boolean longitudeBit = true;
+        for (int i = 0; i < geohash.length(); i++) {
+            final char c = geohash.charAt(i);
+            final int index = c < BASE32_INDEX.length ? BASE32_INDEX[c] : -1;
+            if (index < 0) {
+                return null;
+            }
+            for (int bit = 4; bit >= 0; bit--) {
+                final boolean set = ((index >> bit) & 1) == 1;
+                if (longitudeBit) {
+                    final double middle = (minLongitude + maxLongitude) / 2;
+                    if (set) {
+                        minLongitude = middle;
+                    } else {
+                        maxLongitude = middle;
+                    }
+                } else {
+                    final double middle = (minLatitude + maxLatitude) / 2;
+                    if (set) {
+                        minLatitude = middle;
+                    } else {
+                        maxLatitude = middle;
+                    }
+                }
+                longitudeBit = !longitudeBit;
+            }
+        }
+
+        return new double[]{(minLatitude + maxLatitude) / 2, (minLongitude + maxLongitude) / 2};
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.net.InetAddresses;
+import org.graylog.plugins.map.geoip.mmdb.MmdbReader;
+import org.graylog.plugins.map.geoip.mmdb.NetworkBlock;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * An IP address stored as two primitive values, used as cache key and for database lookups.
+ * <p>
+ * IPv4 addresses are stored in the lower 32 bits of {@link #low()}.
+ */
+@AutoValue
+public abstract class IpAddressKey {
+    public abstract boolean ipv4();
+
+    public abstract long high();
+
+    public abstract long low();
+
+    public static IpAddressKey forIpv4(int address) {
+        return new AutoValue_IpAddressKey(true, 0L, address & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Creates the key of an IPv6 address. IPv4-mapped addresses ({@code ::ffff:0:0/96}) are converted to their IPv4
+     * address, like {@link InetAddress} does.
+     */
+    public static IpAddressKey forIpv6(long high, long low) {
+        if (high == 0L && (low >>> 32) == 0xFFFFL) {
+            return forIpv4((int) low);
+        }
+
+        return new AutoValue_IpAddressKey(false, high, low);
+    }
+
+    public static IpAddressKey forInetAddress(InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return forIpv4(((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff));
+        }
+
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xff);
+            low = (low << 8) | (bytes[i + 8] & 0xff);
+        }
+
+        return forIpv6(high, low);
+    }
+
+    /**
+     * Looks up the address in the search tree of the given database.
+     *
+     * @return the packed lookup result, see {@link MmdbReader}
+     */
+    public long findIn(MmdbReader reader) {
+        return ipv4() ? reader.findIpv4((int) low()) : reader.findIpv6(high(), low());
+    }
+
+    /**
+     * Returns the network block of this address for a prefix length as returned by {@link #findIn(MmdbReader)}.
+     */
+    public NetworkBlock networkBlock(int prefixLength) {
+        return ipv4() ? NetworkBlock.forIpv4((int) low(), prefixLength) : NetworkBlock.forIpv6(high(), low(), prefixLength);
+    }
+
+    public InetAddress toInetAddress() {
+        if (ipv4()) {
+            return InetAddresses.fromInteger((int) low());
+        }
+
+        final byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (high() >>> (56 - 8 * i));
+            bytes[i + 8] = (byte) (low() >>> (56 - 8 * i));
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of illegal length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toInetAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import javax.annotation.Nullable;
+
+/**
+ * Parser for textual IPv4 and IPv6 addresses which works directly on the characters of the value. Unlike
+ * {@link com.google.common.net.InetAddresses#forString(String)} it doesn't create substrings, intermediate arrays,
+ * {@link java.net.InetAddress} objects or exceptions, the only allocated object is the resulting key.
+ * <p>
+ * Accepts the same formats as the Guava parser: dotted-quad IPv4 addresses without leading zeros and IPv6 addresses
+ * with optional "::" compression and embedded IPv4 address, without scope IDs. Leading and trailing whitespace is
+ * ignored.
+ */
+public final class IpAddressParser {
+    // "::" is the shortest, an IPv4-mapped IPv6 address like "ffff:ffff:ffff:ffff:ffff:ffff:255.255.255.255" the longest
+    private static final int MIN_LENGTH = 2;
+    private static final int MAX_LENGTH = 45;
+
+    private IpAddressParser() {
+    }
+
+    /**
+     * Parses the given value.
+     *
+     * @return the parsed address or {@code null} if the value isn't an IP address
+     */
+    @Nullable
+    public static IpAddressKey parse(CharSequence value) {
+        // Same boundaries as String#trim()
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        final int length = end - start;
+        if (length < MIN_LENGTH || length > MAX_LENGTH) {
+            return null;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == ':') {
+                return parseIpv6(value, start, end);
+            }
+        }
+
+        final long ipv4 = parseIpv4(value, start, end);
+        return ipv4 < 0 ? null : IpAddressKey.forIpv4((int) ipv4);
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address.
+     *
+     * @return the address as unsigned value or -1 if the value isn't an IPv4 address
+     */
+    private static long parseIpv4(CharSequence value, int start, int end) {
+        long address = 0;
+        int octets = 0;
+        int i = start;
+        while (true) {
+            final int octetStart = i;
+            int octet = 0;
+            while (i < end && i - octetStart < 3) {
+                final char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                octet = octet * 10 + (c - '0');
+                i++;
+            }
+
+            final int digits = i - octetStart;
+            // Leading zeros are ambiguous (octal or decimal?), so they are rejected
+            if (digits == 0 || octet > 255 || (digits > 1 && value.charAt(octetStart) == '0')) {
+                return -1;
+            }
+            address = (address << 8) | octet;
+            octets++;
+
+            if (i == end) {
+                return octets == 4 ? address : -1;
+            }
+            if (octets == 4 || value.charAt(i) != '.') {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    @Nullable
+    private static IpAddressKey parseIpv6(CharSequence value, int start, int end) {
+        // Groups before and after the "::" compression
+        long headHigh = 0;
+        long headLow = 0;
+        int headGroups = 0;
+        long tailHigh = 0;
+        long tailLow = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (value.charAt(i) == ':') {
+            if (value.charAt(i + 1) != ':') {
+                return null;
+            }
+            compressed = true;
+            i += 2;
+        }
+
+        while (i < end) {
+            final int partStart = i;
+            int group = 0;
+            while (i < end && i - partStart <= 4) {
+                final int digit = hexValue(value.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                group = (group << 4) | digit;
+                i++;
+            }
+
+            final long partValue;
+            final int partBits;
+            if (i < end && value.charAt(i) == '.') {
+                // An embedded IPv4 address has to be the last part of the address
+                final long ipv4 = parseIpv4(value, partStart, end);
+                if (ipv4 < 0) {
+                    return null;
+                }
+                partValue = ipv4;
+                partBits = 32;
+                i = end;
+            } else {
+                final int digits = i - partStart;
+                if (digits == 0 || digits > 4) {
+                    return null;
+                }
+                partValue = group;
+                partBits = 16;
+            }
+
+            if (compressed) {
+                tailHigh = (tailHigh << partBits) | (tailLow >>> (64 - partBits));
+                tailLow = (tailLow << partBits) | partValue;
+                tailGroups += partBits / 16;
+            } else {
+                headHigh = (headHigh << partBits) | (headLow >>> (64 - partBits));
+                headLow = (headLow << partBits) | partValue;
+                headGroups += partBits / 16;
+            }
+            if (headGroups + tailGroups > 8) {
+                return null;
+            }
+
+            if (i == end) {
+                break;
+            }
+            if (value.charAt(i) != ':' || ++i == end) {
+                // Invalid character or single trailing colon
+                return null;
+            }
+            if (value.charAt(i) == ':') {
+                if (compressed) {
+                    return null;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        // "::" has to replace at least one group
+        final int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) {
+            return null;
+        }
+
+        // Move the groups before the "::" to the top of the address, the ones after it are already at the bottom
+        final int shift = 16 * (8 - headGroups);
+        final long high;
+        final long low;
+        if (shift == 0) {
+            high = headHigh;
+            low = headLow;
+        } else if (shift < 64) {
+            high = (headHigh << shift) | (headLow >>> (64 - shift));
+            low = headLow << shift;
+        } else if (shift < 128) {
+            high = headLow << (shift - 64);
+            low = 0;
+        } else {
+            high = 0;
+            low = 0;
+        }
+
+        return IpAddressKey.forIpv6(high | tailHigh, low | tailLow);
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+
+        return -1;
+    }
+}
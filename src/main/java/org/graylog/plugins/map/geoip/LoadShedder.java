@@ -0,0 +1,130 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Decides when {@link GeoIpResolverEngine} sheds load during processing spikes. A batch which took longer than the
+ * time budget, or a collapse of the location cache hit rate, switches the engine into degraded mode: only cached
+ * addresses and a sample of the other ones get resolved, so a backlog isn't made worse by database lookups.
+ * <p>
+ * Degraded batches are cheap, so they can't tell whether full resolution would fit into the budget again. The engine
+ * returns to full resolution once no batch has exceeded the budget for the recovery time, and degrades again if the
+ * next batches still don't fit.
+ * <p>
+ * Instances are thread-safe.
+ */
+class LoadShedder {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadShedder.class);
+
+    static final long RECOVERY_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // Hit rates of fewer cache lookups are too noisy to act on
+    private static final long MIN_CACHE_LOOKUPS = 100;
+
+    private final long budgetNanos;
+    private final double minCacheHitRate;
+    private final int sampleInterval;
+    private final Ticker ticker;
+    private final Meter cacheHits;
+    private final Meter cacheMisses;
+    private final Meter degradations;
+    private final AtomicLong lastCacheHits = new AtomicLong();
+    private final AtomicLong lastCacheMisses = new AtomicLong();
+    private volatile boolean degraded;
+    private volatile long degradedSince;
+
+    /**
+     * @param budgetNanos     maximum processing time of a batch, zero disables the budget
+     * @param minCacheHitRate lowest acceptable location cache hit rate between two batches, zero disables the check
+     * @param sampleInterval  one in this many uncached addresses still gets resolved while degraded, zero resolves
+     *                        only cached addresses
+     */
+    LoadShedder(long budgetNanos, double minCacheHitRate, int sampleInterval, Ticker ticker, MetricRegistry metricRegistry) {
+        this.budgetNanos = budgetNanos;
+        this.minCacheHitRate = minCacheHitRate;
+        this.sampleInterval = sampleInterval;
+        this.ticker = ticker;
+        this.cacheHits = metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits"));
+        this.cacheMisses = metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheMisses"));
+        this.degradations = metricRegistry.meter(name(GeoIpResolverEngine.class, "degradations"));
+        this.lastCacheHits.set(cacheHits.getCount());
+        this.lastCacheMisses.set(cacheMisses.getCount());
+
+        // Replace the gauge of a previous engine, it would keep reporting its state otherwise
+        final String degradedName = name(GeoIpResolverEngine.class, "degraded");
+        metricRegistry.remove(degradedName);
+        metricRegistry.register(degradedName, (Gauge<Boolean>) this::isDegraded);
+    }
+
+    /**
+     * Returns whether only cached addresses and samples of the other ones should be resolved.
+     */
+    boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * Returns whether an uncached address should be resolved anyway while degraded. The samples keep the cache
+     * filling up, so the hit rate can recover.
+     */
+    boolean sampleMiss() {
+        return sampleInterval > 0 && ThreadLocalRandom.current().nextInt(sampleInterval) == 0;
+    }
+
+    /**
+     * Records the processing time of a batch and updates the mode for the following batches.
+     */
+    void recordBatch(long elapsedNanos) {
+        final long hits = cacheHits.getCount();
+        final long misses = cacheMisses.getCount();
+        final long batchHits = hits - lastCacheHits.getAndSet(hits);
+        final long batchMisses = misses - lastCacheMisses.getAndSet(misses);
+
+        final boolean overBudget = budgetNanos > 0 && elapsedNanos > budgetNanos;
+        final boolean hitRateCollapsed = minCacheHitRate > 0 && batchHits + batchMisses >= MIN_CACHE_LOOKUPS
+                && batchHits < minCacheHitRate * (batchHits + batchMisses);
+        final long now = ticker.read();
+        if (overBudget || hitRateCollapsed) {
+            degradedSince = now;
+            if (!degraded) {
+                degraded = true;
+                degradations.mark();
+                LOG.info("Only resolving cached addresses, batch took {} ms with a cache hit rate of {}%",
+                        TimeUnit.NANOSECONDS.toMillis(elapsedNanos), hitRate(batchHits, batchMisses));
+            }
+        } else if (degraded && now - degradedSince >= RECOVERY_NANOS) {
+            degraded = false;
+            LOG.info("Resolving all addresses again");
+        }
+    }
+
+    private static long hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 100 : 100 * hits / (hits + misses);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.graylog.plugins.map.geoip.GeoIpResolverEngine.GeoLocationInformation;
+import org.graylog.plugins.map.geoip.mmdb.MmdbReader;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot file of the locations cached by {@link GeoIpResolverEngine}, so a restarted node doesn't have to resolve
+ * all of its busiest addresses again. Every distinct location is only stored once, addresses refer to it by index.
+ * <p>
+ * Snapshots are tagged with the build epoch and type of the database they have been resolved with, snapshots of
+ * other database versions are ignored.
+ */
+class LocationCacheSnapshot {
+    // File format: header, distinct locations, addresses with the index of their location
+    private static final int MAGIC = 0x47494c43; // "GILC"
+    private static final int VERSION = 1;
+
+    private LocationCacheSnapshot() {
+    }
+
+    /**
+     * Writes the given locations to the snapshot file. The file is replaced atomically, readers never see a partial
+     * snapshot.
+     */
+    static void write(Path path, MmdbReader reader, boolean countryMode, Map<IpAddressKey, GeoLocationInformation> locations) throws IOException {
+        final Map<GeoLocationInformation, Integer> locationIndexes = new LinkedHashMap<>();
+        for (GeoLocationInformation location : locations.values()) {
+            locationIndexes.putIfAbsent(location, locationIndexes.size());
+        }
+
+        final Path absolutePath = path.toAbsolutePath();
+        final Path tempFile = Files.createTempFile(absolutePath.getParent(), absolutePath.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(reader.buildEpoch());
+                out.writeUTF(reader.databaseType());
+                out.writeBoolean(countryMode);
+                out.writeInt(locationIndexes.size());
+                for (GeoLocationInformation location : locationIndexes.keySet()) {
+                    out.writeDouble(location.latitude());
+                    out.writeDouble(location.longitude());
+                    out.writeUTF(location.countryIsoCode());
+                    out.writeBoolean(location.cityName() != null);
+                    if (location.cityName() != null) {
+                        out.writeUTF(location.cityName());
+                    }
+                }
+                out.writeInt(locations.size());
+                for (Map.Entry<IpAddressKey, GeoLocationInformation> entry : locations.entrySet()) {
+                    final IpAddressKey address = entry.getKey();
+                    out.writeBoolean(address.ipv4());
+                    if (address.ipv4()) {
+                        out.writeInt((int) address.low());
+                    } else {
+                        out.writeLong(address.high());
+                        out.writeLong(address.low());
+                    }
+                    out.writeInt(locationIndexes.get(entry.getValue()));
+                }
+            }
+            Files.move(tempFile, absolutePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Reads the locations of the snapshot file.
+     *
+     * @return the cached locations, or {@code null} if the snapshot belongs to another database version or mode
+     */
+    @Nullable
+    static Map<IpAddressKey, GeoLocationInformation> read(Path path, MmdbReader reader, boolean countryMode) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid location cache snapshot " + path);
+            }
+            if (in.readLong() != reader.buildEpoch() || !in.readUTF().equals(reader.databaseType())
+                    || in.readBoolean() != countryMode) {
+                return null;
+            }
+
+            final int locationCount = in.readInt();
+            final List<GeoLocationInformation> locations = new ArrayList<>(Math.max(0, locationCount));
+            for (int i = 0; i < locationCount; i++) {
+                final double latitude = in.readDouble();
+                final double longitude = in.readDouble();
+                final String countryIsoCode = in.readUTF();
+                final String cityName = in.readBoolean() ? in.readUTF() : null;
+                locations.add(GeoLocationInformation.create(latitude, longitude, countryIsoCode, cityName));
+            }
+
+            final int addressCount = in.readInt();
+            final Map<IpAddressKey, GeoLocationInformation> addresses = new HashMap<>(Math.max(16, addressCount * 2));
+            for (int i = 0; i < addressCount; i++) {
+                final IpAddressKey address = in.readBoolean()
+                        ? IpAddressKey.forIpv4(in.readInt()) : IpAddressKey.forIpv6(in.readLong(), in.readLong());
+                final int locationIndex = in.readInt();
+                if (locationIndex < 0 || locationIndex >= locations.size()) {
+                    throw new IOException("Invalid location cache snapshot " + path);
+                }
+                addresses.put(address, locations.get(locationIndex));
+            }
+
+            return addresses;
+        }
+    }
+}
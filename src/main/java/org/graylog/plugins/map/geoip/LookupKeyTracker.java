@@ -0,0 +1,108 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Remembers the keys which have been resolved by a lookup adapter, so a database reload only needs to purge the
+ * cached results which have actually changed instead of the whole lookup cache. The adapter only sees cache misses,
+ * so every key in the lookup cache has been tracked.
+ * <p>
+ * Keys expire like the entries of the lookup cache, and the number of keys is capped like its size. A key which gets
+ * evicted to make room for others may still be cached, so it's purged from the lookup cache right away. If that isn't
+ * possible, the tracker overflows and can't tell anymore which keys are cached, so the whole cache has to be purged
+ * on the next reload.
+ * <p>
+ * Instances are thread-safe.
+ */
+class LookupKeyTracker {
+    private final Cache<Object, Boolean> keys;
+    private final boolean disabled;
+    private volatile boolean overflowed;
+
+    /**
+     * @param maxKeys          maximum number of tracked keys, zero disables tracking
+     * @param expireAfterWrite time after which keys are forgotten, zero keeps them until they're evicted
+     * @param purgeEvicted     purges an evicted key from the lookup cache, returns {@code false} if it can't
+     */
+    LookupKeyTracker(long maxKeys, long expireAfterWrite, TimeUnit unit, Predicate<Object> purgeEvicted) {
+        this(maxKeys, expireAfterWrite, unit, purgeEvicted, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    LookupKeyTracker(long maxKeys, long expireAfterWrite, TimeUnit unit, Predicate<Object> purgeEvicted, Ticker ticker) {
+        final RemovalListener<Object, Boolean> evictionListener = notification -> {
+            // Expired keys have expired from the lookup cache as well
+            if (notification.getCause() == RemovalCause.SIZE && !purgeEvicted.test(notification.getKey())) {
+                overflowed = true;
+            }
+        };
+        final CacheBuilder<Object, Boolean> cacheBuilder = CacheBuilder.newBuilder()
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .maximumSize(maxKeys)
+                .ticker(ticker)
+                .removalListener(evictionListener);
+        if (expireAfterWrite > 0) {
+            cacheBuilder.expireAfterWrite(expireAfterWrite, unit);
+        }
+        this.keys = cacheBuilder.build();
+        this.disabled = maxKeys == 0;
+        this.overflowed = disabled;
+    }
+
+    void track(Object key) {
+        if (!overflowed && keys.getIfPresent(key) == null) {
+            keys.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Returns whether keys have been evicted which might still be cached.
+     */
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Returns a live view of the tracked keys.
+     */
+    Set<Object> keys() {
+        return keys.asMap().keySet();
+    }
+
+    void untrack(Object key) {
+        keys.invalidate(key);
+    }
+
+    /**
+     * Forgets all keys after the lookup cache has been purged.
+     */
+    void reset() {
+        keys.invalidateAll();
+        overflowed = disabled;
+    }
+}
@@ -1,48 +1,64 @@
 package org.graylog.plugins.map.geoip;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
-import com.google.common.net.InetAddresses;
 import com.google.inject.assistedinject.Assisted;
+import com.maxmind.db.InvalidDatabaseException;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.AddressNotFoundException;
 import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.model.CountryResponse;
 import com.maxmind.geoip2.record.Country;
 import com.maxmind.geoip2.record.Location;
+import com.maxmind.geoip2.record.Traits;
 import org.graylog.autovalue.WithBeanGetter;
 import org.graylog.plugins.map.config.DatabaseType;
+import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog.plugins.map.geoip.mmdb.MmdbReader;
+import org.graylog.plugins.map.geoip.mmdb.NetworkBlock;
+import org.graylog.plugins.map.geoip.mmdb.RecordProjection;
 import org.graylog2.plugin.lookup.LookupCachePurge;
 import org.graylog2.plugin.lookup.LookupDataAdapter;
 import org.graylog2.plugin.lookup.LookupDataAdapterConfiguration;
 import org.graylog2.plugin.lookup.LookupResult;
-import org.graylog2.plugin.utilities.FileInfo;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -51,42 +67,140 @@ public class MaxmindDataAdapter extends LookupDataAdapter {
     private static final Logger LOG = getLogger(MaxmindDataAdapter.class);
 
     public static final String NAME = "maxmind_geoip";
+    private static final String NETWORK_CACHE_METRIC_PREFIX = MetricRegistry.name(MaxmindDataAdapter.class, "networkCache");
+    // Result fields which aren't read from the database record
+    private static final String COORDINATES_FIELD = "coordinates";
+    private static final String IP_ADDRESS_FIELD = "traits.ip_address";
+    private static final String LATITUDE_PATH = "location.latitude";
+    private static final String LONGITUDE_PATH = "location.longitude";
+    private static final String COUNTRY_ISO_CODE_PATH = "country.iso_code";
     private final Config config;
-    private final AtomicReference<DatabaseReader> databaseReader = new AtomicReference<>();
-    private FileInfo fileInfo;
+    private final GeoIpDatabaseRegistry databaseRegistry;
+    private final SwappableReader<GeoIpDatabase> database = new SwappableReader<>();
+    private final AtomicBoolean purgePending = new AtomicBoolean();
+    private final AtomicBoolean resolvedWithoutDatabase = new AtomicBoolean();
+    private final CountDownLatch databaseLoaded = new CountDownLatch(1);
+    private final LookupKeyTracker keyTracker;
+    private final Counter cacheKeysKept;
+    private final Counter cacheKeysPurged;
+    private final Counter cacheKeysEvicted;
+    private final Counter cacheFullPurges;
+    @Nullable
+    private volatile DatabaseFileWatcher fileWatcher;
+    private final ScheduledExecutorService scheduler;
+    @Nullable
+    private volatile ScheduledFuture<?> databaseLoad;
+    @Nullable
+    private volatile LookupCachePurge cachePurge;
+    // Guarded by this
+    @Nullable
+    private DatabaseKey rejectedDatabase;
+    private boolean stopped;
+    private final String networkCacheName;
+    @Nullable
+    private final RecordProjection projection;
 
     @Inject
     protected MaxmindDataAdapter(@Assisted("id") String id,
                                  @Assisted("name") String name,
                                  @Assisted LookupDataAdapterConfiguration config,
-                                 MetricRegistry metricRegistry) {
+                                 MetricRegistry metricRegistry,
+                                 GeoIpDatabaseRegistry databaseRegistry,
+                                 @Named("daemonScheduler") ScheduledExecutorService scheduler) {
         super(id, name, config, metricRegistry);
         this.config = (Config) config;
+        this.databaseRegistry = databaseRegistry;
+        this.scheduler = scheduler;
+        // Adapters with the same database type and cache size share the cache of the database
+        this.networkCacheName = "lookupResult:" + this.config.dbType() + ":" + this.config.networkCacheSize()
+                + ":" + this.config.resultFields() + ":" + this.config.compactResults();
+        this.projection = this.config.resultFields().isEmpty() ? null : RecordProjection.of(projectionPaths(this.config));
+        this.keyTracker = new LookupKeyTracker(this.config.trackedCacheKeys(), this.config.trackedCacheKeysExpireAfterWrite(),
+                this.config.trackedCacheKeysExpireAfterWriteUnit(), this::purgeEvictedKey);
+        this.cacheKeysKept = metricRegistry.counter(MetricRegistry.name(MaxmindDataAdapter.class, id, "cacheKeys", "kept"));
+        this.cacheKeysPurged = metricRegistry.counter(MetricRegistry.name(MaxmindDataAdapter.class, id, "cacheKeys", "purged"));
+        this.cacheKeysEvicted = metricRegistry.counter(MetricRegistry.name(MaxmindDataAdapter.class, id, "cacheKeys", "evicted"));
+        this.cacheFullPurges = metricRegistry.counter(MetricRegistry.name(MaxmindDataAdapter.class, id, "cacheFullPurges"));
+
+        // Replace the gauge of a previous instance of the adapter, it would keep reporting its state otherwise
+        final String readyName = MetricRegistry.name(MaxmindDataAdapter.class, id, "ready");
+        metricRegistry.remove(readyName);
+        metricRegistry.register(readyName, (Gauge<Boolean>) () -> database.current() != null);
+    }
+
+    /**
+     * Returns the record paths to decode for the configured result fields. The paths of the single value are always
+     * needed, even if they haven't been requested.
+     */
+    private static Set<String> projectionPaths(Config config) {
+        final Set<String> paths = new LinkedHashSet<>();
+        for (String resultField : config.resultFields()) {
+            if (!COORDINATES_FIELD.equals(resultField) && !IP_ADDRESS_FIELD.equals(resultField)) {
+                paths.add(resultField);
+            }
+        }
+        if (config.dbType() == DatabaseType.MAXMIND_CITY) {
+            paths.add(LATITUDE_PATH);
+            paths.add(LONGITUDE_PATH);
+        } else {
+            paths.add(COUNTRY_ISO_CODE_PATH);
+        }
+
+        return paths;
+    }
+
+    @VisibleForTesting
+    MaxmindDataAdapter(String id, String name, LookupDataAdapterConfiguration config, MetricRegistry metricRegistry,
+                       ScheduledExecutorService scheduler) {
+        this(id, name, config, metricRegistry, new GeoIpDatabaseRegistry(metricRegistry), scheduler);
     }
 
     @Override
     protected void doStart() throws Exception {
         Path path = Paths.get(config.path());
-        fileInfo = FileInfo.forPath(path);
 
         if (!Files.isReadable(path)) {
             LOG.warn("Cannot read database file {}", config.path());
             setError(new IllegalStateException("Cannot read database file " + config.path()));
+            databaseLoaded.countDown();
         } else {
+            // Opening and warming up the database takes a while, the adapter doesn't wait for it to start. Lookups
+            // return empty results or wait for the database until it has been loaded.
+            this.databaseLoad = scheduler.schedule(() -> {
+                try {
+                    reload();
+                } finally {
+                    databaseLoaded.countDown();
+                }
+            }, 0, TimeUnit.SECONDS);
+        }
+
+        if (config.watchFile()) {
             try {
-                this.databaseReader.set(loadReader(path.toFile()));
-            } catch (Exception e) {
-                LOG.warn("Unable to read data base file {}", config.path());
-                setError(e);
+                this.fileWatcher = DatabaseFileWatcher.start(path, DatabaseFileWatcher.DEFAULT_SETTLE_MILLIS, this::reload);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Unable to watch database file {}, checking it every refresh interval instead", config.path(), e);
             }
         }
     }
 
     @Override
     protected void doStop() throws Exception {
-        final DatabaseReader databaseReader = this.databaseReader.get();
-        if (databaseReader != null) {
-            databaseReader.close();
+        final ScheduledFuture<?> load = databaseLoad;
+        if (load != null) {
+            // A load which has already started finishes before the database gets released below
+            load.cancel(false);
+        }
+        // Lookups which wait for a cancelled load give up right away
+        databaseLoaded.countDown();
+        final DatabaseFileWatcher watcher = fileWatcher;
+        if (watcher != null) {
+            watcher.close();
+        }
+        synchronized (this) {
+            stopped = true;
+            // Lookups which are still running finish before the database gets released
+            database.close();
         }
     }
 
@@ -101,52 +215,477 @@ public class MaxmindDataAdapter extends LookupDataAdapter {
 
     @Override
     protected void doRefresh(LookupCachePurge cachePurge) throws Exception {
+        // The refresh service passes the same purge for every refresh, reloads triggered by the file watcher use it
+        this.cachePurge = cachePurge;
+        if (purgePending.getAndSet(false)) {
+            purgeAll(cachePurge);
+        }
+
+        // The file watcher picks up most changes right away, but misses them on network file systems. Checking the
+        // attributes of the file on every refresh catches those without opening the file again.
+        final GeoIpDatabase currentDatabase = database.current();
+        if (currentDatabase != null && !getError().isPresent() && !isDatabaseFileChanged(currentDatabase)) {
+            return;
+        }
+
+        reload();
+    }
+
+    /**
+     * Returns whether the modification time, size or file key of the file the configured path resolves to differ
+     * from the ones of the given database.
+     */
+    private boolean isDatabaseFileChanged(GeoIpDatabase currentDatabase) {
         try {
-            final FileInfo.Change databaseFileCheck = fileInfo.checkForChange();
-            if (!databaseFileCheck.isChanged() && !getError().isPresent()) {
+            return !DatabaseKey.forPath(Paths.get(config.path())).equals(currentDatabase.key());
+        } catch (IOException e) {
+            // Reloading reports the error
+            return true;
+        }
+    }
+
+    /**
+     * Loads the database file if it has changed. The new database is warmed up and verified before it gets swapped
+     * in, lookups keep using the old database in the meantime. A database which fails the verification is rejected
+     * and the old one stays in use.
+     */
+    private synchronized void reload() {
+        if (stopped) {
+            return;
+        }
+
+        final Path path = Paths.get(config.path());
+        final DatabaseKey key;
+        final GeoIpDatabase newDatabase;
+        try {
+            key = DatabaseKey.forPath(path);
+            if (key.equals(rejectedDatabase)) {
+                // Already rejected, the error stays until the file changes again
                 return;
             }
+            // The registry detects changes of the file and only loads it once for all of its consumers
+            newDatabase = databaseRegistry.open(path);
+        } catch (IOException e) {
+            LOG.warn("Unable to load changed database file, leaving old one intact. Error message: {}", e.getMessage());
+            setError(e);
+            return;
+        }
 
-            // file has different attributes, let's reload it
-            LOG.debug("MaxMind database file has changed, reloading it from {}", config.path());
-            final DatabaseReader oldReader = this.databaseReader.get();
-            try {
-                this.databaseReader.set(loadReader(Paths.get(config.path()).toFile()));
-                cachePurge.purgeAll();
-                if (oldReader != null) {
-                    oldReader.close();
-                }
-                fileInfo = databaseFileCheck.fileInfo();
-                clearError();
-            } catch (IOException e) {
-                LOG.warn("Unable to load changed database file, leaving old one intact. Error message: {}", e.getMessage());
-                setError(e);
+        final GeoIpDatabase currentDatabase = database.current();
+        if (currentDatabase != null && currentDatabase.isSameDatabase(newDatabase)) {
+            newDatabase.close();
+            clearError();
+            return;
+        }
+
+        LOG.debug("MaxMind database file has changed, reloading it from {}", config.path());
+        try {
+            warmUp(newDatabase);
+            verify(newDatabase);
+        } catch (IOException e) {
+            LOG.warn("Rejecting changed database file, leaving old one intact. Error message: {}", e.getMessage());
+            rejectedDatabase = key;
+            newDatabase.close();
+            setError(e);
+            return;
+        }
+
+        // Keeps the old database open until the cached results have been compared with the new one
+        try (SwappableReader.Lease<GeoIpDatabase> oldLease = database.acquire()) {
+            // The old database gets released once all lookups which are still using it have finished
+            this.database.swap(newDatabase);
+            rejectedDatabase = null;
+            clearError();
+
+            final LookupCachePurge purge = cachePurge;
+            if (oldLease == null && !resolvedWithoutDatabase.getAndSet(false)) {
+                // Nothing has been looked up yet, the lookup cache is still empty
+                return;
+            }
+            if (purge == null) {
+                purgePending.set(true);
+            } else if (oldLease == null || keyTracker.isOverflowed()) {
+                purgeAll(purge);
+            } else {
+                purgeChangedResults(oldLease.get(), newDatabase, purge);
             }
-        } catch (IllegalArgumentException iae) {
-            LOG.error("Unable to refresh MaxMind database file: {}", iae.getMessage());
-            setError(iae);
         }
     }
 
-    private DatabaseReader loadReader(File file) throws IOException {
-        return new DatabaseReader.Builder(file).build();
+    /**
+     * Purges a key which the tracker had to evict from the lookup cache, which might still have it, so it doesn't
+     * keep a result which the next reload can't check anymore.
+     */
+    private boolean purgeEvictedKey(Object key) {
+        final LookupCachePurge purge = cachePurge;
+        if (purge == null) {
+            return false;
+        }
+
+        purge.purgeKey(key);
+        cacheKeysEvicted.inc();
+        return true;
+    }
+
+    private void purgeAll(LookupCachePurge purge) {
+        keyTracker.reset();
+        purge.purgeAll();
+        cacheFullPurges.inc();
+    }
+
+    /**
+     * Purges the cached results of all tracked keys whose database record differs between the old and the new
+     * database. Most records stay the same between database updates, so the lookup cache stays warm instead of
+     * sending all lookups to the new database at once.
+     */
+    private void purgeChangedResults(GeoIpDatabase oldDatabase, GeoIpDatabase newDatabase, LookupCachePurge purge) {
+        final MmdbReader oldReader = oldDatabase.mmdbReader();
+        final MmdbReader newReader = newDatabase.mmdbReader();
+        // Many addresses share the same records, so every pair of records only gets compared once
+        final Map<Long, Boolean> comparedRecords = new HashMap<>();
+        long kept = 0;
+        long purged = 0;
+        for (Object key : keyTracker.keys()) {
+            final IpAddressKey ipAddress = key instanceof InetAddress
+                    ? IpAddressKey.forInetAddress((InetAddress) key) : IpAddressParser.parse(key.toString());
+            if (ipAddress != null && !isResultChanged(ipAddress, oldReader, newReader, comparedRecords)) {
+                kept++;
+                continue;
+            }
+
+            purge.purgeKey(key);
+            // The key gets tracked again once it's resolved with the new database
+            keyTracker.untrack(key);
+            purged++;
+        }
+
+        cacheKeysKept.inc(kept);
+        cacheKeysPurged.inc(purged);
+        LOG.debug("Kept {} and purged {} cached lookup results after reloading {}", kept, purged, newDatabase.path());
+    }
+
+    private static boolean isResultChanged(IpAddressKey ipAddress, MmdbReader oldReader, MmdbReader newReader,
+                                           Map<Long, Boolean> comparedRecords) {
+        final long oldResult = ipAddress.findIn(oldReader);
+        final long newResult = ipAddress.findIn(newReader);
+        if (!MmdbReader.isFound(oldResult) || !MmdbReader.isFound(newResult)) {
+            return MmdbReader.isFound(oldResult) != MmdbReader.isFound(newResult);
+        }
+
+        final long records = ((long) MmdbReader.dataOffset(oldResult) << 32) | MmdbReader.dataOffset(newResult);
+        final Boolean changed = comparedRecords.get(records);
+        if (changed != null) {
+            return changed;
+        }
+
+        boolean recordChanged;
+        try {
+            recordChanged = !Objects.equals(oldReader.readRecord(oldResult), newReader.readRecord(newResult));
+        } catch (InvalidDatabaseException e) {
+            recordChanged = true;
+        }
+        comparedRecords.put(records, recordChanged);
+
+        return recordChanged;
+    }
+
+    /**
+     * Loads the pages of a new database into memory and opens the readers used by lookups, so the first lookups
+     * after the swap don't run on a cold database. Opening the MaxMind reader up front also makes sure it maps the
+     * same file as the {@link MmdbReader}, even if the file gets replaced later on.
+     */
+    private void warmUp(GeoIpDatabase newDatabase) throws IOException {
+        final long bytes = newDatabase.mmdbReader().pretouch();
+        if (projection == null && !config.compactResults()) {
+            newDatabase.databaseReader(config.nodeCacheMaxBytes());
+        }
+        LOG.debug("Loaded {} bytes of database file {}", bytes, newDatabase.path());
+    }
+
+    /**
+     * Verifies a new database with lookups of the canary addresses. The database has to be of the configured type,
+     * the records of all canaries have to be readable, and it must not resolve fewer canaries than the current
+     * database, which catches truncated or otherwise broken updates.
+     */
+    private void verify(GeoIpDatabase newDatabase) throws IOException {
+        final MmdbReader reader = newDatabase.mmdbReader();
+        final String expectedType = config.dbType() == DatabaseType.MAXMIND_CITY ? "City" : "Country";
+        if (!reader.databaseType().contains(expectedType)) {
+            throw new InvalidDatabaseException("Expected a " + expectedType + " database but got " + reader.databaseType());
+        }
+
+        final int resolved = canaryLookups(newDatabase, true);
+        final int previouslyResolved;
+        try (SwappableReader.Lease<GeoIpDatabase> lease = database.acquire()) {
+            previouslyResolved = lease == null ? 0 : canaryLookups(lease.get(), false);
+        }
+        if (resolved < previouslyResolved) {
+            throw new InvalidDatabaseException("New database only resolves " + resolved + " of "
+                    + previouslyResolved + " canary addresses resolved by the current database");
+        }
+    }
+
+    private int canaryLookups(GeoIpDatabase database, boolean strict) throws IOException {
+        final MmdbReader reader = database.mmdbReader();
+        int resolved = 0;
+        for (String canaryAddress : config.canaryAddresses()) {
+            final IpAddressKey ipAddress = IpAddressParser.parse(canaryAddress);
+            if (ipAddress == null) {
+                continue;
+            }
+            final long searchResult = ipAddress.findIn(reader);
+            if (!MmdbReader.isFound(searchResult)) {
+                continue;
+            }
+            if (strict) {
+                // Lookups swallow decoding errors, read the complete record to catch broken data sections
+                reader.readRecord(searchResult);
+            }
+            // Bypasses the network cache, which must only contain results of actual lookups
+            if (!resolve(database, searchResult, ipAddress.toInetAddress()).isEmpty()) {
+                resolved++;
+            }
+        }
+
+        return resolved;
     }
 
     @Override
     protected LookupResult doGet(Object key) {
-        final InetAddress addr;
+        final IpAddressKey ipAddress;
         if (key instanceof InetAddress) {
-            addr = (InetAddress) key;
+            ipAddress = IpAddressKey.forInetAddress((InetAddress) key);
         } else {
             // try to convert it somehow
-            try {
-                addr = InetAddresses.forString(key.toString());
-            } catch (IllegalArgumentException e) {
+            ipAddress = IpAddressParser.parse(key.toString());
+            if (ipAddress == null) {
                 LOG.warn("Unable to parse IP address, returning empty result.");
                 return LookupResult.empty();
             }
         }
-        final DatabaseReader reader = this.databaseReader.get();
+        if (ReservedAddresses.isReserved(ipAddress)) {
+            // Private, loopback and other special-purpose addresses are in no database
+            return LookupResult.empty();
+        }
+        // Tracked before the lookup, so keys which are resolved during a reload get compared as well
+        keyTracker.track(key);
+        final InetAddress addr = key instanceof InetAddress ? (InetAddress) key : ipAddress.toInetAddress();
+
+        SwappableReader.Lease<GeoIpDatabase> databaseLease = database.acquire();
+        if (databaseLease == null) {
+            databaseLease = awaitDatabase();
+        }
+        if (databaseLease == null) {
+            LOG.debug("No database loaded, returning empty result for IP address {}.", addr);
+            // The empty result gets cached, it has to be purged once the database has been loaded
+            resolvedWithoutDatabase.set(true);
+            return LookupResult.empty();
+        }
+
+        while (true) {
+            try (SwappableReader.Lease<GeoIpDatabase> lease = databaseLease) {
+                final LookupResult result = doGet(lease.get(), ipAddress, addr);
+                if (database.current() == lease.get()) {
+                    return result;
+                }
+            }
+            // The database has been reloaded during the lookup. Purging the changed results might have checked the
+            // key already, so the result of the old database would stay cached.
+            databaseLease = database.acquire();
+            if (databaseLease == null) {
+                return LookupResult.empty();
+            }
+        }
+    }
+
+    @Nullable
+    private SwappableReader.Lease<GeoIpDatabase> awaitDatabase() {
+        if (config.readyTimeout() <= 0) {
+            return null;
+        }
+
+        try {
+            awaitDatabase(config.readyTimeout(), config.readyTimeoutUnit());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return database.acquire();
+    }
+
+    /**
+     * Waits until the database has been loaded after the start of the adapter.
+     *
+     * @return {@code false} if the database hasn't been loaded within the given time
+     */
+    @VisibleForTesting
+    boolean awaitDatabase(long timeout, TimeUnit unit) throws InterruptedException {
+        return databaseLoaded.await(timeout, unit);
+    }
+
+    private LookupResult doGet(GeoIpDatabase database, IpAddressKey ipAddress, InetAddress addr) {
+        // Searching the tree is cheap, addresses which aren't in the database never reach the MaxMind reader and
+        // its AddressNotFoundException
+        final MmdbReader reader = database.mmdbReader();
+        final long searchResult = ipAddress.findIn(reader);
+        if (!MmdbReader.isFound(searchResult)) {
+            return LookupResult.empty();
+        }
+
+        final NetworkBlockCache<LookupResult> networkCache = config.networkCacheSize() > 0 ? database.networkCache(
+                networkCacheName, config.networkCacheSize(), 0, TimeUnit.SECONDS, NETWORK_CACHE_METRIC_PREFIX) : null;
+        final NetworkBlock networkBlock = networkCache != null
+                ? ipAddress.networkBlock(MmdbReader.prefixLength(searchResult)) : null;
+        if (networkBlock != null) {
+            final LookupResult cachedResult = networkCache.getIfPresent(networkBlock);
+            if (cachedResult != null) {
+                return forAddress(cachedResult, addr);
+            }
+        }
+
+        final LookupResult result = resolve(database, searchResult, addr);
+        if (networkBlock != null && !result.isEmpty()) {
+            networkCache.put(networkBlock, result);
+        }
+
+        return result;
+    }
+
+    private LookupResult resolve(GeoIpDatabase database, long searchResult, InetAddress addr) {
+        final MmdbReader reader = database.mmdbReader();
+        if (projection != null) {
+            return lookupProjection(reader, searchResult, addr);
+        } else if (config.compactResults()) {
+            return lookupCompact(reader, searchResult, addr);
+        } else {
+            return lookup(database, addr);
+        }
+    }
+
+    /**
+     * Decodes only the configured result fields from the database record, without creating MaxMind response objects.
+     */
+    private LookupResult lookupProjection(MmdbReader reader, long searchResult, InetAddress addr) {
+        if (!hasExpectedDatabaseType(reader)) {
+            return LookupResult.empty();
+        }
+
+        final Map<String, Object> values;
+        try {
+            values = reader.readProjection(searchResult, projection);
+        } catch (Exception e) {
+            LOG.warn("Unable to look up data for IP address {}, returning empty result.", addr, e);
+            return LookupResult.empty();
+        }
+
+        final String singleValue;
+        if (config.dbType() == DatabaseType.MAXMIND_CITY) {
+            final Object latitude = values.get(LATITUDE_PATH);
+            final Object longitude = values.get(LONGITUDE_PATH);
+            singleValue = latitude == null || longitude == null ? null : latitude + "," + longitude;
+        } else {
+            final Object isoCode = values.get(COUNTRY_ISO_CODE_PATH);
+            singleValue = isoCode == null ? null : isoCode.toString();
+        }
+
+        final Map<Object, Object> map = new HashMap<>(config.resultFields().size() * 2);
+        for (String resultField : config.resultFields()) {
+            if (COORDINATES_FIELD.equals(resultField)) {
+                if (config.dbType() == DatabaseType.MAXMIND_CITY && singleValue != null) {
+                    map.put(COORDINATES_FIELD, singleValue);
+                }
+            } else if (IP_ADDRESS_FIELD.equals(resultField)) {
+                map.put(IP_ADDRESS_FIELD, addr.getHostAddress());
+            } else {
+                final Object value = values.get(resultField);
+                if (value != null) {
+                    map.put(resultField, value);
+                }
+            }
+        }
+
+        return LookupResult.multi(singleValue, map);
+    }
+
+    /**
+     * Decodes the complete database record into a result of {@link CompactRecord compact records}.
+     */
+    private LookupResult lookupCompact(MmdbReader reader, long searchResult, InetAddress addr) {
+        if (!hasExpectedDatabaseType(reader)) {
+            return LookupResult.empty();
+        }
+
+        final Map<?, ?> record;
+        try {
+            record = reader.readRecord(searchResult);
+        } catch (Exception e) {
+            LOG.warn("Unable to look up data for IP address {}, returning empty result.", addr, e);
+            return LookupResult.empty();
+        }
+        if (record == null) {
+            LOG.debug("No data for IP address {}, returning empty result.", addr);
+            return LookupResult.empty();
+        }
+
+        return config.dbType() == DatabaseType.MAXMIND_CITY
+                ? CompactResults.cityResult(record, addr.getHostAddress())
+                : CompactResults.countryResult(record, addr.getHostAddress());
+    }
+
+    private boolean hasExpectedDatabaseType(MmdbReader reader) {
+        // Same check as the MaxMind reader, City and Country databases must not be mixed up
+        final String expectedType = config.dbType() == DatabaseType.MAXMIND_CITY ? "City" : "Country";
+        if (!reader.databaseType().contains(expectedType)) {
+            LOG.warn("Unable to look up {} data in {} database, returning empty result.", expectedType, reader.databaseType());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adapts a result which has been cached for a whole network block to the given address. The only address
+     * specific part of MaxMind responses is the IP address in the traits record.
+     */
+    private static LookupResult forAddress(LookupResult networkResult, InetAddress addr) {
+        final Map<Object, Object> networkValues = networkResult.multiValue();
+        final Map<Object, Object> map;
+        if (networkValues instanceof CompactRecord) {
+            map = CompactResults.withIpAddress((CompactRecord) networkValues, addr.getHostAddress());
+        } else if (networkValues.containsKey(IP_ADDRESS_FIELD)) {
+            map = new HashMap<>(networkValues);
+            map.put(IP_ADDRESS_FIELD, addr.getHostAddress());
+        } else if (networkValues.get("traits") instanceof Traits) {
+            map = new HashMap<>(networkValues);
+            map.put("traits", withIpAddress((Traits) networkValues.get("traits"), addr.getHostAddress()));
+        } else {
+            return networkResult;
+        }
+
+        return LookupResult.multi((String) networkResult.singleValue(), map);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Traits withIpAddress(Traits traits, String ipAddress) {
+        return new Traits(traits.getAutonomousSystemNumber(), traits.getAutonomousSystemOrganization(),
+                traits.getConnectionType(), traits.getDomain(), ipAddress, traits.isAnonymousProxy(),
+                traits.isLegitimateProxy(), traits.isSatelliteProvider(), traits.getIsp(), traits.getOrganization(),
+                traits.getUserType());
+    }
+
+    private LookupResult lookup(GeoIpDatabase database, InetAddress addr) {
+        final DatabaseReader reader;
+        try {
+            reader = database.databaseReader(config.nodeCacheMaxBytes());
+        } catch (IOException e) {
+            LOG.warn("Unable to open MaxMind database {}, returning empty result.", database.path(), e);
+            return LookupResult.empty();
+        }
+
+        return lookup(reader, addr);
+    }
+
+    private LookupResult lookup(DatabaseReader reader, InetAddress addr) {
         switch (config.dbType()) {
             case MAXMIND_CITY:
                 try {
@@ -220,12 +759,17 @@ public class MaxmindDataAdapter extends LookupDataAdapter {
 
     @VisibleForTesting
     void setDatabaseReader(DatabaseReader databaseReader) {
-        this.databaseReader.set(databaseReader);
+        // Tests restore the previous reader afterwards, so the database must not be released
+        this.database.replace(this.database.current().withDatabaseReader(databaseReader));
     }
 
     @VisibleForTesting
     DatabaseReader getDatabaseReader() {
-        return databaseReader.get();
+        try {
+            return database.current().databaseReader(config.nodeCacheMaxBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public interface Factory extends LookupDataAdapter.Factory<MaxmindDataAdapter> {
@@ -258,9 +802,13 @@ public class MaxmindDataAdapter extends LookupDataAdapter {
     @AutoValue
     @WithBeanGetter
     @JsonAutoDetect
-    @JsonDeserialize(builder = AutoValue_MaxmindDataAdapter_Config.Builder.class)
+    @JsonDeserialize(builder = MaxmindDataAdapter.Config.Builder.class)
     @JsonTypeName(NAME)
     public static abstract class Config implements LookupDataAdapterConfiguration {
+        private static final long DEFAULT_NETWORK_CACHE_SIZE = 10_000L;
+        private static final long DEFAULT_TRACKED_CACHE_KEYS = 100_000L;
+        private static final ImmutableList<String> DEFAULT_CANARY_ADDRESSES = ImmutableList.of(
+                "8.8.8.8", "1.1.1.1", "81.2.69.142", "89.160.20.112", "2001:4860:4860::8888");
 
         @Override
         @JsonProperty(TYPE_FIELD)
@@ -282,8 +830,99 @@ public class MaxmindDataAdapter extends LookupDataAdapter {
         @JsonProperty("check_interval_unit")
         public abstract TimeUnit checkIntervalUnit();
 
+        /**
+         * Maximum number of database network blocks whose lookup results are kept in the adapter. All addresses of
+         * a network block share the same result, so one entry serves a whole block. Zero disables the cache.
+         */
+        @JsonProperty("network_cache_size")
+        @Min(0)
+        public abstract long networkCacheSize();
+
+        /**
+         * Paths of the record values to include in lookup results, like {@code country.iso_code} or
+         * {@code city.names.en}. {@code coordinates} adds the "latitude,longitude" string, {@code traits.ip_address}
+         * the looked up address. Results only contain these values as flat entries keyed by path. An empty list
+         * returns the complete MaxMind response objects.
+         */
+        @JsonProperty("result_fields")
+        public abstract ImmutableList<String> resultFields();
+
+        /**
+         * Whether to return results of {@link CompactRecord compact records} instead of MaxMind response objects.
+         * They serialize to the same JSON, but nested values are maps keyed by the JSON property names, like
+         * {@code country.iso_code}, instead of beans. Has no effect if {@link #resultFields()} are configured.
+         */
+        @JsonProperty("compact_results")
+        public abstract boolean compactResults();
+
+        /**
+         * Memory cap in bytes of the node cache of the MaxMind reader, which keeps decoded database records shared
+         * by many networks. Adapters with the same cap share the cache. Zero disables the cache.
+         */
+        @JsonProperty("node_cache_max_bytes")
+        @Min(0)
+        public abstract long nodeCacheMaxBytes();
+
+        /**
+         * Whether to watch the database file for changes. Changes are picked up right after the file has been
+         * written instead of at the next refresh interval. The file is still checked every refresh interval, because
+         * many network file systems don't report changes.
+         */
+        @JsonProperty("watch_file")
+        public abstract boolean watchFile();
+
+        /**
+         * Addresses which are looked up to verify a changed database file before it replaces the current one. The
+         * new file is rejected if it resolves fewer of them than the current one.
+         */
+        @JsonProperty("canary_addresses")
+        public abstract ImmutableList<String> canaryAddresses();
+
+        /**
+         * Maximum number of resolved keys remembered to purge only the changed results from the lookup cache after a
+         * database reload. Should be the size of the lookup cache, keys which are evicted to make room for others are
+         * purged from the lookup cache. Zero always purges the whole cache.
+         */
+        @JsonProperty("tracked_cache_keys")
+        @Min(0)
+        public abstract long trackedCacheKeys();
+
+        /**
+         * Time after which tracked keys are forgotten, should be the expire after write time of the lookup cache.
+         * Zero keeps them until more keys have been resolved than can be tracked, which is needed if the lookup cache
+         * only expires entries after access.
+         */
+        @JsonProperty("tracked_cache_keys_expire_after_write")
+        @Min(0)
+        public abstract long trackedCacheKeysExpireAfterWrite();
+
+        @JsonProperty("tracked_cache_keys_expire_after_write_unit")
+        public abstract TimeUnit trackedCacheKeysExpireAfterWriteUnit();
+
+        /**
+         * How long lookups wait for the database to be opened after the adapter has started. Lookups return empty
+         * results while the database isn't ready. Zero doesn't wait at all.
+         */
+        @JsonProperty("ready_timeout")
+        @Min(0)
+        public abstract long readyTimeout();
+
+        @JsonProperty("ready_timeout_unit")
+        public abstract TimeUnit readyTimeoutUnit();
+
         public static Config.Builder builder() {
-            return new AutoValue_MaxmindDataAdapter_Config.Builder();
+            return new AutoValue_MaxmindDataAdapter_Config.Builder()
+                    .networkCacheSize(DEFAULT_NETWORK_CACHE_SIZE)
+                    .readyTimeout(0L)
+                    .readyTimeoutUnit(TimeUnit.SECONDS)
+                    .trackedCacheKeys(DEFAULT_TRACKED_CACHE_KEYS)
+                    .trackedCacheKeysExpireAfterWrite(0L)
+                    .trackedCacheKeysExpireAfterWriteUnit(TimeUnit.SECONDS)
+                    .watchFile(true)
+                    .canaryAddresses(DEFAULT_CANARY_ADDRESSES)
+                    .nodeCacheMaxBytes(GeoIpResolverConfig.DEFAULT_NODE_CACHE_MAX_BYTES)
+                    .resultFields(ImmutableList.of())
+                    .compactResults(false);
         }
 
         @Override
@@ -296,12 +935,27 @@ public class MaxmindDataAdapter extends LookupDataAdapter {
             } else if (!Files.isReadable(path)) {
                 errors.put("path", "The file cannot be read.");
             }
+            for (String resultField : resultFields()) {
+                if (resultField.isEmpty() || resultField.startsWith(".") || resultField.endsWith(".") || resultField.contains("..")) {
+                    errors.put("result_fields", "Invalid result field \"" + resultField + "\".");
+                }
+            }
+            for (String canaryAddress : canaryAddresses()) {
+                if (IpAddressParser.parse(canaryAddress) == null) {
+                    errors.put("canary_addresses", "Invalid IP address \"" + canaryAddress + "\".");
+                }
+            }
 
             return errors.isEmpty() ? Optional.empty() : Optional.of(errors);
         }
 
         @AutoValue.Builder
         public abstract static class Builder {
+            @JsonCreator
+            public static Builder create() {
+                return Config.builder();
+            }
+
             @JsonProperty(TYPE_FIELD)
             public abstract Config.Builder type(String type);
 
@@ -317,6 +971,38 @@ public class MaxmindDataAdapter extends LookupDataAdapter {
             @JsonProperty("check_interval_unit")
             public abstract Builder checkIntervalUnit(@Nullable TimeUnit checkIntervalUnit);
 
+            @JsonProperty("network_cache_size")
+            public abstract Builder networkCacheSize(long networkCacheSize);
+
+            @JsonProperty("result_fields")
+            public abstract Builder resultFields(List<String> resultFields);
+
+            @JsonProperty("compact_results")
+            public abstract Builder compactResults(boolean compactResults);
+
+            @JsonProperty("node_cache_max_bytes")
+            public abstract Builder nodeCacheMaxBytes(long nodeCacheMaxBytes);
+
+            @JsonProperty("watch_file")
+            public abstract Builder watchFile(boolean watchFile);
+
+            @JsonProperty("canary_addresses")
+            public abstract Builder canaryAddresses(List<String> canaryAddresses);
+
+            @JsonProperty("tracked_cache_keys")
+            public abstract Builder trackedCacheKeys(long trackedCacheKeys);
+
+            @JsonProperty("tracked_cache_keys_expire_after_write")
+            public abstract Builder trackedCacheKeysExpireAfterWrite(long trackedCacheKeysExpireAfterWrite);
+
+            @JsonProperty("tracked_cache_keys_expire_after_write_unit")
+            public abstract Builder trackedCacheKeysExpireAfterWriteUnit(TimeUnit trackedCacheKeysExpireAfterWriteUnit);
+
+            @JsonProperty("ready_timeout")
+            public abstract Builder readyTimeout(long readyTimeout);
+
+            @JsonProperty("ready_timeout_unit")
+            public abstract Builder readyTimeoutUnit(TimeUnit readyTimeoutUnit);
 
             public abstract Config build();
         }
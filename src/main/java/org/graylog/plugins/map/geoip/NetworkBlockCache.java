@@ -0,0 +1,92 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import org.graylog.plugins.map.geoip.mmdb.NetworkBlock;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Bounded cache for lookup results which holds one entry per network block of a MaxMind database.
+ * <p>
+ * All addresses of a network block share the same database record, so a single database lookup serves all of them.
+ */
+public class NetworkBlockCache<V> {
+    private final Cache<NetworkBlock, V> cache;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    /**
+     * @param maximumSize      maximum number of cached network blocks
+     * @param expireAfterWrite time after which entries get evicted, zero to only evict by size
+     * @param expireUnit       unit of {@code expireAfterWrite}
+     * @param metricRegistry   registry for the hit, miss and eviction meters
+     * @param metricPrefix     name prefix of the meters
+     */
+    public NetworkBlockCache(long maximumSize,
+                             long expireAfterWrite,
+                             TimeUnit expireUnit,
+                             MetricRegistry metricRegistry,
+                             String metricPrefix) {
+        this.hits = metricRegistry.meter(name(metricPrefix, "hits"));
+        this.misses = metricRegistry.meter(name(metricPrefix, "misses"));
+        this.evictions = metricRegistry.meter(name(metricPrefix, "evictions"));
+
+        final RemovalListener<NetworkBlock, V> evictionListener = notification -> {
+            if (notification.wasEvicted()) {
+                evictions.mark();
+            }
+        };
+        final CacheBuilder<NetworkBlock, V> cacheBuilder = CacheBuilder.newBuilder()
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .maximumSize(maximumSize)
+                .removalListener(evictionListener);
+        if (expireAfterWrite > 0) {
+            cacheBuilder.expireAfterWrite(expireAfterWrite, expireUnit);
+        }
+        this.cache = cacheBuilder.build();
+    }
+
+    @Nullable
+    public V getIfPresent(NetworkBlock networkBlock) {
+        final V value = cache.getIfPresent(networkBlock);
+        if (value == null) {
+            misses.mark();
+        } else {
+            hits.mark();
+        }
+
+        return value;
+    }
+
+    public void put(NetworkBlock networkBlock, V value) {
+        cache.put(networkBlock, value);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.net.InetAddresses;
+
+import java.util.Arrays;
+
+/**
+ * Special-purpose address ranges (RFC 6890) which no GeoIP database contains, like private, loopback, link-local and
+ * shared (CGNAT) addresses. Checking them first saves the database lookup for the many internal addresses in logs.
+ */
+final class ReservedAddresses {
+    private static final String[] IPV4_NETWORKS = {
+            "0.0.0.0/8",        // "This" network
+            "10.0.0.0/8",       // Private
+            "100.64.0.0/10",    // Shared address space (CGNAT)
+            "127.0.0.0/8",      // Loopback
+            "169.254.0.0/16",   // Link-local
+            "172.16.0.0/12",    // Private
+            "192.0.0.0/24",     // IETF protocol assignments
+            "192.0.2.0/24",     // Documentation (TEST-NET-1)
+            "192.168.0.0/16",   // Private
+            "198.18.0.0/15",    // Benchmarking
+            "198.51.100.0/24",  // Documentation (TEST-NET-2)
+            "203.0.113.0/24",   // Documentation (TEST-NET-3)
+            "224.0.0.0/4",      // Multicast
+            "240.0.0.0/4"       // Reserved and limited broadcast
+    };
+
+    // Whether all addresses with the first octet are reserved
+    private static final boolean[] RESERVED_FIRST_OCTETS = new boolean[256];
+    // Network addresses and masks of the smaller reserved networks by first octet, null if there are none
+    private static final int[][] NETWORKS_BY_FIRST_OCTET = new int[256][];
+    private static final int[][] MASKS_BY_FIRST_OCTET = new int[256][];
+
+    static {
+        for (String network : IPV4_NETWORKS) {
+            final int separator = network.indexOf('/');
+            final int address = InetAddresses.coerceToInteger(InetAddresses.forString(network.substring(0, separator)));
+            final int prefixLength = Integer.parseInt(network.substring(separator + 1));
+            final int mask = -1 << (32 - prefixLength);
+            if (prefixLength <= 8) {
+                for (int octet = address >>> 24; octet <= (address | ~mask) >>> 24; octet++) {
+                    RESERVED_FIRST_OCTETS[octet] = true;
+                }
+            } else {
+                final int octet = address >>> 24;
+                NETWORKS_BY_FIRST_OCTET[octet] = append(NETWORKS_BY_FIRST_OCTET[octet], address);
+                MASKS_BY_FIRST_OCTET[octet] = append(MASKS_BY_FIRST_OCTET[octet], mask);
+            }
+        }
+    }
+
+    private ReservedAddresses() {
+    }
+
+    private static int[] append(int[] values, int value) {
+        final int[] newValues = values == null ? new int[1] : Arrays.copyOf(values, values.length + 1);
+        newValues[newValues.length - 1] = value;
+        return newValues;
+    }
+
+    static boolean isReserved(IpAddressKey address) {
+        return address.ipv4() ? isReservedIpv4((int) address.low()) : isReservedIpv6(address.high(), address.low());
+    }
+
+    static boolean isReservedIpv4(int address) {
+        final int octet = address >>> 24;
+        if (RESERVED_FIRST_OCTETS[octet]) {
+            return true;
+        }
+
+        final int[] networks = NETWORKS_BY_FIRST_OCTET[octet];
+        if (networks == null) {
+            return false;
+        }
+        final int[] masks = MASKS_BY_FIRST_OCTET[octet];
+        for (int i = 0; i < networks.length; i++) {
+            if ((address & masks[i]) == networks[i]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static boolean isReservedIpv6(long high, long low) {
+        if (high == 0L) {
+            // Unspecified and loopback address, IPv4-compatible addresses (::/96) like their IPv4 address
+            return (low >>> 32) != 0L || low <= 1L || isReservedIpv4((int) low);
+        }
+
+        return (high >>> 57) == 0x7eL              // Unique local (fc00::/7)
+                || (high >>> 54) == 0x3faL         // Link-local (fe80::/10)
+                || (high >>> 56) == 0xffL          // Multicast (ff00::/8)
+                || (high >>> 32) == 0x20010db8L    // Documentation (2001:db8::/32)
+                || high == 0x0100000000000000L;    // Discard-only (100::/64)
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer which counts every event but only measures the duration of one in {@code sampleInterval} events. The
+ * durations get recorded in a {@link StripedHistogramReservoir}, so neither counting nor timing takes a lock.
+ * <p>
+ * Count and rates cover all events, the snapshot only the sampled ones.
+ */
+class SampledTimer extends Timer {
+    // Marks the start of events which don't get timed
+    static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final Meter events = new Meter();
+    private final int sampleInterval;
+
+    SampledTimer(int sampleInterval) {
+        super(new StripedHistogramReservoir());
+        this.sampleInterval = Math.max(1, sampleInterval);
+    }
+
+    int sampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * @return the start time of the event to pass to {@link #stop(long)}
+     */
+    long start() {
+        if (sampleInterval > 1 && ThreadLocalRandom.current().nextInt(sampleInterval) != 0) {
+            return NOT_SAMPLED;
+        }
+        return System.nanoTime();
+    }
+
+    void stop(long start) {
+        events.mark();
+        if (start != NOT_SAMPLED) {
+            super.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        events.mark();
+        super.update(duration, unit);
+    }
+
+    @Override
+    public long getCount() {
+        return events.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return events.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return events.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+        return events.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return events.getOneMinuteRate();
+    }
+}
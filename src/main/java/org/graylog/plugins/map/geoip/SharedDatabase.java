@@ -0,0 +1,170 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import com.maxmind.db.NoCache;
+import com.maxmind.db.NodeCache;
+import com.maxmind.geoip2.DatabaseReader;
+import org.graylog.plugins.map.geoip.mmdb.Ipv4RangeIndex;
+import org.graylog.plugins.map.geoip.mmdb.MmdbReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * The readers and caches of one database file, shared by all consumers of the file. Managed by
+ * {@link GeoIpDatabaseRegistry}, consumers access it through {@link GeoIpDatabase} handles.
+ */
+class SharedDatabase {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedDatabase.class);
+    private static final String IPV4_INDEX_SUFFIX = ".ipv4-index";
+
+    private final DatabaseKey key;
+    private final MetricRegistry metricRegistry;
+    private final MmdbReader mmdbReader;
+    private final Map<String, CacheEntry> networkCaches = new HashMap<>();
+    // MaxMind readers by the memory cap of their node cache
+    private final Map<Long, DatabaseReader> databaseReaders = new ConcurrentHashMap<>();
+    private volatile Ipv4RangeIndex ipv4RangeIndex;
+
+    // Guarded by the registry
+    int references;
+
+    SharedDatabase(DatabaseKey key, MetricRegistry metricRegistry) throws IOException {
+        this.key = key;
+        this.metricRegistry = metricRegistry;
+        this.mmdbReader = MmdbReader.open(key.path());
+    }
+
+    DatabaseKey key() {
+        return key;
+    }
+
+    MmdbReader mmdbReader() {
+        return mmdbReader;
+    }
+
+    /**
+     * Returns the MaxMind reader of the database whose node cache is capped at the given size, see
+     * {@link BoundedNodeCache}. It is only opened on first use, consumers which only use the {@link MmdbReader}
+     * don't need a second mapping of the file. All consumers with the same cap share the reader and its node cache.
+     *
+     * @param nodeCacheMaxBytes memory cap of the node cache, zero disables the cache
+     */
+    DatabaseReader databaseReader(long nodeCacheMaxBytes) throws IOException {
+        final DatabaseReader reader = databaseReaders.get(nodeCacheMaxBytes);
+        if (reader != null) {
+            return reader;
+        }
+
+        synchronized (this) {
+            DatabaseReader newReader = databaseReaders.get(nodeCacheMaxBytes);
+            if (newReader == null) {
+                final NodeCache nodeCache = nodeCacheMaxBytes > 0
+                        ? new BoundedNodeCache(nodeCacheMaxBytes, metricRegistry, nodeCacheMetricPrefix(nodeCacheMaxBytes))
+                        : NoCache.getInstance();
+                newReader = new DatabaseReader.Builder(key.path().toFile()).withCache(nodeCache).build();
+                databaseReaders.put(nodeCacheMaxBytes, newReader);
+            }
+            return newReader;
+        }
+    }
+
+    /**
+     * Returns the name prefix of the node cache meters. Every database file, database version and memory cap gets
+     * its own meters, merged meters of different caches wouldn't tell their hit rates.
+     */
+    String nodeCacheMetricPrefix(long nodeCacheMaxBytes) {
+        return name(GeoIpDatabase.class, "nodeCache", key.path().getFileName().toString(),
+                String.valueOf(mmdbReader.buildEpoch()), String.valueOf(nodeCacheMaxBytes));
+    }
+
+    /**
+     * Returns the IPv4 range index of the database. It is only built or loaded from its sidecar file on first use.
+     */
+    Ipv4RangeIndex ipv4RangeIndex() throws IOException {
+        Ipv4RangeIndex index = ipv4RangeIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = ipv4RangeIndex;
+                if (index == null) {
+                    final Path path = key.path();
+                    index = Ipv4RangeIndex.open(mmdbReader, path.resolveSibling(path.getFileName() + IPV4_INDEX_SUFFIX));
+                    ipv4RangeIndex = index;
+                }
+            }
+        }
+
+        return index;
+    }
+
+    synchronized NetworkBlockCache<?> acquireNetworkCache(String name, long maximumSize, long expireAfterWrite,
+                                                          TimeUnit unit, String metricPrefix) {
+        CacheEntry entry = networkCaches.get(name);
+        if (entry == null) {
+            entry = new CacheEntry(new NetworkBlockCache<>(maximumSize, expireAfterWrite, unit, metricRegistry, metricPrefix));
+            networkCaches.put(name, entry);
+        }
+        entry.references++;
+
+        return entry.cache;
+    }
+
+    synchronized void releaseNetworkCache(String name) {
+        final CacheEntry entry = networkCaches.get(name);
+        if (entry != null && --entry.references == 0) {
+            networkCaches.remove(name);
+            entry.cache.invalidateAll();
+        }
+    }
+
+    synchronized void close() {
+        networkCaches.values().forEach(entry -> entry.cache.invalidateAll());
+        networkCaches.clear();
+        for (DatabaseReader databaseReader : databaseReaders.values()) {
+            try {
+                databaseReader.close();
+            } catch (IOException e) {
+                LOG.warn("Couldn't close GeoIP database {}", key.path(), e);
+            }
+        }
+        // The node cache meters of replaced database versions would stay registered forever otherwise
+        for (long nodeCacheMaxBytes : databaseReaders.keySet()) {
+            final String prefix = nodeCacheMetricPrefix(nodeCacheMaxBytes) + ".";
+            metricRegistry.removeMatching((metricName, metric) -> metricName.startsWith(prefix));
+        }
+        databaseReaders.clear();
+    }
+
+    private static class CacheEntry {
+        private final NetworkBlockCache<?> cache;
+        private int references;
+
+        private CacheEntry(NetworkBlockCache<?> cache) {
+            this.cache = cache;
+        }
+    }
+}
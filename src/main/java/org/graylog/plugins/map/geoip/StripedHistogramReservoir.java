@@ -0,0 +1,259 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Reservoir which counts values in logarithmic buckets instead of keeping samples. Every bucket covers a range of
+ * 1/16 of its power of two, so quantiles are accurate to about 6%. Each thread updates one of several stripes of
+ * buckets with atomic increments, the stripes only get merged when a snapshot is taken.
+ * <p>
+ * Snapshots contain the values of the current and the previous interval. Taking a snapshot after an interval has
+ * ended starts a new one, so old values age out without a background task.
+ */
+class StripedHistogramReservoir implements Reservoir {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values above 2^40 (about 18 minutes in nanoseconds) are counted in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int MAX_STRIPES = 16;
+    private static final long DEFAULT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1L);
+    // Same number of values as the default reservoir of Codahale histograms, expanding every recorded value would
+    // allocate megabytes per snapshot on busy nodes
+    private static final int MAX_SNAPSHOT_VALUES = 1028;
+
+    private final Clock clock;
+    private final long intervalNanos;
+    private final int stripeMask;
+    private volatile AtomicLongArray[] current;
+    private volatile AtomicLongArray[] previous;
+    private volatile long intervalStart;
+
+    StripedHistogramReservoir() {
+        this(Clock.defaultClock(), DEFAULT_INTERVAL_NANOS);
+    }
+
+    StripedHistogramReservoir(Clock clock, long intervalNanos) {
+        this.clock = clock;
+        this.intervalNanos = intervalNanos;
+        final int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+        this.stripeMask = stripes - 1;
+        this.current = newStripes(stripes);
+        this.previous = newStripes(stripes);
+        this.intervalStart = clock.getTick();
+    }
+
+    private static AtomicLongArray[] newStripes(int stripes) {
+        final AtomicLongArray[] buckets = new AtomicLongArray[stripes];
+        for (int i = 0; i < stripes; i++) {
+            buckets[i] = new AtomicLongArray(BUCKETS);
+        }
+        return buckets;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        final AtomicLongArray[] stripes = current;
+        stripes[(int) Thread.currentThread().getId() & stripeMask].incrementAndGet(bucket(value));
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        final long now = clock.getTick();
+        if (now - intervalStart >= intervalNanos) {
+            synchronized (this) {
+                if (now - intervalStart >= intervalNanos) {
+                    // Updates racing with the rotation end up in the previous interval
+                    previous = now - intervalStart >= 2 * intervalNanos ? newStripes(stripeMask + 1) : current;
+                    current = newStripes(stripeMask + 1);
+                    intervalStart = now;
+                }
+            }
+        }
+
+        final long[] counts = new long[BUCKETS];
+        for (AtomicLongArray[] stripes : new AtomicLongArray[][]{previous, current}) {
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += stripe.get(i);
+                }
+            }
+        }
+        return new BucketSnapshot(counts);
+    }
+
+    /**
+     * Snapshot of merged bucket counts. Values are approximated by the middle of their bucket.
+     */
+    static class BucketSnapshot extends Snapshot {
+        private final long[] counts;
+        private final long size;
+
+        BucketSnapshot(long[] counts) {
+            this.counts = counts;
+            long size = 0;
+            for (long count : counts) {
+                size += count;
+            }
+            this.size = size;
+        }
+
+        private static long value(int bucket) {
+            final long lowerBound = lowerBound(bucket);
+            return lowerBound + (upperBound(bucket) - lowerBound) / 2;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (size == 0) {
+                return 0.0;
+            }
+
+            final long rank = Math.max(1L, (long) Math.ceil(quantile * size));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return value(i);
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * Returns the recorded values if there are at most {@value #MAX_SNAPSHOT_VALUES} of them. Otherwise it returns
+         * the values at that many evenly spaced ranks, which keeps their distribution.
+         */
+        @Override
+        public long[] getValues() {
+            final long[] values = new long[(int) Math.min(size, MAX_SNAPSHOT_VALUES)];
+            int bucket = 0;
+            long seen = counts[0];
+            for (int index = 0; index < values.length; index++) {
+                final long rank = (index + 1) * size / values.length;
+                while (seen < rank) {
+                    seen += counts[++bucket];
+                }
+                values[index] = value(bucket);
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return value(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public long getMin() {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    return value(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public double getMean() {
+            if (size == 0) {
+                return 0.0;
+            }
+            double sum = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                sum += (double) counts[i] * value(i);
+            }
+            return sum / size;
+        }
+
+        @Override
+        public double getStdDev() {
+            if (size <= 1) {
+                return 0.0;
+            }
+            final double mean = getMean();
+            double variance = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                final double difference = value(i) - mean;
+                variance += counts[i] * difference * difference;
+            }
+            return Math.sqrt(variance / (size - 1));
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (long value : getValues()) {
+                    out.printf("%d%n", value);
+                }
+            }
+        }
+    }
+}
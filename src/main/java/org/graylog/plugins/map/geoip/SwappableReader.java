@@ -0,0 +1,152 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds a reader which can be replaced while other threads are using it.
+ * <p>
+ * Every reader is reference counted. The holder owns one reference, and every {@link #acquire()} adds another one
+ * until the returned lease gets closed. Swapping in a new reader or closing the holder gives up the holder's
+ * reference, so the old reader is closed exactly once, as soon as the last lookup which started before the swap
+ * has finished.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @param <T> the reader type
+ */
+public class SwappableReader<T extends Closeable> implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SwappableReader.class);
+
+    private final AtomicReference<Lease<T>> current = new AtomicReference<>();
+
+    public SwappableReader() {
+    }
+
+    public SwappableReader(@Nullable T reader) {
+        if (reader != null) {
+            current.set(new Lease<>(reader));
+        }
+    }
+
+    /**
+     * Acquires a reference to the current reader. The lease has to be closed once the reader isn't used anymore,
+     * ideally with try-with-resources.
+     *
+     * @return the lease of the current reader or {@code null} if there is no reader
+     */
+    @Nullable
+    public Lease<T> acquire() {
+        while (true) {
+            final Lease<T> lease = current.get();
+            if (lease == null) {
+                return null;
+            }
+            if (lease.retain()) {
+                return lease;
+            }
+            // The reader has been swapped out and released in the meantime, try again with the new one
+        }
+    }
+
+    /**
+     * Replaces the current reader. The previous reader gets closed once all of its leases have been closed.
+     */
+    public void swap(@Nullable T reader) {
+        final Lease<T> previous = current.getAndSet(reader == null ? null : new Lease<>(reader));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Replaces the current reader without releasing the previous one, whose ownership passes to the caller.
+     */
+    public void replace(@Nullable T reader) {
+        current.set(reader == null ? null : new Lease<>(reader));
+    }
+
+    /**
+     * Returns the current reader without acquiring a reference. Only safe to use if the reader can't be swapped
+     * concurrently.
+     */
+    @Nullable
+    public T current() {
+        final Lease<T> lease = current.get();
+        return lease == null ? null : lease.get();
+    }
+
+    /**
+     * Releases the current reader. It gets closed once all of its leases have been closed.
+     */
+    @Override
+    public void close() {
+        swap(null);
+    }
+
+    /**
+     * A reference to a reader. Leases are shared between all users of the same reader, every successful
+     * {@link SwappableReader#acquire()} has to be matched by exactly one {@link #close()}.
+     */
+    public static final class Lease<T extends Closeable> implements AutoCloseable {
+        private final T reader;
+        // Starts with the reference of the holder
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Lease(T reader) {
+            this.reader = reader;
+        }
+
+        public T get() {
+            return reader;
+        }
+
+        private boolean retain() {
+            while (true) {
+                final int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            final int count = references.decrementAndGet();
+            if (count == 0) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    LOG.warn("Couldn't close reader", e);
+                }
+            } else if (count < 0) {
+                throw new IllegalStateException("Reader has been released more often than it has been acquired");
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+/**
+ * Helpers to convert the raw bytes of IP addresses into primitive values.
+ */
+final class AddressBits {
+    private AddressBits() {
+    }
+
+    static int ipv4(byte[] address) {
+        return ((address[0] & 0xff) << 24) | ((address[1] & 0xff) << 16) | ((address[2] & 0xff) << 8) | (address[3] & 0xff);
+    }
+
+    static long ipv6High(byte[] address) {
+        return readLong(address, 0);
+    }
+
+    static long ipv6Low(byte[] address) {
+        return readLong(address, 8);
+    }
+
+    private static long readLong(byte[] address, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (address[i] & 0xff);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.maxmind.db.InvalidDatabaseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The IPv4 part of a City database, flattened into the sorted start addresses of its network blocks, the location of
+ * each block as index into a table of distinct locations, and the location values. Lookups are a binary search over
+ * primitive values without any allocations.
+ * <p>
+ * The index can be persisted to a sidecar file of the database. Loading it memory-maps the file, so the ranges and
+ * coordinates stay off-heap and restarts don't have to walk the search tree again.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class Ipv4RangeIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(Ipv4RangeIndex.class);
+
+    // File format: header, range starts, range locations, latitudes, longitudes, country ISO codes and city names
+    private static final int MAGIC = 0x47495634; // "GIV4"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    // Identify the database the index has been built from
+    private final long buildEpoch;
+    private final int nodeCount;
+    private final int databaseSize;
+    private final int rangeCount;
+    private final IntBuffer starts;
+    private final IntBuffer locations;
+    private final DoubleBuffer latitudes;
+    private final DoubleBuffer longitudes;
+    private final String[] countryIsoCodes;
+    private final String[] cityNames;
+
+    private Ipv4RangeIndex(MmdbReader reader, int rangeCount, IntBuffer starts, IntBuffer locations,
+                           DoubleBuffer latitudes, DoubleBuffer longitudes, String[] countryIsoCodes, String[] cityNames) {
+        this.buildEpoch = reader.buildEpoch();
+        this.nodeCount = reader.nodeCount();
+        this.databaseSize = reader.size();
+        this.rangeCount = rangeCount;
+        this.starts = starts;
+        this.locations = locations;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.countryIsoCodes = countryIsoCodes;
+        this.cityNames = cityNames;
+    }
+
+    /**
+     * Loads the index of the database from the given sidecar file, or builds it and writes the file if it doesn't
+     * exist or belongs to another version of the database. Failing to write the file is logged, the index works
+     * without it.
+     */
+    public static Ipv4RangeIndex open(MmdbReader reader, Path path) throws IOException {
+        if (Files.exists(path)) {
+            try {
+                final Ipv4RangeIndex index = load(reader, path);
+                if (index != null) {
+                    return index;
+                }
+                LOG.debug("IPv4 index {} belongs to another database version, rebuilding it", path);
+            } catch (IOException e) {
+                LOG.warn("Couldn't read IPv4 index {}, rebuilding it", path, e);
+            }
+        }
+
+        final Ipv4RangeIndex index = build(reader);
+        try {
+            index.write(path);
+        } catch (IOException e) {
+            LOG.warn("Couldn't write IPv4 index {}, it will be rebuilt on the next start", path, e);
+            return index;
+        }
+
+        // The mapped index doesn't occupy the heap
+        final Ipv4RangeIndex mappedIndex = load(reader, path);
+        return mappedIndex != null ? mappedIndex : index;
+    }
+
+    /**
+     * Builds the index by walking the IPv4 part of the search tree. Adjacent network blocks with the same location
+     * are merged into one range.
+     */
+    public static Ipv4RangeIndex build(MmdbReader reader) throws InvalidDatabaseException {
+        final Builder builder = new Builder(reader);
+        reader.visitIpv4Networks(builder::add);
+
+        return builder.build();
+    }
+
+    /**
+     * Memory-maps the index from the given file.
+     *
+     * @return the index or {@code null} if the file belongs to another version of the database
+     */
+    @Nullable
+    public static Ipv4RangeIndex load(MmdbReader reader, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size of IPv4 index file: " + size);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not an IPv4 index file or unsupported version");
+            }
+            if (buffer.getLong(8) != reader.buildEpoch() || buffer.getInt(16) != reader.nodeCount()
+                    || buffer.getInt(20) != reader.size()) {
+                return null;
+            }
+
+            final int rangeCount = buffer.getInt(24);
+            final int locationCount = buffer.getInt(28);
+            final long stringsStart = HEADER_SIZE + 8L * rangeCount + 16L * locationCount;
+            if (rangeCount < 1 || locationCount < 0 || stringsStart > size) {
+                throw new IOException("Truncated IPv4 index file");
+            }
+
+            final int locationsStart = HEADER_SIZE + 4 * rangeCount;
+            final int latitudesStart = locationsStart + 4 * rangeCount;
+            final int longitudesStart = latitudesStart + 8 * locationCount;
+            final String[] countryIsoCodes = new String[locationCount];
+            final String[] cityNames = new String[locationCount];
+            channel.position(stringsStart);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (int i = 0; i < locationCount; i++) {
+                countryIsoCodes[i] = readString(in);
+                cityNames[i] = readString(in);
+            }
+
+            return new Ipv4RangeIndex(reader, rangeCount,
+                    slice(buffer, HEADER_SIZE, 4 * rangeCount).asIntBuffer(),
+                    slice(buffer, locationsStart, 4 * rangeCount).asIntBuffer(),
+                    slice(buffer, latitudesStart, 8 * locationCount).asDoubleBuffer(),
+                    slice(buffer, longitudesStart, 8 * locationCount).asDoubleBuffer(),
+                    countryIsoCodes, cityNames);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+
+        return duplicate.slice();
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Writes the index to the given file. The file is replaced atomically, readers never see a partial index.
+     */
+    public void write(Path path) throws IOException {
+        final Path absolutePath = path.toAbsolutePath();
+        final Path tempFile = Files.createTempFile(absolutePath.getParent(), absolutePath.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(buildEpoch);
+                out.writeInt(nodeCount);
+                out.writeInt(databaseSize);
+                out.writeInt(rangeCount);
+                out.writeInt(locationCount());
+                for (int i = 0; i < rangeCount; i++) {
+                    out.writeInt(starts.get(i));
+                }
+                for (int i = 0; i < rangeCount; i++) {
+                    out.writeInt(locations.get(i));
+                }
+                for (int i = 0; i < locationCount(); i++) {
+                    out.writeDouble(latitudes.get(i));
+                }
+                for (int i = 0; i < locationCount(); i++) {
+                    out.writeDouble(longitudes.get(i));
+                }
+                for (int i = 0; i < locationCount(); i++) {
+                    writeString(out, countryIsoCodes[i]);
+                    writeString(out, cityNames[i]);
+                }
+            }
+            Files.move(tempFile, absolutePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Looks up the location of the given IPv4 address.
+     *
+     * @return the index of the location or -1 if the database doesn't contain a location for the address
+     */
+    public int find(int address) {
+        // The first range starts at 0.0.0.0, so the range of the address is the last one starting before or at it
+        int low = 0;
+        int high = rangeCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (Integer.compareUnsigned(starts.get(middle), address) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high < 0 ? -1 : locations.get(high);
+    }
+
+    public int rangeCount() {
+        return rangeCount;
+    }
+
+    public int locationCount() {
+        return countryIsoCodes.length;
+    }
+
+    public double latitude(int location) {
+        return latitudes.get(location);
+    }
+
+    public double longitude(int location) {
+        return longitudes.get(location);
+    }
+
+    @Nullable
+    public String countryIsoCode(int location) {
+        return countryIsoCodes[location];
+    }
+
+    @Nullable
+    public String cityName(int location) {
+        return cityNames[location];
+    }
+
+    private static class Builder {
+        private final MmdbReader reader;
+        // Records are shared by many network blocks, so each one only gets decoded once
+        private final Map<Integer, Integer> locationsByDataOffset = new HashMap<>();
+        private final Map<LocationRecord, Integer> locationsByRecord = new HashMap<>();
+        private final List<LocationRecord> records = new ArrayList<>();
+        private int[] starts = new int[1024];
+        private int[] locations = new int[1024];
+        private int rangeCount;
+
+        private Builder(MmdbReader reader) {
+            this.reader = reader;
+        }
+
+        private void add(int network, int prefixLength, long result) throws InvalidDatabaseException {
+            final int location = location(result);
+            if (rangeCount > 0 && locations[rangeCount - 1] == location) {
+                return;
+            }
+            if (rangeCount == starts.length) {
+                starts = Arrays.copyOf(starts, rangeCount * 2);
+                locations = Arrays.copyOf(locations, rangeCount * 2);
+            }
+            starts[rangeCount] = network;
+            locations[rangeCount] = location;
+            rangeCount++;
+        }
+
+        private int location(long result) throws InvalidDatabaseException {
+            if (!MmdbReader.isFound(result)) {
+                return -1;
+            }
+
+            final Integer knownLocation = locationsByDataOffset.get(MmdbReader.dataOffset(result));
+            if (knownLocation != null) {
+                return knownLocation;
+            }
+
+            final LocationRecord record = reader.readLocation(result);
+            Integer location = -1;
+            if (record != null) {
+                location = locationsByRecord.get(record);
+                if (location == null) {
+                    location = records.size();
+                    records.add(record);
+                    locationsByRecord.put(record, location);
+                }
+            }
+            locationsByDataOffset.put(MmdbReader.dataOffset(result), location);
+
+            return location;
+        }
+
+        private Ipv4RangeIndex build() {
+            final double[] latitudes = new double[records.size()];
+            final double[] longitudes = new double[records.size()];
+            final String[] countryIsoCodes = new String[records.size()];
+            final String[] cityNames = new String[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                final LocationRecord record = records.get(i);
+                latitudes[i] = record.latitude();
+                longitudes[i] = record.longitude();
+                countryIsoCodes[i] = record.countryIsoCode();
+                cityNames[i] = record.cityName();
+            }
+
+            return new Ipv4RangeIndex(reader, rangeCount,
+                    IntBuffer.wrap(Arrays.copyOf(starts, rangeCount)), IntBuffer.wrap(Arrays.copyOf(locations, rangeCount)),
+                    DoubleBuffer.wrap(latitudes), DoubleBuffer.wrap(longitudes), countryIsoCodes, cityNames);
+        }
+    }
+}
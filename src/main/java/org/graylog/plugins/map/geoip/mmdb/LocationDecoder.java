@@ -0,0 +1,218 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.maxmind.db.InvalidDatabaseException;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the location values of a City database record without deserializing the rest of it. Keys are compared
+ * with the bytes in the buffer and all other values (localized names, subdivisions, postal codes, traits...) are
+ * skipped, so the only objects created are the country ISO code and city name strings.
+ * <p>
+ * Instances hold the values of the record being decoded and are therefore not thread-safe.
+ */
+class LocationDecoder {
+    private static final byte[][] RECORD_KEYS = {utf8("city"), utf8("country"), utf8("location")};
+    private static final int RECORD_CITY = 0;
+    private static final int RECORD_COUNTRY = 1;
+    private static final int RECORD_LOCATION = 2;
+    private static final byte[][] CITY_KEYS = {utf8("geoname_id"), utf8("names")};
+    private static final byte[][] COUNTRY_KEYS = {utf8("geoname_id"), utf8("iso_code")};
+    private static final byte[][] LOCATION_KEYS = {utf8("latitude"), utf8("longitude")};
+    private static final byte[][] NAMES_KEYS = {utf8("en")};
+
+    private final MmdbDecoder decoder;
+
+    private double latitude;
+    private double longitude;
+    private boolean hasLatitude;
+    private boolean hasLongitude;
+    private boolean hasCountryGeoNameId;
+    private String countryIsoCode;
+    private boolean hasCityGeoNameId;
+    private String cityName;
+
+    LocationDecoder(MmdbDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the record at the given position of the buffer.
+     *
+     * @return the location values or {@code null} if the record doesn't contain coordinates
+     */
+    @Nullable
+    LocationRecord decode(int position) throws InvalidDatabaseException {
+        decoder.position(position);
+        final int entries = readMapSize();
+
+        int decodedValues = 0;
+        for (int i = 0; i < entries && decodedValues < RECORD_KEYS.length; i++) {
+            switch (decoder.readKey(RECORD_KEYS)) {
+                case RECORD_CITY:
+                    decodeCity();
+                    decodedValues++;
+                    break;
+                case RECORD_COUNTRY:
+                    decodeCountry();
+                    decodedValues++;
+                    break;
+                case RECORD_LOCATION:
+                    decodeLocation();
+                    decodedValues++;
+                    break;
+                default:
+                    decoder.skip();
+            }
+        }
+
+        if (!hasLatitude || !hasLongitude) {
+            return null;
+        }
+
+        return LocationRecord.create(latitude, longitude,
+                hasCountryGeoNameId ? countryIsoCode : null,
+                hasCityGeoNameId ? cityName : null);
+    }
+
+    private void decodeCity() throws InvalidDatabaseException {
+        final int resumePosition = decoder.readControlFollowingPointer();
+        final int entries = mapSize();
+        for (int i = 0; i < entries; i++) {
+            switch (decoder.readKey(CITY_KEYS)) {
+                case 0:
+                    hasCityGeoNameId = true;
+                    decoder.skip();
+                    break;
+                case 1:
+                    cityName = readName();
+                    break;
+                default:
+                    decoder.skip();
+            }
+        }
+        resume(resumePosition);
+    }
+
+    private void decodeCountry() throws InvalidDatabaseException {
+        final int resumePosition = decoder.readControlFollowingPointer();
+        final int entries = mapSize();
+        for (int i = 0; i < entries; i++) {
+            switch (decoder.readKey(COUNTRY_KEYS)) {
+                case 0:
+                    hasCountryGeoNameId = true;
+                    decoder.skip();
+                    break;
+                case 1:
+                    countryIsoCode = readString();
+                    break;
+                default:
+                    decoder.skip();
+            }
+        }
+        resume(resumePosition);
+    }
+
+    private void decodeLocation() throws InvalidDatabaseException {
+        final int resumePosition = decoder.readControlFollowingPointer();
+        final int entries = mapSize();
+        for (int i = 0; i < entries; i++) {
+            switch (decoder.readKey(LOCATION_KEYS)) {
+                case 0:
+                    latitude = readDouble();
+                    hasLatitude = true;
+                    break;
+                case 1:
+                    longitude = readDouble();
+                    hasLongitude = true;
+                    break;
+                default:
+                    decoder.skip();
+            }
+        }
+        resume(resumePosition);
+    }
+
+    @Nullable
+    private String readName() throws InvalidDatabaseException {
+        String name = null;
+        final int resumePosition = decoder.readControlFollowingPointer();
+        final int entries = mapSize();
+        for (int i = 0; i < entries; i++) {
+            if (decoder.readKey(NAMES_KEYS) == 0) {
+                name = readString();
+            } else {
+                decoder.skip();
+            }
+        }
+        resume(resumePosition);
+
+        return name;
+    }
+
+    private int readMapSize() throws InvalidDatabaseException {
+        decoder.readControlFollowingPointer();
+        return mapSize();
+    }
+
+    private int mapSize() throws InvalidDatabaseException {
+        if (decoder.type() != MmdbDecoder.TYPE_MAP) {
+            throw new InvalidDatabaseException("Expected map at offset " + decoder.position() + " but got type " + decoder.type());
+        }
+
+        return decoder.size();
+    }
+
+    private String readString() throws InvalidDatabaseException {
+        final int resumePosition = decoder.readControlFollowingPointer();
+        if (decoder.type() != MmdbDecoder.TYPE_UTF8_STRING) {
+            throw new InvalidDatabaseException("Expected string at offset " + decoder.position() + " but got type " + decoder.type());
+        }
+        final String value = decoder.readString(decoder.size());
+        resume(resumePosition);
+
+        return value;
+    }
+
+    private double readDouble() throws InvalidDatabaseException {
+        final int resumePosition = decoder.readControlFollowingPointer();
+        final double value;
+        if (decoder.type() == MmdbDecoder.TYPE_DOUBLE) {
+            value = decoder.readDouble(decoder.size());
+        } else if (decoder.type() == MmdbDecoder.TYPE_FLOAT) {
+            value = decoder.readFloat(decoder.size());
+        } else {
+            throw new InvalidDatabaseException("Expected double at offset " + decoder.position() + " but got type " + decoder.type());
+        }
+        resume(resumePosition);
+
+        return value;
+    }
+
+    private void resume(int resumePosition) {
+        if (resumePosition >= 0) {
+            decoder.position(resumePosition);
+        }
+    }
+}
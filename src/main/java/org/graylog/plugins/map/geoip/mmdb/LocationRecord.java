@@ -0,0 +1,47 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.google.auto.value.AutoValue;
+
+import javax.annotation.Nullable;
+
+/**
+ * The location values of a City database record, as decoded by {@link MmdbReader#readLocation(long)}.
+ */
+@AutoValue
+public abstract class LocationRecord {
+    public abstract double latitude();
+
+    public abstract double longitude();
+
+    /**
+     * The ISO code of the country, {@code null} if the record doesn't contain a country with a GeoName ID.
+     */
+    @Nullable
+    public abstract String countryIsoCode();
+
+    /**
+     * The English name of the city, {@code null} if the record doesn't contain a city with a GeoName ID.
+     */
+    @Nullable
+    public abstract String cityName();
+
+    public static LocationRecord create(double latitude, double longitude, @Nullable String countryIsoCode, @Nullable String cityName) {
+        return new AutoValue_LocationRecord(latitude, longitude, countryIsoCode, cityName);
+    }
+}
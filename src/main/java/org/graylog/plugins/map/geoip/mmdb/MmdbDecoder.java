@@ -0,0 +1,329 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.maxmind.db.InvalidDatabaseException;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder for the data section format of MaxMind DB files.
+ * <p>
+ * A decoder keeps a read position and is therefore not thread-safe. Decoders are cheap to create, every caller should
+ * use its own instance on top of the shared (read-only) buffer.
+ *
+ * @see <a href="https://maxmind.github.io/MaxMind-DB/">MaxMind DB File Format Specification</a>
+ */
+class MmdbDecoder {
+    static final int TYPE_EXTENDED = 0;
+    static final int TYPE_POINTER = 1;
+    static final int TYPE_UTF8_STRING = 2;
+    static final int TYPE_DOUBLE = 3;
+    static final int TYPE_BYTES = 4;
+    static final int TYPE_UINT16 = 5;
+    static final int TYPE_UINT32 = 6;
+    static final int TYPE_MAP = 7;
+    static final int TYPE_INT32 = 8;
+    static final int TYPE_UINT64 = 9;
+    static final int TYPE_UINT128 = 10;
+    static final int TYPE_ARRAY = 11;
+    static final int TYPE_CONTAINER = 12;
+    static final int TYPE_END_MARKER = 13;
+    static final int TYPE_BOOLEAN = 14;
+    static final int TYPE_FLOAT = 15;
+
+    private static final int[] POINTER_VALUE_OFFSETS = {0, 0, 2048, 526336, 0};
+
+    private final ByteBuffer buffer;
+    private final int pointerBase;
+    private int position;
+
+    // Type and size of the value whose control byte has been read last
+    private int type;
+    private int size;
+
+    MmdbDecoder(ByteBuffer buffer, int pointerBase) {
+        this.buffer = buffer;
+        this.pointerBase = pointerBase;
+    }
+
+    int position() {
+        return position;
+    }
+
+    MmdbDecoder position(int position) {
+        this.position = position;
+        return this;
+    }
+
+    /**
+     * Decodes the value at the current position into plain Java objects and advances the position past it.
+     * Pointers are followed transparently.
+     */
+    Object decode() throws InvalidDatabaseException {
+        readControl();
+        if (type == TYPE_POINTER) {
+            final int resumePosition = position;
+            position = pointerBase + size;
+            final Object value = decode();
+            position = resumePosition;
+            return value;
+        }
+
+        return decodeValue(type, size);
+    }
+
+    private Object decodeValue(int type, int size) throws InvalidDatabaseException {
+        switch (type) {
+            case TYPE_UTF8_STRING:
+                return readString(size);
+            case TYPE_DOUBLE:
+                return readDouble(size);
+            case TYPE_FLOAT:
+                return readFloat(size);
+            case TYPE_BYTES:
+                return readBytes(size);
+            case TYPE_UINT16:
+                return (int) readUnsigned(size);
+            case TYPE_UINT32:
+                return readUnsigned(size);
+            case TYPE_INT32:
+                return (int) readUnsigned(size);
+            case TYPE_UINT64:
+            case TYPE_UINT128:
+                return new BigInteger(1, readBytes(size));
+            case TYPE_BOOLEAN:
+                return size != 0;
+            case TYPE_MAP:
+                final Map<String, Object> map = new LinkedHashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    final Object key = decode();
+                    if (!(key instanceof String)) {
+                        throw new InvalidDatabaseException("Map key at offset " + position + " is not a string");
+                    }
+                    map.put((String) key, decode());
+                }
+                return map;
+            case TYPE_ARRAY:
+                final List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(decode());
+                }
+                return list;
+            default:
+                throw new InvalidDatabaseException("Unknown or unexpected data type " + type + " at offset " + position);
+        }
+    }
+
+    /**
+     * Advances the position past the value at the current position without decoding it. Pointers are not followed.
+     */
+    void skip() throws InvalidDatabaseException {
+        readControl();
+        skipValue(type, size);
+    }
+
+    /**
+     * Advances the position past the value whose control bytes have been read last.
+     */
+    void skipValue() throws InvalidDatabaseException {
+        skipValue(type, size);
+    }
+
+    private void skipValue(int type, int size) throws InvalidDatabaseException {
+        switch (type) {
+            case TYPE_POINTER:
+            case TYPE_BOOLEAN:
+                return;
+            case TYPE_MAP:
+                for (int i = 0; i < size * 2; i++) {
+                    skip();
+                }
+                return;
+            case TYPE_ARRAY:
+                for (int i = 0; i < size; i++) {
+                    skip();
+                }
+                return;
+            default:
+                position += size;
+        }
+    }
+
+    /**
+     * Reads the control byte(s) at the current position and stores type and size (or the pointer target relative
+     * to the pointer base) of the following value.
+     */
+    void readControl() throws InvalidDatabaseException {
+        final int control = nextUnsignedByte();
+        int type = control >>> 5;
+
+        if (type == TYPE_POINTER) {
+            this.type = TYPE_POINTER;
+            this.size = readPointer(control);
+            return;
+        }
+
+        if (type == TYPE_EXTENDED) {
+            type = 7 + nextUnsignedByte();
+            if (type < TYPE_INT32 || type > TYPE_FLOAT) {
+                throw new InvalidDatabaseException("Invalid extended data type " + type + " at offset " + position);
+            }
+        }
+
+        this.type = type;
+        this.size = readSize(control & 0x1f);
+    }
+
+    /**
+     * Reads the control bytes of the value at the current position like {@link #readControl()}. If the value is a
+     * pointer, the position is moved to the pointer target and the control bytes of the target are read instead.
+     *
+     * @return the position after the pointer, to continue at once the target value has been read, or -1 if the value
+     * wasn't a pointer
+     */
+    int readControlFollowingPointer() throws InvalidDatabaseException {
+        readControl();
+        if (type != TYPE_POINTER) {
+            return -1;
+        }
+
+        final int resumePosition = position;
+        position = pointerBase + size;
+        readControl();
+        if (type == TYPE_POINTER) {
+            throw new InvalidDatabaseException("Pointer to pointer at offset " + position);
+        }
+
+        return resumePosition;
+    }
+
+    /**
+     * Reads the map key at the current position and compares it to the given UTF-8 encoded keys, without creating
+     * a string.
+     *
+     * @return the index of the matching key or -1 if none matches
+     */
+    int readKey(byte[][] keys) throws InvalidDatabaseException {
+        final int resumePosition = readControlFollowingPointer();
+        if (type != TYPE_UTF8_STRING) {
+            throw new InvalidDatabaseException("Map key at offset " + position + " is not a string");
+        }
+
+        int match = -1;
+        for (int k = 0; k < keys.length && match < 0; k++) {
+            final byte[] key = keys[k];
+            boolean equal = size == key.length;
+            for (int i = 0; equal && i < size; i++) {
+                equal = buffer.get(position + i) == key[i];
+            }
+            if (equal) {
+                match = k;
+            }
+        }
+        position = resumePosition >= 0 ? resumePosition : position + size;
+
+        return match;
+    }
+
+    int type() {
+        return type;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int pointerBase() {
+        return pointerBase;
+    }
+
+    private int readPointer(int control) {
+        final int pointerSize = ((control >>> 3) & 0x3) + 1;
+        int pointer = pointerSize == 4 ? 0 : control & 0x7;
+        for (int i = 0; i < pointerSize; i++) {
+            pointer = (pointer << 8) | nextUnsignedByte();
+        }
+
+        return pointer + POINTER_VALUE_OFFSETS[pointerSize];
+    }
+
+    private int readSize(int size) {
+        if (size < 29) {
+            return size;
+        } else if (size == 29) {
+            return 29 + nextUnsignedByte();
+        } else if (size == 30) {
+            return 285 + (int) readUnsigned(2);
+        } else {
+            return 65821 + (int) readUnsigned(3);
+        }
+    }
+
+    long readUnsigned(int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | nextUnsignedByte();
+        }
+
+        return value;
+    }
+
+    double readDouble(int size) throws InvalidDatabaseException {
+        if (size != 8) {
+            throw new InvalidDatabaseException("Invalid size of double at offset " + position + ": " + size);
+        }
+        final double value = buffer.getDouble(position);
+        position += 8;
+
+        return value;
+    }
+
+    float readFloat(int size) throws InvalidDatabaseException {
+        if (size != 4) {
+            throw new InvalidDatabaseException("Invalid size of float at offset " + position + ": " + size);
+        }
+        final float value = buffer.getFloat(position);
+        position += 4;
+
+        return value;
+    }
+
+    String readString(int size) {
+        return new String(readBytes(size), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(int size) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        position += size;
+
+        return bytes;
+    }
+
+    private int nextUnsignedByte() {
+        return buffer.get(position++) & 0xff;
+    }
+}
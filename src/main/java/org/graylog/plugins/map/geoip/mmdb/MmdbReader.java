@@ -0,0 +1,359 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.maxmind.db.InvalidDatabaseException;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Reader for the search tree of memory-mapped MaxMind DB files.
+ * <p>
+ * In contrast to the official MaxMind reader, lookups don't decode the data record but return its position in the
+ * data section together with the prefix length of the network block the record belongs to. Results are packed into
+ * a {@code long} to keep lookups free of allocations, use {@link #isFound(long)}, {@link #dataOffset(long)} and
+ * {@link #prefixLength(long)} to unpack them.
+ * <p>
+ * For City databases, {@link #readLocation(long)} decodes only the coordinates, country ISO code and city name of a
+ * record instead of the complete record.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class MmdbReader {
+    private static final byte[] METADATA_START_MARKER = {
+            (byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'
+    };
+    private static final int METADATA_MAX_SIZE = 128 * 1024;
+    private static final int DATA_SECTION_SEPARATOR_SIZE = 16;
+    private static final long NO_DATA = 0xFFFFFFFFL;
+
+    private final ByteBuffer buffer;
+    private final int nodeCount;
+    private final int recordSize;
+    private final int nodeByteSize;
+    private final int ipVersion;
+    private final int ipv4StartNode;
+    private final int dataSectionStart;
+    private final String databaseType;
+    private final long buildEpoch;
+
+    private MmdbReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        final int metadataStart = findMetadataStart(buffer);
+        final Object metadata = new MmdbDecoder(buffer, metadataStart).position(metadataStart).decode();
+        if (!(metadata instanceof Map)) {
+            throw new InvalidDatabaseException("Invalid metadata section in MaxMind DB file");
+        }
+        final Map<?, ?> metadataMap = (Map<?, ?>) metadata;
+
+        this.nodeCount = metadataNumber(metadataMap, "node_count").intValue();
+        this.recordSize = metadataNumber(metadataMap, "record_size").intValue();
+        this.ipVersion = metadataNumber(metadataMap, "ip_version").intValue();
+        this.buildEpoch = metadataNumber(metadataMap, "build_epoch").longValue();
+        this.databaseType = String.valueOf(metadataMap.get("database_type"));
+
+        if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+            throw new InvalidDatabaseException("Unsupported record size in MaxMind DB file: " + recordSize);
+        }
+        this.nodeByteSize = recordSize / 4;
+        this.dataSectionStart = nodeCount * nodeByteSize + DATA_SECTION_SEPARATOR_SIZE;
+        this.ipv4StartNode = findIpv4StartNode();
+    }
+
+    /**
+     * Memory-maps the given database file and reads its metadata.
+     */
+    public static MmdbReader open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("MaxMind DB file is too large: " + path);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            return new MmdbReader(buffer);
+        }
+    }
+
+    private static int findMetadataStart(ByteBuffer buffer) throws InvalidDatabaseException {
+        final int limit = buffer.capacity();
+        final int lowest = Math.max(0, limit - METADATA_MAX_SIZE);
+
+        for (int start = limit - METADATA_START_MARKER.length; start >= lowest; start--) {
+            boolean match = true;
+            for (int i = 0; i < METADATA_START_MARKER.length; i++) {
+                if (buffer.get(start + i) != METADATA_START_MARKER[i]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return start + METADATA_START_MARKER.length;
+            }
+        }
+
+        throw new InvalidDatabaseException("Could not find metadata section in MaxMind DB file");
+    }
+
+    private static Number metadataNumber(Map<?, ?> metadata, String key) throws InvalidDatabaseException {
+        final Object value = metadata.get(key);
+        if (!(value instanceof Number)) {
+            throw new InvalidDatabaseException("Missing or invalid metadata field \"" + key + "\" in MaxMind DB file");
+        }
+
+        return (Number) value;
+    }
+
+    private int findIpv4StartNode() {
+        if (ipVersion == 4) {
+            return 0;
+        }
+
+        int node = 0;
+        for (int i = 0; i < 96 && node < nodeCount; i++) {
+            node = readNode(node, 0);
+        }
+
+        return node;
+    }
+
+    public String databaseType() {
+        return databaseType;
+    }
+
+    public long buildEpoch() {
+        return buildEpoch;
+    }
+
+    public int ipVersion() {
+        return ipVersion;
+    }
+
+    /**
+     * Loads all pages of the mapped file into memory, so the first lookups after opening a database don't page fault
+     * their way through the search tree. The pages are shared with all other mappings of the file, including the one
+     * of the MaxMind reader.
+     *
+     * @return the number of loaded bytes
+     */
+    public long pretouch() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).load();
+        }
+
+        return buffer.capacity();
+    }
+
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Looks up the given address in the search tree.
+     *
+     * @return the packed lookup result
+     */
+    public long find(InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return findIpv4(AddressBits.ipv4(bytes));
+        }
+
+        return findIpv6(AddressBits.ipv6High(bytes), AddressBits.ipv6Low(bytes));
+    }
+
+    /**
+     * Looks up the given IPv4 address in the search tree. The prefix length of the result is relative to the
+     * 32 bit IPv4 address space.
+     *
+     * @return the packed lookup result
+     */
+    public long findIpv4(int address) {
+        int node = ipv4StartNode;
+        int depth = 0;
+        while (depth < 32 && node < nodeCount) {
+            node = readNode(node, (address >>> (31 - depth)) & 1);
+            depth++;
+        }
+
+        return result(node, depth);
+    }
+
+    /**
+     * Looks up the given IPv6 address, given as its upper and lower 64 bits, in the search tree.
+     *
+     * @return the packed lookup result
+     */
+    public long findIpv6(long high, long low) {
+        if (ipVersion == 4) {
+            // IPv4-only databases don't contain any IPv6 networks
+            return pack(0, NO_DATA);
+        }
+
+        int node = 0;
+        int depth = 0;
+        while (depth < 128 && node < nodeCount) {
+            final long bits = depth < 64 ? high : low;
+            node = readNode(node, (int) (bits >>> (63 - (depth & 63))) & 1);
+            depth++;
+        }
+
+        return result(node, depth);
+    }
+
+    private long result(int node, int depth) {
+        if (node > nodeCount) {
+            return pack(depth, node - nodeCount - DATA_SECTION_SEPARATOR_SIZE);
+        }
+
+        // Either the empty record (node == nodeCount) or a corrupt tree which ran out of address bits
+        return pack(depth, NO_DATA);
+    }
+
+    private static long pack(int prefixLength, long dataOffset) {
+        return ((long) prefixLength << 32) | (dataOffset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns whether the packed lookup result points to a data record.
+     */
+    public static boolean isFound(long result) {
+        return (result & 0xFFFFFFFFL) != NO_DATA;
+    }
+
+    /**
+     * Returns the offset of the data record, relative to the start of the data section, of a packed lookup result.
+     */
+    public static int dataOffset(long result) {
+        return (int) result;
+    }
+
+    /**
+     * Returns the prefix length of the network block of a packed lookup result. This is also set if the address
+     * hasn't been found, all addresses in the block are missing from the database then.
+     */
+    public static int prefixLength(long result) {
+        return (int) (result >>> 32);
+    }
+
+    /**
+     * Decodes the location values of the data record of a packed lookup result.
+     *
+     * @return the location values or {@code null} if the address hasn't been found or the record doesn't contain
+     * coordinates
+     */
+    @Nullable
+    public LocationRecord readLocation(long result) throws InvalidDatabaseException {
+        if (!isFound(result)) {
+            return null;
+        }
+
+        return new LocationDecoder(new MmdbDecoder(buffer, dataSectionStart)).decode(dataSectionStart + dataOffset(result));
+    }
+
+    /**
+     * Decodes the complete data record of a packed lookup result.
+     *
+     * @return the record, {@code null} if the address hasn't been found or the record isn't a map
+     */
+    @Nullable
+    public Map<?, ?> readRecord(long result) throws InvalidDatabaseException {
+        if (!isFound(result)) {
+            return null;
+        }
+
+        final Object record = new MmdbDecoder(buffer, dataSectionStart).position(dataSectionStart + dataOffset(result)).decode();
+        return record instanceof Map ? (Map<?, ?>) record : null;
+    }
+
+    /**
+     * Decodes the values of the given projection from the data record of a packed lookup result.
+     *
+     * @return the decoded values by path, empty if the address hasn't been found
+     */
+    public Map<String, Object> readProjection(long result, RecordProjection projection) throws InvalidDatabaseException {
+        if (!isFound(result)) {
+            return Collections.emptyMap();
+        }
+
+        final MmdbDecoder decoder = new MmdbDecoder(buffer, dataSectionStart).position(dataSectionStart + dataOffset(result));
+        return projection.decode(decoder);
+    }
+
+    /**
+     * Visits all IPv4 network blocks of the search tree in ascending address order, including the blocks without
+     * data. Together the blocks cover the whole IPv4 address space.
+     */
+    void visitIpv4Networks(Ipv4NetworkVisitor visitor) throws InvalidDatabaseException {
+        visitIpv4Networks(ipv4StartNode, 0, 0, visitor);
+    }
+
+    private void visitIpv4Networks(int node, int network, int depth, Ipv4NetworkVisitor visitor) throws InvalidDatabaseException {
+        if (node >= nodeCount || depth == 32) {
+            visitor.visit(network, depth, result(node, depth));
+            return;
+        }
+
+        visitIpv4Networks(readNode(node, 0), network, depth + 1, visitor);
+        visitIpv4Networks(readNode(node, 1), network | (1 << (31 - depth)), depth + 1, visitor);
+    }
+
+    @FunctionalInterface
+    interface Ipv4NetworkVisitor {
+        /**
+         * @param network      the first address of the network block
+         * @param prefixLength the prefix length of the network block
+         * @param result       the packed lookup result of all addresses in the network block
+         */
+        void visit(int network, int prefixLength, long result) throws InvalidDatabaseException;
+    }
+
+    private int readNode(int node, int index) {
+        final int offset = node * nodeByteSize;
+        switch (recordSize) {
+            case 24:
+                return readUnsigned24(offset + index * 3);
+            case 28:
+                final int middle = buffer.get(offset + 3) & 0xff;
+                if (index == 0) {
+                    return ((middle & 0xF0) << 20) | readUnsigned24(offset);
+                }
+                return ((middle & 0x0F) << 24) | readUnsigned24(offset + 4);
+            default:
+                return buffer.getInt(offset + index * 4);
+        }
+    }
+
+    private int readUnsigned24(int offset) {
+        return ((buffer.get(offset) & 0xff) << 16) | ((buffer.get(offset + 1) & 0xff) << 8) | (buffer.get(offset + 2) & 0xff);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.google.auto.value.AutoValue;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * A network block, i. e. a network address and its prefix length, of a MaxMind DB search tree.
+ * <p>
+ * IPv4 networks are stored in the IPv4-compatible IPv6 range ({@code ::/96}), which is also where the search tree of
+ * IPv6 databases keeps them.
+ */
+@AutoValue
+public abstract class NetworkBlock {
+    private static final int IPV4_PREFIX_OFFSET = 96;
+
+    public abstract long high();
+
+    public abstract long low();
+
+    public abstract int prefixLength();
+
+    public static NetworkBlock create(long high, long low, int prefixLength) {
+        final long maskedHigh;
+        final long maskedLow;
+        if (prefixLength <= 0) {
+            maskedHigh = 0;
+            maskedLow = 0;
+        } else if (prefixLength < 64) {
+            maskedHigh = high & (-1L << (64 - prefixLength));
+            maskedLow = 0;
+        } else if (prefixLength < 128) {
+            maskedHigh = high;
+            maskedLow = low & (-1L << (128 - prefixLength));
+        } else {
+            maskedHigh = high;
+            maskedLow = low;
+        }
+
+        return new AutoValue_NetworkBlock(maskedHigh, maskedLow, prefixLength);
+    }
+
+    /**
+     * Creates the block of the given IPv4 address.
+     *
+     * @param prefixLength prefix length relative to the IPv4 address space
+     */
+    public static NetworkBlock forIpv4(int address, int prefixLength) {
+        return create(0, address & 0xFFFFFFFFL, IPV4_PREFIX_OFFSET + prefixLength);
+    }
+
+    public static NetworkBlock forIpv6(long high, long low, int prefixLength) {
+        return create(high, low, prefixLength);
+    }
+
+    /**
+     * Creates the block of the given address with a prefix length as returned by {@link MmdbReader#find(InetAddress)}.
+     */
+    public static NetworkBlock forAddress(InetAddress address, int prefixLength) {
+        final byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return forIpv4(AddressBits.ipv4(bytes), prefixLength);
+        }
+
+        return forIpv6(AddressBits.ipv6High(bytes), AddressBits.ipv6Low(bytes), prefixLength);
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.maxmind.db.InvalidDatabaseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of value paths to extract from database records, like {@code country.iso_code} or
+ * {@code subdivisions.0.names.en}. Path components are the keys of the record maps or indices of the record arrays.
+ * <p>
+ * Only the values of the requested paths get decoded, everything else in the record is skipped. Instances are
+ * immutable and thread-safe.
+ */
+public class RecordProjection {
+    private static final Splitter PATH_SPLITTER = Splitter.on('.');
+
+    private final ImmutableList<String> paths;
+    private final Node root;
+
+    private RecordProjection(ImmutableList<String> paths, Node root) {
+        this.paths = paths;
+        this.root = root;
+    }
+
+    /**
+     * Compiles the given paths.
+     *
+     * @throws IllegalArgumentException if a path contains empty components
+     */
+    public static RecordProjection of(Collection<String> paths) {
+        final NodeBuilder root = new NodeBuilder();
+        for (String path : paths) {
+            NodeBuilder node = root;
+            for (String component : PATH_SPLITTER.split(path)) {
+                if (component.isEmpty()) {
+                    throw new IllegalArgumentException("Invalid record path: \"" + path + "\"");
+                }
+                node = node.children.computeIfAbsent(component, key -> new NodeBuilder());
+            }
+            node.path = path;
+        }
+
+        return new RecordProjection(ImmutableList.copyOf(paths), root.build());
+    }
+
+    public ImmutableList<String> paths() {
+        return paths;
+    }
+
+    /**
+     * Decodes the requested values of the record at the current position of the decoder.
+     *
+     * @return the decoded values by path, paths which don't exist in the record are missing
+     */
+    Map<String, Object> decode(MmdbDecoder decoder) throws InvalidDatabaseException {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        decode(decoder, root, values);
+
+        return values;
+    }
+
+    private static void decode(MmdbDecoder decoder, Node node, Map<String, Object> values) throws InvalidDatabaseException {
+        if (node.path != null) {
+            // The whole value has been requested, nested paths can be taken from the decoded value
+            final Object value = decoder.decode();
+            values.put(node.path, value);
+            extract(node, value, values);
+            return;
+        }
+
+        final int resumePosition = decoder.readControlFollowingPointer();
+        final int size = decoder.size();
+        if (decoder.type() == MmdbDecoder.TYPE_MAP) {
+            for (int i = 0; i < size; i++) {
+                final int child = decoder.readKey(node.keys);
+                if (child >= 0) {
+                    decode(decoder, node.children[child], values);
+                } else {
+                    decoder.skip();
+                }
+            }
+        } else if (decoder.type() == MmdbDecoder.TYPE_ARRAY) {
+            for (int i = 0; i < size; i++) {
+                final Node child = node.childForIndex(i);
+                if (child != null) {
+                    decode(decoder, child, values);
+                } else {
+                    decoder.skip();
+                }
+            }
+        } else {
+            // A scalar value where the paths expect a map or array, none of them exist
+            decoder.skipValue();
+        }
+
+        if (resumePosition >= 0) {
+            decoder.position(resumePosition);
+        }
+    }
+
+    private static void extract(Node node, Object value, Map<String, Object> values) {
+        for (int i = 0; i < node.children.length; i++) {
+            final Node child = node.children[i];
+            final Object childValue;
+            if (value instanceof Map) {
+                childValue = ((Map<?, ?>) value).get(child.key);
+            } else if (value instanceof List && node.indices[i] >= 0 && node.indices[i] < ((List<?>) value).size()) {
+                childValue = ((List<?>) value).get(node.indices[i]);
+            } else {
+                childValue = null;
+            }
+
+            if (childValue != null) {
+                if (child.path != null) {
+                    values.put(child.path, childValue);
+                }
+                extract(child, childValue, values);
+            }
+        }
+    }
+
+    private static class Node {
+        private final String key;
+        // Full path if the value of this node has been requested, null if only nested values have been requested
+        private final String path;
+        private final Node[] children;
+        // UTF-8 encoded keys and array indices (-1 if the key isn't a number) of the children
+        private final byte[][] keys;
+        private final int[] indices;
+
+        private Node(String key, String path, Node[] children) {
+            this.key = key;
+            this.path = path;
+            this.children = children;
+            this.keys = new byte[children.length][];
+            this.indices = new int[children.length];
+            for (int i = 0; i < children.length; i++) {
+                keys[i] = children[i].key.getBytes(StandardCharsets.UTF_8);
+                indices[i] = parseIndex(children[i].key);
+            }
+        }
+
+        private static int parseIndex(String key) {
+            if (key.length() > 9) {
+                return -1;
+            }
+            int index = 0;
+            for (int i = 0; i < key.length(); i++) {
+                final char c = key.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                index = index * 10 + (c - '0');
+            }
+
+            return index;
+        }
+
+        private Node childForIndex(int index) {
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] == index) {
+                    return children[i];
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static class NodeBuilder {
+        private final Map<String, NodeBuilder> children = new LinkedHashMap<>();
+        private String path;
+
+        private Node build() {
+            return build(null);
+        }
+
+        private Node build(String key) {
+            final Node[] childNodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<String, NodeBuilder> child : children.entrySet()) {
+                childNodes[i++] = child.getValue().build(child.getKey());
+            }
+
+            return new Node(key, path, childNodes);
+        }
+    }
+}
@@ -16,11 +16,19 @@
  */
 package org.graylog.plugins.map.geoip.processor;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog.plugins.map.geoip.GeoIpDatabaseRegistry;
 import org.graylog.plugins.map.geoip.GeoIpResolverEngine;
+import org.graylog.plugins.map.geoip.GeoIpResolverStatistics;
+import org.graylog.plugins.map.geoip.SwappableReader;
 import org.graylog2.cluster.ClusterConfigChangedEvent;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.Messages;
@@ -29,12 +37,24 @@ import org.graylog2.plugin.messageprocessors.MessageProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
 public class GeoIpProcessor implements MessageProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(GeoIpProcessor.class);
 
@@ -53,35 +73,172 @@ public class GeoIpProcessor implements MessageProcessor {
     private final ClusterConfigService clusterConfigService;
     private final ScheduledExecutorService scheduler;
     private final MetricRegistry metricRegistry;
+    private final GeoIpDatabaseRegistry databaseRegistry;
+    private final GeoIpResolverStatistics statistics;
+    private final Path dataDirectory;
 
     private final AtomicReference<GeoIpResolverConfig> config;
-    private final AtomicReference<GeoIpResolverEngine> filterEngine;
+    private final SwappableReader<GeoIpResolverEngine> filterEngine;
+    private final AtomicReference<ForkJoinPool> parallelPool;
+    private final AtomicReference<ScheduledFuture<?>> cacheSnapshotTask;
+    private final CountDownLatch engineLoaded = new CountDownLatch(1);
+    private final Timer serialProcessTime;
+    private final Timer parallelProcessTime;
+    private final Meter notReadyMessages;
+    private final Meter engineLoadFailures;
 
     @Inject
     public GeoIpProcessor(ClusterConfigService clusterConfigService,
                           @Named("daemonScheduler") ScheduledExecutorService scheduler,
                           EventBus eventBus,
-                          MetricRegistry metricRegistry) {
+                          MetricRegistry metricRegistry,
+                          GeoIpDatabaseRegistry databaseRegistry,
+                          GeoIpResolverStatistics statistics,
+                          @Named("data_dir") Path dataDirectory) {
         this.clusterConfigService = clusterConfigService;
         this.scheduler = scheduler;
         this.metricRegistry = metricRegistry;
+        this.databaseRegistry = databaseRegistry;
+        this.statistics = statistics;
+        this.dataDirectory = dataDirectory;
         final GeoIpResolverConfig config = clusterConfigService.getOrDefault(GeoIpResolverConfig.class,
                 GeoIpResolverConfig.defaultConfig());
 
         this.config = new AtomicReference<>(config);
-        this.filterEngine = new AtomicReference<>(new GeoIpResolverEngine(config, metricRegistry));
+        this.filterEngine = new SwappableReader<>();
+        this.parallelPool = new AtomicReference<>(createParallelPool(config));
+        this.cacheSnapshotTask = new AtomicReference<>(scheduleCacheSnapshots(config));
+        this.serialProcessTime = metricRegistry.timer(name(GeoIpProcessor.class, "serialProcessTime"));
+        this.parallelProcessTime = metricRegistry.timer(name(GeoIpProcessor.class, "parallelProcessTime"));
+        this.notReadyMessages = metricRegistry.meter(name(GeoIpProcessor.class, "notReadyMessages"));
+        this.engineLoadFailures = metricRegistry.meter(name(GeoIpProcessor.class, "engineLoadFailures"));
+
+        // Replace the gauge of a previous processor, it would keep reporting its state otherwise
+        final String readyName = name(GeoIpProcessor.class, "ready");
+        metricRegistry.remove(readyName);
+        metricRegistry.register(readyName, (Gauge<Boolean>) () -> filterEngine.current() != null);
 
         eventBus.register(this);
+
+        // Opening and warming up the database takes a while, the node doesn't wait for it to start
+        scheduler.schedule((Runnable) this::loadEngine, 0, TimeUnit.SECONDS);
+    }
+
+    @Nullable
+    private static ForkJoinPool createParallelPool(GeoIpResolverConfig config) {
+        if (config.parallelBatchThreshold() <= 0) {
+            return null;
+        }
+
+        final int parallelism = config.parallelism() > 0 ? config.parallelism() : Runtime.getRuntime().availableProcessors();
+        final ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("geoip-resolver-" + thread.getPoolIndex());
+            return thread;
+        };
+
+        return new ForkJoinPool(parallelism, threadFactory, null, false);
+    }
+
+    @Nullable
+    private ScheduledFuture<?> scheduleCacheSnapshots(GeoIpResolverConfig config) {
+        if (config.cacheSnapshotInterval() <= 0) {
+            return null;
+        }
+
+        return scheduler.scheduleAtFixedRate(this::writeCacheSnapshot, config.cacheSnapshotInterval(),
+                config.cacheSnapshotInterval(), config.cacheSnapshotIntervalUnit());
+    }
+
+    private void writeCacheSnapshot() {
+        try (SwappableReader.Lease<GeoIpResolverEngine> lease = filterEngine.acquire()) {
+            if (lease != null) {
+                lease.get().writeCacheSnapshot();
+            }
+        } catch (Exception e) {
+            // Must not end the periodic task
+            LOG.warn("Couldn't write GeoIP location cache snapshot", e);
+        }
     }
 
     public Messages process(Messages messages) {
-        for (Message message : messages) {
-            filterEngine.get().filter(message);
+        SwappableReader.Lease<GeoIpResolverEngine> engineLease = filterEngine.acquire();
+        if (engineLease == null) {
+            engineLease = awaitEngine();
+        }
+        if (engineLease == null) {
+            // The database hasn't been opened yet
+            notReadyMessages.mark(Iterables.size(messages));
+            return messages;
+        }
+
+        // The engine gets closed once all batches which are using it have been processed
+        try (SwappableReader.Lease<GeoIpResolverEngine> lease = engineLease) {
+            final long start = System.nanoTime();
+            process(lease.get(), messages);
+            // Decides whether the following batches only get enriched from the location cache
+            lease.get().recordBatchTime(System.nanoTime() - start);
         }
 
         return messages;
     }
 
+    @Nullable
+    private SwappableReader.Lease<GeoIpResolverEngine> awaitEngine() {
+        final GeoIpResolverConfig config = this.config.get();
+        if (config.readyTimeout() <= 0) {
+            return null;
+        }
+
+        try {
+            engineLoaded.await(config.readyTimeout(), config.readyTimeoutUnit());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return filterEngine.acquire();
+    }
+
+    private void process(GeoIpResolverEngine engine, Messages messages) {
+        final ForkJoinPool pool = parallelPool.get();
+        if (pool != null && Iterables.size(messages) >= config.get().parallelBatchThreshold()) {
+            try (Timer.Context ignored = parallelProcessTime.time()) {
+                processParallel(engine, pool, Lists.newArrayList(messages));
+                return;
+            }
+        }
+
+        try (Timer.Context ignored = serialProcessTime.time()) {
+            engine.filter(messages);
+        }
+    }
+
+    /**
+     * Splits the batch into one contiguous chunk per pool thread. The messages are only enriched in place, so their
+     * order in the batch doesn't change.
+     * <p>
+     * If the pool gets shut down by a configuration change while the chunks are being submitted, the chunks which
+     * couldn't be submitted anymore are processed on the calling thread. Every message is still only enriched by
+     * one thread.
+     */
+    private void processParallel(GeoIpResolverEngine engine, ForkJoinPool pool, List<Message> batch) {
+        final int chunkSize = (batch.size() + pool.getParallelism() - 1) / pool.getParallelism();
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>(pool.getParallelism());
+        for (int from = 0; from < batch.size(); from += chunkSize) {
+            final List<Message> chunk = batch.subList(from, Math.min(from + chunkSize, batch.size()));
+            try {
+                tasks.add(pool.submit(() -> engine.filter(chunk)));
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Couldn't process message batch in parallel", e);
+                engine.filter(batch.subList(from, batch.size()));
+                break;
+            }
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
     @Subscribe
     @SuppressWarnings("unused")
     public void updateConfig(ClusterConfigChangedEvent event) {
@@ -98,6 +255,41 @@ public class GeoIpProcessor implements MessageProcessor {
 
         LOG.info("Updating GeoIP resolver engine - {}", newConfig);
         config.set(newConfig);
-        filterEngine.set(new GeoIpResolverEngine(newConfig, metricRegistry));
+        // The new engine starts with the locations cached by the old one
+        writeCacheSnapshot();
+        loadEngine();
+        final ScheduledFuture<?> oldSnapshotTask = cacheSnapshotTask.getAndSet(scheduleCacheSnapshots(newConfig));
+        if (oldSnapshotTask != null) {
+            oldSnapshotTask.cancel(false);
+        }
+        // Already submitted batches still get finished by the old pool
+        final ForkJoinPool oldPool = parallelPool.getAndSet(createParallelPool(newConfig));
+        if (oldPool != null) {
+            oldPool.shutdown();
+        }
+    }
+
+    /**
+     * Creates the engine of the current configuration and swaps it in once its database has been opened and warmed
+     * up. Messages are processed by the previous engine in the meantime, which keeps processing them if the new
+     * engine can't be created.
+     */
+    private synchronized void loadEngine() {
+        GeoIpResolverEngine engine = null;
+        try {
+            engine = new GeoIpResolverEngine(config.get(), databaseRegistry, statistics, metricRegistry, dataDirectory);
+            engine.warmUp();
+            filterEngine.swap(engine);
+        } catch (Exception e) {
+            // Runs on the scheduler, the exception would end up in a discarded future otherwise
+            engineLoadFailures.mark();
+            LOG.error("Couldn't load GeoIP resolver engine, {}", filterEngine.current() != null
+                    ? "keeping the previous engine" : "messages are not enriched", e);
+            if (engine != null) {
+                engine.close();
+            }
+        } finally {
+            engineLoaded.countDown();
+        }
     }
 }
@@ -0,0 +1,46 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.rest;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+
+import java.util.Map;
+
+@JsonAutoDetect
+@AutoValue
+public abstract class GeoIpDiagnostics {
+    /**
+     * Counters and per-stage timings of the GeoIP resolver, keyed by metric name.
+     */
+    @JsonProperty("metrics")
+    public abstract Map<String, Object> metrics();
+
+    /**
+     * Number of messages which got location fields for each address field.
+     */
+    @JsonProperty("field_writes")
+    public abstract Map<String, Long> fieldWrites();
+
+    @JsonCreator
+    public static GeoIpDiagnostics create(@JsonProperty("metrics") Map<String, Object> metrics,
+                                          @JsonProperty("field_writes") Map<String, Long> fieldWrites) {
+        return new AutoValue_GeoIpDiagnostics(metrics, fieldWrites);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.rest;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.annotation.Timed;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.graylog.plugins.map.geoip.GeoIpResolverEngine;
+import org.graylog.plugins.map.geoip.GeoIpResolverStatistics;
+import org.graylog2.plugin.rest.PluginRestResource;
+import org.graylog2.shared.metrics.MetricUtils;
+import org.graylog2.shared.rest.resources.RestResource;
+import org.graylog2.shared.security.RestPermissions;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+import java.util.TreeMap;
+
+@RequiresAuthentication
+@Api(value = "MapWidget/GeoIP", description = "GeoIP resolver diagnostics")
+@Path("/geoip")
+public class GeoIpDiagnosticsResource extends RestResource implements PluginRestResource {
+    // Metrics of the resolver engine, the processor, the shared databases and their caches
+    private static final String METRIC_PREFIX = GeoIpResolverEngine.class.getPackage().getName() + ".";
+
+    private final MetricRegistry metricRegistry;
+    private final GeoIpResolverStatistics statistics;
+
+    @Inject
+    public GeoIpDiagnosticsResource(MetricRegistry metricRegistry, GeoIpResolverStatistics statistics) {
+        this.metricRegistry = metricRegistry;
+        this.statistics = statistics;
+    }
+
+    @GET
+    @Timed
+    @Path("/diagnostics")
+    @ApiOperation(value = "Get the per-stage metrics of the GeoIP resolver on this node")
+    @Produces(MediaType.APPLICATION_JSON)
+    public GeoIpDiagnostics diagnostics() {
+        checkPermission(RestPermissions.METRICS_READALL);
+
+        final Map<String, Metric> metrics = new TreeMap<>();
+        metricRegistry.getMetrics().forEach((name, metric) -> {
+            if (name.startsWith(METRIC_PREFIX)) {
+                metrics.put(name, metric);
+            }
+        });
+        return GeoIpDiagnostics.create(MetricUtils.mapAll(metrics), statistics.fieldWrites());
+    }
+}
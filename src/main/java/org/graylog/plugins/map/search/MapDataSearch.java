@@ -19,10 +19,12 @@ package org.graylog.plugins.map.search;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.map.geoip.Geohash;
 import org.graylog2.indexer.searches.Searches;
 import org.graylog2.rest.models.search.responses.TermsResult;
 
 import javax.inject.Inject;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -66,14 +68,27 @@ public class MapDataSearch {
 
     private Map<String, Long> validateTerms(final String field, final Map<String, Long> terms) throws ValueTypeException {
         final Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
+        final Map<String, Long> coordinateTerms = new LinkedHashMap<>(terms.size());
 
-        for (String term : terms.keySet()) {
+        for (Map.Entry<String, Long> entry : terms.entrySet()) {
+            final String term = entry.getKey();
             if (Strings.isNullOrEmpty(term)) {
+                coordinateTerms.merge(term, entry.getValue(), Long::sum);
                 continue;
             }
 
             final List<String> list = splitter.splitToList(term);
 
+            if (list.size() == 1) {
+                // Geohash fields written by the GeoIP resolver get shown at the center of their cell
+                final double[] center = Geohash.decodeCenter(term);
+                if (center == null) {
+                    throw getValueTypeException(field, term);
+                }
+                coordinateTerms.merge(center[0] + "," + center[1], entry.getValue(), Long::sum);
+                continue;
+            }
+
             if (list.size() != 2) {
                 throw getValueTypeException(field, term);
             }
@@ -83,13 +98,14 @@ public class MapDataSearch {
                     throw getValueTypeException(field, term);
                 }
             }
+            coordinateTerms.merge(term, entry.getValue(), Long::sum);
         }
 
-        return terms;
+        return coordinateTerms;
     }
 
     private ValueTypeException getValueTypeException(final String field, final String term) {
-        return new ValueTypeException("Invalid geo data term for field \"" + field + "\": " + term + " (required: <lat>,<lng> - example: 1.23,3.11)");
+        return new ValueTypeException("Invalid geo data term for field \"" + field + "\": " + term + " (required: <lat>,<lng> or geohash - example: 1.23,3.11)");
     }
 
     public static class ValueTypeException extends Exception {
@@ -0,0 +1,92 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveFieldSkipListTest {
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void skipsFieldAfterConsecutiveMisses() {
+        final AdaptiveFieldSkipList skipList = new AdaptiveFieldSkipList(3, 0, metricRegistry);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(skipList.shouldCheck("message")).isTrue();
+            skipList.recordMiss("message");
+        }
+
+        assertThat(skipList.shouldCheck("message")).isFalse();
+        assertThat(skipList.shouldCheck("source")).isTrue();
+        assertThat(skipList.skippedFields()).containsExactly("message");
+        assertThat(metricRegistry.meter(name(GeoIpResolverEngine.class, "skippedFieldChecks")).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.getGauges().get(name(GeoIpResolverEngine.class, "skippedFieldCount")).getValue()).isEqualTo(1);
+    }
+
+    @Test
+    public void hitResetsConsecutiveMisses() {
+        final AdaptiveFieldSkipList skipList = new AdaptiveFieldSkipList(3, 0, metricRegistry);
+
+        skipList.recordMiss("ip");
+        skipList.recordMiss("ip");
+        skipList.recordHit("ip");
+        skipList.recordMiss("ip");
+        skipList.recordMiss("ip");
+
+        assertThat(skipList.shouldCheck("ip")).isTrue();
+        assertThat(skipList.skippedFields()).isEmpty();
+    }
+
+    @Test
+    public void reprobesSkippedFields() {
+        final AdaptiveFieldSkipList skipList = new AdaptiveFieldSkipList(1, 2, metricRegistry);
+        skipList.recordMiss("ip");
+
+        boolean reprobed = false;
+        for (int i = 0; i < 1000 && !reprobed; i++) {
+            reprobed = skipList.shouldCheck("ip");
+        }
+        assertThat(reprobed).isTrue();
+
+        skipList.recordHit("ip");
+        assertThat(skipList.skippedFields()).isEmpty();
+    }
+
+    @Test
+    public void replacesGaugesOfPreviousInstance() {
+        final AdaptiveFieldSkipList oldSkipList = new AdaptiveFieldSkipList(1, 0, metricRegistry);
+        oldSkipList.recordMiss("message");
+
+        new AdaptiveFieldSkipList(1, 0, metricRegistry);
+
+        @SuppressWarnings("unchecked")
+        final Set<String> skippedFields = (Set<String>) metricRegistry.getGauges().get(name(GeoIpResolverEngine.class, "skippedFields")).getValue();
+        assertThat(skippedFields).isEmpty();
+    }
+}
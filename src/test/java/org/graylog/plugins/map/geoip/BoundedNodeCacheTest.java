@@ -0,0 +1,80 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BoundedNodeCacheTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private static JsonNode country(String isoCode) {
+        final ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("iso_code", isoCode);
+        node.put("geoname_id", 6252001L);
+        node.putObject("names").put("en", "Country " + isoCode);
+        return node;
+    }
+
+    @Test
+    public void decodesNodesOnlyOnce() throws Exception {
+        final BoundedNodeCache cache = new BoundedNodeCache(1024 * 1024, metricRegistry, "test");
+        final AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            final JsonNode node = cache.get(42, offset -> {
+                loads.incrementAndGet();
+                return country("US");
+            });
+            assertThat(node.get("iso_code").textValue()).isEqualTo("US");
+        }
+
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(metricRegistry.meter("test.hits").getCount()).isEqualTo(9L);
+        assertThat(metricRegistry.meter("test.misses").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void evictsNodesAboveMemoryCap() throws Exception {
+        final long nodeSize = BoundedNodeCache.estimateSize(country("US"));
+        final BoundedNodeCache cache = new BoundedNodeCache(10 * nodeSize, metricRegistry, "test");
+
+        for (int i = 0; i < 100; i++) {
+            cache.get(i, offset -> country("US"));
+        }
+
+        assertThat(cache.size()).isLessThanOrEqualTo(10L);
+        assertThat(metricRegistry.meter("test.evictions").getCount()).isGreaterThanOrEqualTo(90L);
+    }
+
+    @Test
+    public void estimatesSizeFromContents() {
+        final ObjectNode small = JsonNodeFactory.instance.objectNode().put("iso_code", "US");
+        final ObjectNode large = JsonNodeFactory.instance.objectNode().put("iso_code", "US").put("name", "United States of America");
+        large.putArray("subdivisions").add("California").add("Nevada");
+
+        assertThat(BoundedNodeCache.estimateSize(small)).isPositive();
+        assertThat(BoundedNodeCache.estimateSize(large)).isGreaterThan(BoundedNodeCache.estimateSize(small) + 100);
+    }
+}
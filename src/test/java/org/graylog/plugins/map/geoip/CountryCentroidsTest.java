@@ -0,0 +1,39 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CountryCentroidsTest {
+    private final CountryCentroids countryCentroids = CountryCentroids.load();
+
+    @Test
+    public void returnsCenterOfKnownCountries() {
+        assertThat(countryCentroids.contains("DE")).isTrue();
+        assertThat(countryCentroids.latitude("US")).isEqualTo(37.09024);
+        assertThat(countryCentroids.longitude("US")).isEqualTo(-95.712891);
+    }
+
+    @Test
+    public void returnsNaNForUnknownCountries() {
+        assertThat(countryCentroids.contains("XX")).isFalse();
+        assertThat(countryCentroids.latitude("XX")).isNaN();
+        assertThat(countryCentroids.longitude("XX")).isNaN();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import com.eaio.uuid.UUID;
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog2.plugin.Message;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the bytes allocated by the resolver engine per enriched message once all caches are warm. For
+ * comparison it also measures adding the same fields with constant names and values, which is what storing them in
+ * the message costs anyway.
+ * Not run as part of the tests:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;dependencies&gt; \
+ *     org.graylog.plugins.map.geoip.EnrichmentAllocationBenchmark /path/to/GeoLite2-City.mmdb [messages]
+ * </pre>
+ * Only works on JVMs which support {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ */
+public class EnrichmentAllocationBenchmark {
+    private static final String[] ADDRESSES = {"1.2.3.4", "8.8.8.8", "81.2.69.160", "89.160.20.112"};
+    private static final String FIELD = "source_ip";
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: EnrichmentAllocationBenchmark <database path> [messages]");
+            System.exit(1);
+        }
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        final GeoIpResolverConfig config = GeoIpResolverConfig.defaultConfig().toBuilder()
+                .enabled(true)
+                .dbPath(args[0])
+                .includeFields(Collections.singleton(FIELD))
+                .build();
+        final GeoIpResolverEngine engine = new GeoIpResolverEngine(config, new MetricRegistry());
+
+        // Warm up, so that caches, class loading and JIT compilation don't count
+        for (int i = 0; i < 5; i++) {
+            measureEngine(engine, messages(count));
+            measureFieldStorage(engine, messages(count));
+        }
+
+        final long engineBytes = measureEngine(engine, messages(count));
+        final long fieldStorageBytes = measureFieldStorage(engine, messages(count));
+        System.out.printf("%d messages with %s%n", count, args[0]);
+        System.out.printf("engine:        %,8d bytes per message, %,8d bytes on top of field storage%n",
+                engineBytes / count, (engineBytes - fieldStorageBytes) / count);
+        System.out.printf("field storage: %,8d bytes per message%n", fieldStorageBytes / count);
+        engine.close();
+    }
+
+    private static List<Message> messages(int count) {
+        final List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(ImmutableMap.of("_id", new UUID().toString(), "message", "Hello",
+                    FIELD, ADDRESSES[i % ADDRESSES.length])));
+        }
+        return messages;
+    }
+
+    private static long measureEngine(GeoIpResolverEngine engine, List<Message> messages) {
+        final long before = allocatedBytes();
+        for (Message message : messages) {
+            engine.filter(message);
+        }
+        return allocatedBytes() - before;
+    }
+
+    private static long measureFieldStorage(GeoIpResolverEngine engine, List<Message> messages) {
+        final GeoIpResolverEngine.GeoLocationInformation location =
+                engine.extractGeoLocationInformation(ADDRESSES[0]).orElseThrow(IllegalStateException::new);
+        final String geolocation = location.latitude() + "," + location.longitude();
+        final String geolocationField = FIELD + "_geolocation";
+        final String countryCodeField = FIELD + "_country_code";
+        final String cityNameField = FIELD + "_city_name";
+
+        final long before = allocatedBytes();
+        for (Message message : messages) {
+            message.addField(geolocationField, geolocation);
+            message.addField(countryCodeField, location.countryIsoCode());
+            message.addField(cityNameField, location.cityName());
+        }
+        return allocatedBytes() - before;
+    }
+
+    private static long allocatedBytes() {
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
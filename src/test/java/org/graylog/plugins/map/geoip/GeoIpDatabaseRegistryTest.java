@@ -0,0 +1,175 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import org.graylog.plugins.map.config.DatabaseType;
+import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog2.plugin.lookup.LookupCachePurge;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class GeoIpDatabaseRegistryTest {
+    static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City-Test.mmdb";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MetricRegistry metricRegistry;
+    private GeoIpDatabaseRegistry registry;
+    private Path databasePath;
+
+    @Before
+    public void setUp() throws Exception {
+        metricRegistry = new MetricRegistry();
+        registry = new GeoIpDatabaseRegistry(metricRegistry);
+        databasePath = temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb");
+        Files.copy(Paths.get(getClass().getResource(GEO_LITE2_CITY_MMDB).toURI()), databasePath);
+    }
+
+    @Test
+    public void openSharesDatabaseOfUnchangedFile() throws Exception {
+        final GeoIpDatabase first = registry.open(databasePath);
+        final GeoIpDatabase second = registry.open(databasePath.getParent().resolve(".").resolve(databasePath.getFileName()));
+
+        assertThat(first.isSameDatabase(second)).isTrue();
+        assertThat(first.mmdbReader()).isSameAs(second.mmdbReader());
+        assertThat(first.databaseReader()).isSameAs(second.databaseReader());
+        assertThat(registry.openDatabases()).isEqualTo(1);
+
+        first.close();
+        assertThat(registry.openDatabases()).isEqualTo(1);
+        // Closing a handle twice must not release the database of other handles
+        first.close();
+        assertThat(registry.openDatabases()).isEqualTo(1);
+
+        second.close();
+        assertThat(registry.openDatabases()).isEqualTo(0);
+    }
+
+    @Test
+    public void openLoadsChangedFileAsNewDatabase() throws Exception {
+        final GeoIpDatabase oldDatabase = registry.open(databasePath);
+
+        final Path newFile = temporaryFolder.newFile().toPath();
+        Files.copy(databasePath, newFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(newFile, databasePath, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(databasePath, FileTime.fromMillis(System.currentTimeMillis() + 60_000L));
+
+        final GeoIpDatabase newDatabase = registry.open(databasePath);
+        assertThat(newDatabase.isSameDatabase(oldDatabase)).isFalse();
+        assertThat(registry.openDatabases()).isEqualTo(2);
+        // Consumers of the old file keep using it until they close their handle
+        assertThat(oldDatabase.databaseReader().getMetadata().getDatabaseType()).contains("City");
+
+        oldDatabase.close();
+        assertThat(registry.openDatabases()).isEqualTo(1);
+        newDatabase.close();
+    }
+
+    @Test
+    public void networkCachesAreSharedByName() throws Exception {
+        final GeoIpDatabase first = registry.open(databasePath);
+        final GeoIpDatabase second = registry.open(databasePath);
+
+        final NetworkBlockCache<String> cache = first.networkCache("test", 10, 0, TimeUnit.SECONDS, "test");
+        assertThat(second.<String>networkCache("test", 10, 0, TimeUnit.SECONDS, "test")).isSameAs(cache);
+        assertThat(second.<String>networkCache("other", 10, 0, TimeUnit.SECONDS, "test")).isNotSameAs(cache);
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void nodeCachesOfDifferentCapsHaveSeparateMeters() throws Exception {
+        final GeoIpDatabase database = registry.open(databasePath);
+        final String prefix = MetricRegistry.name(GeoIpDatabase.class, "nodeCache", "GeoLite2-City.mmdb",
+                String.valueOf(database.mmdbReader().buildEpoch()));
+
+        database.databaseReader(1024 * 1024).city(InetAddress.getByName("8.8.8.8"));
+        database.databaseReader(2048 * 1024).city(InetAddress.getByName("8.8.8.8"));
+        database.databaseReader(2048 * 1024).city(InetAddress.getByName("8.8.8.8"));
+
+        // Each cache decoded the record once, only the second one served the repeated lookup
+        final long misses = metricRegistry.meter(MetricRegistry.name(prefix, "1048576", "misses")).getCount();
+        assertThat(misses).isPositive();
+        assertThat(metricRegistry.meter(MetricRegistry.name(prefix, "2097152", "misses")).getCount()).isEqualTo(misses);
+        assertThat(metricRegistry.meter(MetricRegistry.name(prefix, "2097152", "hits")).getCount())
+                .isGreaterThan(metricRegistry.meter(MetricRegistry.name(prefix, "1048576", "hits")).getCount());
+
+        // The meters of a closed database get removed
+        database.close();
+        assertThat(metricRegistry.getMeters().keySet()).noneMatch(name -> name.startsWith(prefix));
+    }
+
+    @Test
+    public void processorEngineAndLookupAdaptersShareDatabase() throws Exception {
+        final GeoIpResolverConfig engineConfig = GeoIpResolverConfig.defaultConfig().toBuilder()
+                .enabled(true)
+                .dbPath(databasePath.toString())
+                .build();
+        final GeoIpResolverEngine engine = new GeoIpResolverEngine(engineConfig, registry, metricRegistry);
+
+        final MaxmindDataAdapter.Config adapterConfig = MaxmindDataAdapter.Config.builder()
+                .checkInterval(1L)
+                .checkIntervalUnit(TimeUnit.HOURS)
+                .dbType(DatabaseType.MAXMIND_CITY)
+                .path(databasePath.toString())
+                .type("test")
+                .build();
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final MaxmindDataAdapter firstAdapter = new MaxmindDataAdapter("first", "first", adapterConfig, metricRegistry, registry, scheduler);
+        final MaxmindDataAdapter secondAdapter = new MaxmindDataAdapter("second", "second", adapterConfig, metricRegistry, registry, scheduler);
+        firstAdapter.doStart();
+        secondAdapter.doStart();
+        assertThat(firstAdapter.awaitDatabase(30L, TimeUnit.SECONDS)).isTrue();
+        assertThat(secondAdapter.awaitDatabase(30L, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(registry.openDatabases()).isEqualTo(1);
+        assertThat(engine.extractGeoLocationInformation("8.8.8.8")).isPresent();
+        assertThat(firstAdapter.doGet("8.8.8.8").isEmpty()).isFalse();
+        // The second adapter gets the result cached by the first one
+        assertThat(secondAdapter.doGet("8.8.8.9").isEmpty()).isFalse();
+        assertThat(metricRegistry.meter(MetricRegistry.name(MaxmindDataAdapter.class, "networkCache", "hits")).getCount()).isEqualTo(1);
+
+        // Refreshing without a changed file keeps the shared database
+        firstAdapter.doRefresh(mock(LookupCachePurge.class));
+        assertThat(registry.openDatabases()).isEqualTo(1);
+
+        engine.close();
+        firstAdapter.doStop();
+        assertThat(registry.openDatabases()).isEqualTo(1);
+        secondAdapter.doStop();
+        assertThat(registry.openDatabases()).isEqualTo(0);
+        scheduler.shutdownNow();
+    }
+}
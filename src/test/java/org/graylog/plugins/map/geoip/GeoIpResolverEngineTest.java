@@ -18,20 +18,32 @@ package org.graylog.plugins.map.geoip;
 
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.eaio.uuid.UUID;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.net.InetAddresses;
-import org.graylog.plugins.map.ConditionalRunner;
-import org.graylog.plugins.map.ResourceExistsCondition;
+import org.graylog.plugins.map.config.DatabaseType;
 import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog.plugins.map.config.MetricsMode;
+import org.graylog.plugins.map.config.ResolverBackend;
 import org.graylog2.plugin.Message;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-import org.junit.runner.RunWith;
+import org.junit.rules.TemporaryFolder;
 
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static org.junit.Assert.assertEquals;
@@ -40,10 +52,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
-@RunWith(ConditionalRunner.class)
-@ResourceExistsCondition(GeoIpResolverEngineTest.GEO_LITE2_CITY_MMDB)
 public class GeoIpResolverEngineTest {
-    static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City.mmdb";
+    static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City-Test.mmdb";
+    private static final String GEO_LITE2_COUNTRY_MMDB = "/GeoLite2-Country-Test.mmdb";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     private MetricRegistry metricRegistry;
     private GeoIpResolverConfig config;
@@ -92,6 +106,284 @@ public class GeoIpResolverEngineTest {
         assertTrue("Should extract geo location information IP address fields", resolver.extractGeoLocationInformation(InetAddresses.forString("1.2.3.4")).isPresent());
     }
 
+    @Test
+    public void extractGeoLocationInformationUsesLocationCache() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config, metricRegistry);
+
+        assertTrue(resolver.extractGeoLocationInformation("1.2.3.4").isPresent());
+        assertTrue(resolver.extractGeoLocationInformation("1.2.3.4").isPresent());
+        assertTrue(resolver.extractGeoLocationInformation(InetAddresses.forString("1.2.3.4")).isPresent());
+
+        assertEquals("Should have looked up the IP only once", 1, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+        assertEquals(2, metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits")).getCount());
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheMisses")).getCount());
+
+        resolver.purgeCache();
+        assertTrue(resolver.extractGeoLocationInformation("1.2.3.4").isPresent());
+        assertEquals("Should have looked up the IP again after purging the cache", 2, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+    }
+
+    @Test
+    public void extractGeoLocationInformationUsesNetworkCacheForAddressesOfSameBlock() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder().cacheSize(0L).build(), metricRegistry);
+
+        assertTrue(resolver.extractGeoLocationInformation("8.8.8.8").isPresent());
+        assertTrue(resolver.extractGeoLocationInformation("8.8.8.9").isPresent());
+
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "networkCache", "misses")).getCount());
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "networkCache", "hits")).getCount());
+        assertEquals(resolver.extractGeoLocationInformation("8.8.8.8"), resolver.extractGeoLocationInformation("8.8.8.9"));
+    }
+
+    @Test
+    public void countryModeEngineDoesNotShareNetworkCacheWithCityModeEngine() {
+        final GeoIpDatabaseRegistry databaseRegistry = new GeoIpDatabaseRegistry(metricRegistry);
+        final GeoIpResolverConfig uncachedConfig = config.toBuilder().cacheSize(0L).build();
+        final GeoIpResolverEngine cityResolver = new GeoIpResolverEngine(uncachedConfig, databaseRegistry, metricRegistry);
+        final GeoIpResolverEngine countryResolver = new GeoIpResolverEngine(uncachedConfig.toBuilder().dbType(DatabaseType.MAXMIND_COUNTRY).build(),
+                databaseRegistry, metricRegistry);
+
+        assertEquals("Mountain View", cityResolver.extractGeoLocationInformation("8.8.8.8").map(GeoIpResolverEngine.GeoLocationInformation::cityName).orElse(null));
+        assertEquals("US", countryResolver.extractGeoLocationInformation("8.8.8.8").map(GeoIpResolverEngine.GeoLocationInformation::countryIsoCode).orElse(null));
+        assertNull(countryResolver.extractGeoLocationInformation("8.8.8.8").map(GeoIpResolverEngine.GeoLocationInformation::cityName).orElse(null));
+
+        cityResolver.close();
+        countryResolver.close();
+    }
+
+    @Test
+    public void closingReplacedEnginePurgesSharedNetworkCache() {
+        final GeoIpDatabaseRegistry databaseRegistry = new GeoIpDatabaseRegistry(metricRegistry);
+        final GeoIpResolverConfig uncachedConfig = config.toBuilder().cacheSize(0L).build();
+        final GeoIpResolverEngine oldResolver = new GeoIpResolverEngine(uncachedConfig, databaseRegistry, metricRegistry);
+        assertTrue(oldResolver.extractGeoLocationInformation("8.8.8.8").isPresent());
+
+        final GeoIpResolverEngine newResolver = new GeoIpResolverEngine(uncachedConfig, databaseRegistry, metricRegistry);
+        oldResolver.close();
+        assertTrue(newResolver.extractGeoLocationInformation("8.8.8.8").isPresent());
+
+        assertEquals("Should have looked up the network block again", 2, metricRegistry.meter(name(GeoIpResolverEngine.class, "networkCache", "misses")).getCount());
+        newResolver.close();
+    }
+
+    @Test
+    public void reservedAddressesAreNotLookedUp() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config, metricRegistry);
+
+        assertFalse(resolver.extractGeoLocationInformation("10.0.0.1").isPresent());
+        assertFalse(resolver.extractGeoLocationInformation("100.64.1.1").isPresent());
+        assertFalse(resolver.extractGeoLocationInformation("fe80::1").isPresent());
+
+        assertEquals(0, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+        assertEquals(0, metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheMisses")).getCount());
+        assertEquals(3, metricRegistry.meter(name(GeoIpResolverEngine.class, "reservedAddresses")).getCount());
+    }
+
+    @Test
+    public void negativeCacheRemembersAddressesWhichAreNotInDatabase() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config, metricRegistry);
+
+        // Neither reserved nor in the test database
+        assertFalse(resolver.extractGeoLocationInformation("5.6.7.8").isPresent());
+        assertFalse(resolver.extractGeoLocationInformation("5.6.7.8").isPresent());
+
+        assertEquals("Should have looked up the IP only once", 1, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "negativeCacheHits")).getCount());
+
+        resolver.purgeCache();
+        assertFalse(resolver.extractGeoLocationInformation("5.6.7.8").isPresent());
+        assertEquals(2, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+    }
+
+    @Test
+    public void maxmindBackendWithoutNetworkCacheRemembersAddressesWhichAreNotInDatabase() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder()
+                .resolverBackend(ResolverBackend.MAXMIND)
+                .networkCacheSize(0L)
+                .build(), metricRegistry);
+
+        assertEquals("Mountain View", resolver.extractGeoLocationInformation("8.8.8.8").map(GeoIpResolverEngine.GeoLocationInformation::cityName).orElse(null));
+        assertFalse(resolver.extractGeoLocationInformation("5.6.7.8").isPresent());
+        assertFalse(resolver.extractGeoLocationInformation("5.6.7.8").isPresent());
+
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "notFound")).getCount());
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "negativeCacheHits")).getCount());
+    }
+
+    @Test
+    public void mmdbBackendReturnsSameLocationsAsMaxmindBackend() {
+        final GeoIpResolverConfig uncachedConfig = config.toBuilder().cacheSize(0L).networkCacheSize(0L).build();
+        final GeoIpResolverEngine mmdbResolver = new GeoIpResolverEngine(uncachedConfig.toBuilder().resolverBackend(ResolverBackend.MMDB).build(), metricRegistry);
+        final GeoIpResolverEngine maxmindResolver = new GeoIpResolverEngine(uncachedConfig.toBuilder().resolverBackend(ResolverBackend.MAXMIND).build(), metricRegistry);
+
+        for (String ip : new String[]{"1.2.3.4", "8.8.8.8", "8.8.4.4", "81.2.69.160", "192.168.0.1", "2001:4860:4860::8888"}) {
+            assertEquals(ip, maxmindResolver.extractGeoLocationInformation(ip), mmdbResolver.extractGeoLocationInformation(ip));
+        }
+    }
+
+    @Test
+    public void rangeIndexBackendReturnsSameLocationsAsMmdbBackend() throws Exception {
+        // The index gets persisted next to the database
+        final Path databasePath = temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb");
+        Files.copy(Paths.get(getTestDatabasePath()), databasePath);
+        final GeoIpResolverConfig uncachedConfig = config.toBuilder().dbPath(databasePath.toString()).cacheSize(0L).networkCacheSize(0L).build();
+        final GeoIpResolverEngine mmdbResolver = new GeoIpResolverEngine(uncachedConfig.toBuilder().resolverBackend(ResolverBackend.MMDB).build(), metricRegistry);
+        final GeoIpResolverEngine rangeIndexResolver = new GeoIpResolverEngine(uncachedConfig.toBuilder().resolverBackend(ResolverBackend.RANGE_INDEX).build(), metricRegistry);
+
+        for (String ip : new String[]{"1.2.3.4", "8.8.8.8", "8.8.4.4", "81.2.69.160", "5.6.7.8", "2001:4860:4860::8888"}) {
+            assertEquals(ip, mmdbResolver.extractGeoLocationInformation(ip), rangeIndexResolver.extractGeoLocationInformation(ip));
+        }
+        assertTrue(Files.exists(temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb.ipv4-index")));
+    }
+
+    @Test
+    public void restartedEngineRestoresLocationCacheSnapshot() throws Exception {
+        final Path databasePath = temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb");
+        Files.copy(Paths.get(getTestDatabasePath()), databasePath);
+        final Path snapshotDirectory = temporaryFolder.getRoot().toPath().resolve("snapshots");
+        final GeoIpResolverConfig snapshotConfig = config.toBuilder()
+                .dbPath(databasePath.toString())
+                .cacheSnapshotInterval(1L)
+                .cacheSnapshotDirectory(snapshotDirectory.toString())
+                .build();
+        final String[] addresses = {"1.2.3.4", "8.8.8.8", "2001:4860:4860::8888"};
+
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(snapshotConfig, metricRegistry);
+        final List<Object> locations = new ArrayList<>();
+        for (String address : addresses) {
+            locations.add(resolver.extractGeoLocationInformation(address).orElse(null));
+        }
+        resolver.writeCacheSnapshot();
+        resolver.close();
+        assertTrue(Files.exists(snapshotDirectory.resolve("GeoLite2-City.mmdb.location-cache")));
+
+        final MetricRegistry restartedMetricRegistry = new MetricRegistry();
+        final GeoIpResolverEngine restartedResolver = new GeoIpResolverEngine(snapshotConfig, restartedMetricRegistry);
+        for (int i = 0; i < addresses.length; i++) {
+            assertEquals(addresses[i], locations.get(i), restartedResolver.extractGeoLocationInformation(addresses[i]).orElse(null));
+        }
+        assertEquals(0, restartedMetricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+        assertEquals(3, restartedMetricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits")).getCount());
+
+        // Snapshots only get restored by engines resolving the same kind of locations
+        final MetricRegistry countryMetricRegistry = new MetricRegistry();
+        final GeoIpResolverEngine countryResolver = new GeoIpResolverEngine(snapshotConfig.toBuilder().dbType(DatabaseType.MAXMIND_COUNTRY).build(),
+                countryMetricRegistry);
+        assertTrue(countryResolver.extractGeoLocationInformation("8.8.8.8").isPresent());
+        assertEquals(0, countryMetricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits")).getCount());
+    }
+
+    @Test
+    public void locationCacheSnapshotKeepsMostRecentlyUsedLocations() throws Exception {
+        // Without a configured directory, the snapshot gets written to the data directory of the node
+        final Path dataDirectory = temporaryFolder.newFolder("data").toPath();
+        final GeoIpResolverConfig snapshotConfig = config.toBuilder().cacheSnapshotInterval(1L).cacheSnapshotMaxEntries(2L).build();
+
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(snapshotConfig, new GeoIpDatabaseRegistry(metricRegistry),
+                new GeoIpResolverStatistics(), metricRegistry, dataDirectory);
+        for (String address : new String[]{"1.2.3.4", "8.8.8.8", "1.2.3.4", "81.2.69.160"}) {
+            resolver.extractGeoLocationInformation(address);
+        }
+        resolver.writeCacheSnapshot();
+        resolver.close();
+        assertTrue(Files.exists(dataDirectory.resolve("geoip").resolve("GeoLite2-City-Test.mmdb.location-cache")));
+
+        final MetricRegistry restartedMetricRegistry = new MetricRegistry();
+        final GeoIpResolverEngine restartedResolver = new GeoIpResolverEngine(snapshotConfig, new GeoIpDatabaseRegistry(restartedMetricRegistry),
+                new GeoIpResolverStatistics(), restartedMetricRegistry, dataDirectory);
+        for (String address : new String[]{"1.2.3.4", "8.8.8.8", "81.2.69.160"}) {
+            restartedResolver.extractGeoLocationInformation(address);
+        }
+        assertEquals(2, restartedMetricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits")).getCount());
+        assertEquals(1, restartedMetricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+    }
+
+    @Test
+    public void countryDatabaseTypeOnlyResolvesCountry() throws Exception {
+        final String countryDatabasePath = getClass().getResource(GEO_LITE2_COUNTRY_MMDB).toURI().getPath();
+        final GeoIpResolverConfig countryConfig = config.toBuilder()
+                .dbType(DatabaseType.MAXMIND_COUNTRY)
+                .dbPath(countryDatabasePath)
+                .build();
+
+        for (ResolverBackend backend : ResolverBackend.values()) {
+            final GeoIpResolverEngine resolver = new GeoIpResolverEngine(countryConfig.toBuilder().resolverBackend(backend).build(), metricRegistry);
+            final Message message = new Message(ImmutableMap.of("_id", new UUID().toString(), "source", "8.8.8.8", "message", "Hello"));
+
+            assertFalse(resolver.filter(message));
+            assertEquals(backend.toString(), "US", message.getField("source_country_code"));
+            // The map widget gets the center of the country
+            assertEquals(backend.toString(), "37.09024,-95.712891", message.getField("source_geolocation"));
+            assertNull(backend.toString(), message.getField("source_city_name"));
+        }
+    }
+
+    @Test
+    public void roundsCoordinatesAndAddsGeohashFields() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder()
+                .coordinatePrecision(1)
+                .geohashPrecisions(ImmutableSet.of(6, 2))
+                .build(), metricRegistry);
+        final Message message = new Message(ImmutableMap.of("_id", new UUID().toString(), "source", "8.8.8.8", "message", "Hello"));
+
+        assertFalse(resolver.filter(message));
+        assertEquals("37.4,-122.1", message.getField("source_geolocation"));
+        assertEquals("9q", message.getField("source_geohash_2"));
+        assertEquals("9q9htv", message.getField("source_geohash_6"));
+    }
+
+    @Test
+    public void lowOverheadMetricsCountAllLookups() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder()
+                .cacheSize(0L)
+                .networkCacheSize(0L)
+                .metricsMode(MetricsMode.LOW_OVERHEAD)
+                .timingSampleInterval(1000)
+                .build(), metricRegistry);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(resolver.extractGeoLocationInformation("1.2.3.4").isPresent());
+        }
+
+        final Timer resolveTime = metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime"));
+        assertTrue(resolveTime instanceof SampledTimer);
+        assertEquals(10, resolveTime.getCount());
+    }
+
+    @Test
+    public void recordsPerStageMetrics() {
+        final GeoIpResolverStatistics statistics = new GeoIpResolverStatistics();
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config, new GeoIpDatabaseRegistry(metricRegistry),
+                statistics, metricRegistry);
+        final Map<String, Object> messageFields = Maps.newHashMap();
+        messageFields.put("_id", new UUID().toString());
+        messageFields.put("source", "1.2.3.4");
+        messageFields.put("destination", "5.6.7.8");
+        messageFields.put("message", "Hello");
+        messageFields.put("count", 42);
+
+        resolver.filter(new Message(messageFields));
+
+        assertEquals(4, metricRegistry.meter(name(GeoIpResolverEngine.class, "parseAttempts")).getCount());
+        assertEquals(2, metricRegistry.meter(name(GeoIpResolverEngine.class, "parseHits")).getCount());
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "notFound")).getCount());
+        assertEquals(1, metricRegistry.meter(name(GeoIpResolverEngine.class, "fieldsWritten")).getCount());
+        assertEquals(1, metricRegistry.timer(name(GeoIpResolverEngine.class, "scanTime")).getCount());
+        assertEquals(1, metricRegistry.timer(name(GeoIpResolverEngine.class, "writeTime")).getCount());
+        assertEquals(ImmutableMap.of("source", 1L), statistics.fieldWrites());
+    }
+
+    @Test
+    public void disabledLocationCacheAlwaysLooksUpLocation() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder().cacheSize(0L).build(), metricRegistry);
+
+        assertTrue(resolver.extractGeoLocationInformation("1.2.3.4").isPresent());
+        assertTrue(resolver.extractGeoLocationInformation("1.2.3.4").isPresent());
+
+        assertEquals(2, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+        assertEquals(0, metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits")).getCount());
+    }
+
     @Test
     public void disabledFilterTest() {
         final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder().enabled(false).build(), metricRegistry);
@@ -139,11 +431,108 @@ public class GeoIpResolverEngineTest {
         final boolean filtered = resolver.filter(message);
 
         assertFalse("Message should not be filtered out", filtered);
-        assertEquals("Should have looked up three IPs", metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount(), 3);
+        assertEquals("Should have looked up the two public IPs", metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount(), 2);
+        assertEquals("Should have skipped the private IP", metricRegistry.meter(name(GeoIpResolverEngine.class, "reservedAddresses")).getCount(), 1);
         assertFieldNotResolved(message, "source", "Should not have resolved private IP");
         assertFieldNotResolved(message, "message", "Should have resolved public IP");
         assertFieldNotResolved(message, "gl2_remote_ip", "Should not have resolved text with an IP");
         assertFieldResolved(message, "extracted_ip", "Should have resolved public IP");
         assertFieldResolved(message, "ipv6", "Should have resolved public IPv6");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void filterResolvesEachDistinctAddressOfBatchOnce() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder().cacheSize(0L).build(), metricRegistry);
+
+        final List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Map<String, Object> messageFields = Maps.newHashMap();
+            messageFields.put("_id", (new UUID()).toString());
+            messageFields.put("source", "1.2.3.4");
+            messageFields.put("destination", i % 2 == 0 ? "8.8.8.8" : "1.2.3.4");
+            messages.add(new Message(messageFields));
+        }
+
+        resolver.filter(messages);
+
+        for (Message message : messages) {
+            assertFieldResolved(message, "source", "Should have resolved public IP");
+            assertEquals("Sydney", message.getField("source_city_name"));
+            assertFieldResolved(message, "destination", "Should have resolved public IP");
+        }
+        assertEquals("Mountain View", messages.get(0).getField("destination_city_name"));
+        assertEquals("Sydney", messages.get(1).getField("destination_city_name"));
+        assertEquals("Should have looked up each distinct IP once", 2, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+        assertEquals(8, metricRegistry.meter(name(GeoIpResolverEngine.class, "batchAddresses")).getCount());
+        assertEquals(2, metricRegistry.meter(name(GeoIpResolverEngine.class, "batchDistinctAddresses")).getCount());
+        assertEquals(75, metricRegistry.histogram(name(GeoIpResolverEngine.class, "batchDeduplicationRatio")).getSnapshot().getMax());
+    }
+
+    @Test
+    public void filterOnlyResolvesCachedAddressesWhenBatchExceedsTimeBudget() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder()
+                .batchTimeBudget(1L)
+                .batchTimeBudgetUnit(TimeUnit.NANOSECONDS)
+                .degradedSampleInterval(0)
+                .build(), metricRegistry);
+
+        final Message first = new Message(Maps.newHashMap(ImmutableMap.of("_id", new UUID().toString(), "source", "1.2.3.4")));
+        resolver.filter(Collections.singletonList(first));
+        resolver.recordBatchTime(2L);
+        assertFieldResolved(first, "source", "Should have resolved public IP before exceeding the budget");
+
+        final List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Map<String, Object> messageFields = Maps.newHashMap();
+            messageFields.put("_id", (new UUID()).toString());
+            messageFields.put("source", "1.2.3.4");
+            messageFields.put("destination", i == 0 ? "1.2.3.4" : "8.8.8.8");
+            messageFields.put("ipv6", i == 0 ? "1.2.3.4" : "2001:4860:4860::8888");
+            messages.add(new Message(messageFields));
+        }
+        resolver.filter(messages);
+
+        for (Message message : messages) {
+            assertFieldResolved(message, "source", "Should have resolved cached IP");
+        }
+        assertFieldResolved(messages.get(0), "destination", "Should have resolved cached IP");
+        assertFieldNotResolved(messages.get(1), "destination", "Should not have resolved uncached IP");
+        assertFieldNotResolved(messages.get(2), "ipv6", "Should not have resolved uncached IP");
+        assertEquals("Should only have looked up the IP of the first batch", 1, metricRegistry.timer(name(GeoIpResolverEngine.class, "resolveTime")).getCount());
+        assertEquals(2, metricRegistry.meter(name(GeoIpResolverEngine.class, "degradedMessages")).getCount());
+        assertEquals(2, metricRegistry.meter(name(GeoIpResolverEngine.class, "shedAddresses")).getCount());
+    }
+
+    @Test
+    public void filterOnlyResolvesIncludedFields() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder().includeFields(ImmutableSet.of("extracted_ip", "missing_ip")).build(), metricRegistry);
+
+        final Map<String, Object> messageFields = Maps.newHashMap();
+        messageFields.put("_id", (new UUID()).toString());
+        messageFields.put("extracted_ip", "1.2.3.4");
+        messageFields.put("ipv6", "2001:4860:4860::8888");
+
+        final Message message = new Message(messageFields);
+        resolver.filter(message);
+
+        assertFieldResolved(message, "extracted_ip", "Should have resolved included field");
+        assertFieldNotResolved(message, "ipv6", "Should not have resolved field which isn't included");
+        assertFieldNotResolved(message, "missing_ip", "Should not have resolved missing field");
+    }
+
+    @Test
+    public void filterSkipsExcludedFields() {
+        final GeoIpResolverEngine resolver = new GeoIpResolverEngine(config.toBuilder().excludeFields(ImmutableSet.of("ipv6")).build(), metricRegistry);
+
+        final Map<String, Object> messageFields = Maps.newHashMap();
+        messageFields.put("_id", (new UUID()).toString());
+        messageFields.put("extracted_ip", "1.2.3.4");
+        messageFields.put("ipv6", "2001:4860:4860::8888");
+
+        final Message message = new Message(messageFields);
+        resolver.filter(message);
+
+        assertFieldResolved(message, "extracted_ip", "Should have resolved field which isn't excluded");
+        assertFieldNotResolved(message, "ipv6", "Should not have resolved excluded field");
+    }
+}
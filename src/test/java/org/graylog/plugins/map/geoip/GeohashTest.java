@@ -0,0 +1,47 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class GeohashTest {
+    @Test
+    public void encodesCoordinates() {
+        assertThat(Geohash.encode(42.6, -5.6, 5)).isEqualTo("ezs42");
+        assertThat(Geohash.encode(37.386, -122.0838, 6)).isEqualTo("9q9htv");
+        assertThat(Geohash.encode(37.386, -122.0838, 2)).isEqualTo("9q");
+    }
+
+    @Test
+    public void decodesCenterOfCell() {
+        final double[] center = Geohash.decodeCenter("ezs42");
+
+        assertThat(center).isNotNull();
+        assertThat(center[0]).isCloseTo(42.605, within(0.001));
+        assertThat(center[1]).isCloseTo(-5.603, within(0.001));
+    }
+
+    @Test
+    public void rejectsInvalidGeohashes() {
+        assertThat(Geohash.decodeCenter("")).isNull();
+        assertThat(Geohash.decodeCenter("ezs4a")).isNull();
+        assertThat(Geohash.decodeCenter("37.4")).isNull();
+    }
+}
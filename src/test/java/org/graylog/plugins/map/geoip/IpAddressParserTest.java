@@ -0,0 +1,126 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.base.Strings;
+import com.google.common.net.InetAddresses;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IpAddressParserTest {
+    private static final String[] VALID_ADDRESSES = {
+            "0.0.0.0",
+            "127.0.0.1",
+            "255.255.255.255",
+            " 127.0.0.1\n",
+            "\t10.0.0.1 ",
+            "::",
+            "::1",
+            "1::",
+            "2001:4860:4860::8888",
+            "2001:4860:4860:0:0:0:0:8888",
+            "2001:0db8:85a3:0000:0000:8a2e:0370:7334",
+            "FE80::1",
+            "fe80::1:2:3:4:5:6",
+            "1:2:3:4:5:6:7::",
+            "::2:3:4:5:6:7:8",
+            "::ffff:192.168.0.1",
+            "::192.168.0.1",
+            "64:ff9b::8.8.8.8",
+            "1:2:3:4:5:6:1.2.3.4",
+            "ffff:ffff:ffff:ffff:ffff:ffff:255.255.255.255",
+    };
+
+    private static final String[] INVALID_ADDRESSES = {
+            "",
+            " ",
+            "42",
+            "1.2.3",
+            "1.2.3.",
+            ".1.2.3",
+            "1.2.3.4.5",
+            "1.2.3.a",
+            "1..2.3",
+            "256.0.0.1",
+            "1000.0.0.1",
+            "01.2.3.4",
+            "1.2.3.4:80",
+            ":",
+            ":::",
+            "12:30",
+            "1:2:3:4:5:6:7",
+            "1:2:3:4:5:6:7:8:9",
+            "1:2:3:4:5:6:7:8::",
+            "::1:2:3:4:5:6:7:8",
+            "1::2::3",
+            ":1::2",
+            "1::2:",
+            "12345::1",
+            "2001:db8::g",
+            "fe80::1%eth0",
+            "::1.2.3",
+            "::1.2.3.4:5",
+            "::ffff:1.2.3.04",
+            "1:2:3:4:5:6:7:1.2.3.4",
+            "Hello from 1.2.3.4",
+            "Message from \"127.0.0.1\"",
+    };
+
+    @Test
+    public void parseAcceptsSameAddressesAsGuava() {
+        for (String value : VALID_ADDRESSES) {
+            final IpAddressKey key = IpAddressParser.parse(value);
+            final InetAddress expected = InetAddresses.forString(value.trim());
+
+            assertThat(key).as(value).isNotNull();
+            assertThat(key.toInetAddress()).as(value).isEqualTo(expected);
+            assertThat(key).as(value).isEqualTo(IpAddressKey.forInetAddress(expected));
+        }
+    }
+
+    @Test
+    public void parseRejectsSameValuesAsGuava() {
+        for (String value : INVALID_ADDRESSES) {
+            assertThat(InetAddresses.isInetAddress(value.trim())).as(value).isFalse();
+            assertThat(IpAddressParser.parse(value)).as(value).isNull();
+        }
+        assertThat(IpAddressParser.parse(Strings.repeat("1.2.3.4", 100))).isNull();
+        // Guava accepts any Unicode digits, log messages only contain ASCII addresses though
+        assertThat(IpAddressParser.parse("\u0661.\u0662.\u0663.\u0664")).isNull();
+    }
+
+    @Test
+    public void parseReturnsPrimitiveKeys() {
+        final IpAddressKey ipv4 = IpAddressParser.parse("8.8.4.4");
+        assertThat(ipv4).isNotNull();
+        assertThat(ipv4.ipv4()).isTrue();
+        assertThat(ipv4.high()).isEqualTo(0L);
+        assertThat(ipv4.low()).isEqualTo(0x08080404L);
+
+        final IpAddressKey ipv6 = IpAddressParser.parse("2001:4860:4860::8888");
+        assertThat(ipv6).isNotNull();
+        assertThat(ipv6.ipv4()).isFalse();
+        assertThat(ipv6.high()).isEqualTo(0x2001486048600000L);
+        assertThat(ipv6.low()).isEqualTo(0x8888L);
+
+        assertThat(IpAddressParser.parse("::ffff:8.8.4.4")).isEqualTo(ipv4);
+        assertThat(IpAddressParser.parse("2001:4860:4860::8888").toString()).isEqualTo("2001:4860:4860:0:0:0:0:8888");
+    }
+}
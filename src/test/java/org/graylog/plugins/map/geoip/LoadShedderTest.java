@@ -0,0 +1,126 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoadShedderTest {
+    private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private MetricRegistry metricRegistry;
+    private FakeTicker ticker;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        ticker = new FakeTicker();
+    }
+
+    @Test
+    public void degradesWhenBatchExceedsBudgetAndRecoversAfterRecoveryTime() {
+        final LoadShedder loadShedder = new LoadShedder(BUDGET_NANOS, 0.0, 0, ticker, metricRegistry);
+
+        loadShedder.recordBatch(BUDGET_NANOS);
+        assertThat(loadShedder.isDegraded()).isFalse();
+
+        loadShedder.recordBatch(BUDGET_NANOS + 1);
+        assertThat(loadShedder.isDegraded()).isTrue();
+        assertThat(metricRegistry.getGauges().get(name(GeoIpResolverEngine.class, "degraded")).getValue()).isEqualTo(true);
+
+        ticker.advance(LoadShedder.RECOVERY_NANOS - 1);
+        loadShedder.recordBatch(1);
+        assertThat(loadShedder.isDegraded()).isTrue();
+
+        ticker.advance(1);
+        loadShedder.recordBatch(1);
+        assertThat(loadShedder.isDegraded()).isFalse();
+        assertThat(metricRegistry.meter(name(GeoIpResolverEngine.class, "degradations")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void exceededBudgetExtendsDegradedMode() {
+        final LoadShedder loadShedder = new LoadShedder(BUDGET_NANOS, 0.0, 0, ticker, metricRegistry);
+
+        loadShedder.recordBatch(BUDGET_NANOS + 1);
+        ticker.advance(LoadShedder.RECOVERY_NANOS - 1);
+        loadShedder.recordBatch(BUDGET_NANOS + 1);
+        ticker.advance(1);
+        loadShedder.recordBatch(1);
+
+        assertThat(loadShedder.isDegraded()).isTrue();
+        assertThat(metricRegistry.meter(name(GeoIpResolverEngine.class, "degradations")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void degradesWhenCacheHitRateCollapses() {
+        final LoadShedder loadShedder = new LoadShedder(0, 0.5, 0, ticker, metricRegistry);
+
+        // Too few lookups to judge the hit rate
+        metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheMisses")).mark(10);
+        loadShedder.recordBatch(BUDGET_NANOS);
+        assertThat(loadShedder.isDegraded()).isFalse();
+
+        metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits")).mark(60);
+        metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheMisses")).mark(40);
+        loadShedder.recordBatch(BUDGET_NANOS);
+        assertThat(loadShedder.isDegraded()).isFalse();
+
+        metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheHits")).mark(40);
+        metricRegistry.meter(name(GeoIpResolverEngine.class, "cacheMisses")).mark(60);
+        loadShedder.recordBatch(BUDGET_NANOS);
+        assertThat(loadShedder.isDegraded()).isTrue();
+    }
+
+    @Test
+    public void sampleIntervalOfZeroNeverSamples() {
+        final LoadShedder loadShedder = new LoadShedder(BUDGET_NANOS, 0.0, 0, ticker, metricRegistry);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(loadShedder.sampleMiss()).isFalse();
+        }
+    }
+
+    @Test
+    public void sampleIntervalOfOneAlwaysSamples() {
+        final LoadShedder loadShedder = new LoadShedder(BUDGET_NANOS, 0.0, 1, ticker, metricRegistry);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(loadShedder.sampleMiss()).isTrue();
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long nanos) {
+            this.nanos += nanos;
+        }
+    }
+}
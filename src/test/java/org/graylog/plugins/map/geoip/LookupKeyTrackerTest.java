@@ -0,0 +1,95 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LookupKeyTrackerTest {
+    @Test
+    public void purgesKeysWhichAreEvicted() {
+        final List<Object> purgedKeys = new ArrayList<>();
+        final LookupKeyTracker tracker = new LookupKeyTracker(2, 0, TimeUnit.SECONDS, purgedKeys::add);
+        tracker.track("8.8.8.8");
+        tracker.track("8.8.8.8");
+        tracker.track("8.8.4.4");
+        assertThat(tracker.keys()).containsOnly("8.8.8.8", "8.8.4.4");
+
+        tracker.untrack("8.8.4.4");
+        tracker.track("1.2.3.4");
+        assertThat(purgedKeys).isEmpty();
+
+        tracker.track("81.2.69.160");
+        assertThat(purgedKeys).containsExactly("8.8.8.8");
+        assertThat(tracker.keys()).containsOnly("1.2.3.4", "81.2.69.160");
+        assertThat(tracker.isOverflowed()).isFalse();
+    }
+
+    @Test
+    public void overflowsIfEvictedKeysCanNotBePurged() {
+        final LookupKeyTracker tracker = new LookupKeyTracker(2, 0, TimeUnit.SECONDS, key -> false);
+        tracker.track("8.8.8.8");
+        tracker.track("8.8.4.4");
+        assertThat(tracker.isOverflowed()).isFalse();
+
+        tracker.track("81.2.69.160");
+        assertThat(tracker.isOverflowed()).isTrue();
+
+        tracker.reset();
+        assertThat(tracker.isOverflowed()).isFalse();
+        assertThat(tracker.keys()).isEmpty();
+    }
+
+    @Test
+    public void forgetsExpiredKeys() {
+        final FakeTicker ticker = new FakeTicker();
+        final LookupKeyTracker tracker = new LookupKeyTracker(2, 60, TimeUnit.SECONDS, key -> false, ticker);
+        tracker.track("8.8.8.8");
+        ticker.nanos += TimeUnit.SECONDS.toNanos(30);
+        tracker.track("8.8.4.4");
+        ticker.nanos += TimeUnit.SECONDS.toNanos(30);
+
+        // Expired keys have left the lookup cache as well, they leave room for others
+        tracker.track("81.2.69.160");
+        assertThat(tracker.keys()).containsOnly("8.8.4.4", "81.2.69.160");
+        assertThat(tracker.isOverflowed()).isFalse();
+    }
+
+    @Test
+    public void zeroLimitDisablesTracking() {
+        final LookupKeyTracker tracker = new LookupKeyTracker(0, 0, TimeUnit.SECONDS, key -> true);
+        tracker.track("8.8.8.8");
+
+        assertThat(tracker.isOverflowed()).isTrue();
+        assertThat(tracker.keys()).isEmpty();
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
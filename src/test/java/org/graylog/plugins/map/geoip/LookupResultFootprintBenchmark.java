@@ -0,0 +1,139 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.net.InetAddresses;
+import org.graylog.plugins.map.config.DatabaseType;
+import org.graylog.plugins.map.geoip.mmdb.MmdbReader;
+import org.graylog2.plugin.lookup.LookupResult;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the retained heap of MaxMind lookup results in the full and in the {@link CompactRecord compact}
+ * representation, like a lookup table cache holding them would. Not run as part of the tests:
+ * <pre>
+ * java -Xmx4g -cp target/test-classes:target/classes:&lt;dependencies&gt; \
+ *     org.graylog.plugins.map.geoip.LookupResultFootprintBenchmark /path/to/GeoLite2-City.mmdb [results]
+ * </pre>
+ * The network cache of the adapters is disabled, so every result is decoded on its own.
+ */
+public class LookupResultFootprintBenchmark {
+    // Addresses in networks of the GeoLite2 and the test databases, used when random addresses aren't found
+    private static final String[] FALLBACK_ADDRESSES = {"1.2.3.4", "8.8.8.8", "81.2.69.160", "89.160.20.112"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LookupResultFootprintBenchmark <database path> [results]");
+            System.exit(1);
+        }
+        final Path path = Paths.get(args[0]);
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        final String[] addresses = randomAddresses(path, count);
+        final DatabaseType databaseType;
+        try (GeoIpDatabase database = new GeoIpDatabaseRegistry(new MetricRegistry()).open(path)) {
+            databaseType = database.mmdbReader().databaseType().contains("City")
+                    ? DatabaseType.MAXMIND_CITY : DatabaseType.MAXMIND_COUNTRY;
+        }
+
+        System.out.printf("%d %s results of %s%n", count, databaseType, path);
+        // Warm up both paths, so that class loading doesn't count
+        measure(path, databaseType, false, addresses, Math.min(count, 1000));
+        measure(path, databaseType, true, addresses, Math.min(count, 1000));
+
+        final long fullBytes = measure(path, databaseType, false, addresses, count);
+        final long compactBytes = measure(path, databaseType, true, addresses, count);
+        System.out.printf("full:    %,14d bytes, %,8d bytes per result%n", fullBytes, fullBytes / count);
+        System.out.printf("compact: %,14d bytes, %,8d bytes per result%n", compactBytes, compactBytes / count);
+    }
+
+    /**
+     * Returns random addresses, replacing the ones which aren't in the database by addresses of known networks.
+     */
+    static String[] randomAddresses(Path path, int count) throws Exception {
+        final Random random = new Random(42L);
+        final String[] addresses = new String[count];
+        try (GeoIpDatabase database = new GeoIpDatabaseRegistry(new MetricRegistry()).open(path)) {
+            final MmdbReader reader = database.mmdbReader();
+            for (int i = 0; i < count; i++) {
+                int address = random.nextInt();
+                if (!MmdbReader.isFound(reader.findIpv4(address))) {
+                    final int fallbackAddress = InetAddresses.coerceToInteger(
+                            InetAddresses.forString(FALLBACK_ADDRESSES[i % FALLBACK_ADDRESSES.length]));
+                    address = (fallbackAddress & 0xffffff00) | (address & 0xff);
+                }
+                addresses[i] = InetAddresses.fromInteger(address).getHostAddress();
+            }
+        }
+
+        return addresses;
+    }
+
+    private static long measure(Path path, DatabaseType databaseType, boolean compactResults, String[] addresses,
+                                int count) throws Exception {
+        final MaxmindDataAdapter.Config config = MaxmindDataAdapter.Config.builder()
+                .type(MaxmindDataAdapter.NAME)
+                .path(path.toString())
+                .dbType(databaseType)
+                .checkInterval(1L)
+                .checkIntervalUnit(TimeUnit.HOURS)
+                .networkCacheSize(0L)
+                .compactResults(compactResults)
+                .build();
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final MaxmindDataAdapter adapter = new MaxmindDataAdapter("benchmark", "benchmark", config, new MetricRegistry(), scheduler);
+        adapter.doStart();
+        try {
+            adapter.awaitDatabase(1L, TimeUnit.MINUTES);
+            // Decode one result first, so that the lazily created readers don't count
+            adapter.doGet(addresses[0]);
+
+            final long heapBefore = usedHeap();
+            final LookupResult[] results = new LookupResult[count];
+            for (int i = 0; i < count; i++) {
+                results[i] = adapter.doGet(addresses[i]);
+            }
+            final long heapAfter = usedHeap();
+
+            // Keeps the results reachable until the heap has been measured
+            if (results[count - 1] == null) {
+                throw new IllegalStateException();
+            }
+            return heapAfter - heapBefore;
+        } finally {
+            adapter.doStop();
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
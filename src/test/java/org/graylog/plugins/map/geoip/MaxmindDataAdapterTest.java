@@ -1,37 +1,62 @@
 package org.graylog.plugins.map.geoip;
 
 import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.model.CountryResponse;
-import org.graylog.plugins.map.ConditionalRunner;
-import org.graylog.plugins.map.ResourceExistsCondition;
+import com.maxmind.geoip2.record.Traits;
 import org.graylog.plugins.map.config.DatabaseType;
+import org.graylog2.plugin.lookup.LookupCachePurge;
 import org.graylog2.plugin.lookup.LookupResult;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         MaxmindDataAdapterTest.CityDatabaseTest.class,
-        MaxmindDataAdapterTest.CountryDatabaseTest.class
+        MaxmindDataAdapterTest.CountryDatabaseTest.class,
+        MaxmindDataAdapterTest.ReloadTest.class
 })
 public class MaxmindDataAdapterTest {
-    private static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City.mmdb";
-    private static final String GEO_LITE2_COUNTRY_MMDB = "/GeoLite2-Country.mmdb";
+    private static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City-Test.mmdb";
+    private static final String GEO_LITE2_COUNTRY_MMDB = "/GeoLite2-Country-Test.mmdb";
+
+    private static final List<String> ADDRESSES = ImmutableList.of("1.2.3.4", "8.8.8.8", "8.8.4.4", "81.2.69.160",
+            "89.160.20.112", "2.125.160.217", "2001:4860:4860::8888", "2a02:8070::1");
 
     private static final Map<DatabaseType, String> DB_PATH = ImmutableMap.of(
             DatabaseType.MAXMIND_CITY, GEO_LITE2_CITY_MMDB,
@@ -41,6 +66,7 @@ public class MaxmindDataAdapterTest {
     abstract static class Base {
         MaxmindDataAdapter adapter;
         private final DatabaseType databaseType;
+        private ScheduledExecutorService scheduler;
 
         Base(DatabaseType databaseType) {
             this.databaseType = databaseType;
@@ -48,21 +74,31 @@ public class MaxmindDataAdapterTest {
 
         @Before
         public void setUp() throws Exception {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            adapter = startAdapter(ImmutableList.of(), false);
+        }
+
+        MaxmindDataAdapter startAdapter(List<String> resultFields, boolean compactResults) throws Exception {
             final MaxmindDataAdapter.Config config = MaxmindDataAdapter.Config.builder()
                     .checkInterval(1L)
                     .checkIntervalUnit(TimeUnit.HOURS)
                     .dbType(databaseType)
                     .path(getTestDatabasePath(DB_PATH.get(databaseType)))
+                    .resultFields(resultFields)
+                    .compactResults(compactResults)
                     .type("test")
                     .build();
-            adapter = new MaxmindDataAdapter("test", "test", config, new MetricRegistry());
+            final MaxmindDataAdapter adapter = new MaxmindDataAdapter("test", "test", config, new MetricRegistry(), scheduler);
 
             adapter.doStart();
+            assertThat(adapter.awaitDatabase(30L, TimeUnit.SECONDS)).isTrue();
+            return adapter;
         }
 
         @After
         public void tearDown() throws Exception {
             adapter.doStop();
+            scheduler.shutdownNow();
         }
 
         private String getTestDatabasePath(String name) throws URISyntaxException {
@@ -89,13 +125,87 @@ public class MaxmindDataAdapterTest {
             try {
                 adapter.setDatabaseReader(mockDatabaseReader);
 
-                final LookupResult lookupResult = adapter.doGet("127.0.0.1");
+                final LookupResult lookupResult = adapter.doGet("8.8.8.8");
                 assertThat(lookupResult.isEmpty()).isTrue();
             } finally {
                 adapter.setDatabaseReader(oldDatabaseReader);
             }
         }
 
+        @Test
+        public void doGetReturnsResultOfNetworkBlockWithIpAddressOfKey() {
+            // This test will possibly get flaky when the network block of 8.8.8.8 changes!
+            final LookupResult firstResult = adapter.doGet("8.8.8.8");
+            final LookupResult secondResult = adapter.doGet("8.8.8.9");
+
+            assertThat(secondResult.isEmpty()).isFalse();
+            assertThat(secondResult.singleValue()).isEqualTo(firstResult.singleValue());
+            assertThat(secondResult.multiValue().get("country")).isSameAs(firstResult.multiValue().get("country"));
+            assertThat(((Traits) secondResult.multiValue().get("traits")).getIpAddress()).isEqualTo("8.8.8.9");
+        }
+
+        @Test
+        public void doGetReturnsOnlyProjectedResultFields() throws Exception {
+            final MaxmindDataAdapter projectingAdapter = startAdapter(ImmutableList.of("country.iso_code", "traits.ip_address"), false);
+            try {
+                final LookupResult firstResult = projectingAdapter.doGet("8.8.8.8");
+                final LookupResult secondResult = projectingAdapter.doGet("8.8.8.9");
+
+                assertThat(firstResult.multiValue()).containsOnly(
+                        entry("country.iso_code", "US"),
+                        entry("traits.ip_address", "8.8.8.8"));
+                assertThat(secondResult.multiValue()).containsOnly(
+                        entry("country.iso_code", "US"),
+                        entry("traits.ip_address", "8.8.8.9"));
+                assertThat(secondResult.singleValue()).isEqualTo(adapter.doGet("8.8.8.8").singleValue());
+                assertThat(projectingAdapter.doGet("192.168.23.42").isEmpty()).isTrue();
+            } finally {
+                projectingAdapter.doStop();
+            }
+        }
+
+        @Test
+        public void doGetReturnsCompactResultsWithSameJsonAsFullResults() throws Exception {
+            final ObjectMapper objectMapper = new ObjectMapper();
+            final MaxmindDataAdapter compactAdapter = startAdapter(ImmutableList.of(), true);
+            try {
+                for (String address : ADDRESSES) {
+                    final LookupResult compactResult = compactAdapter.doGet(address);
+                    final LookupResult fullResult = adapter.doGet(address);
+
+                    assertThat(compactResult.multiValue()).isInstanceOf(CompactRecord.class);
+                    assertThat(compactResult.singleValue()).isEqualTo(fullResult.singleValue());
+                    assertThat(objectMapper.<JsonNode>valueToTree(compactResult.multiValue()))
+                            .as("JSON of compact result for %s", address)
+                            .isEqualTo(objectMapper.valueToTree(fullResult.multiValue()));
+                }
+
+                // Adapted from the cached result of the network block
+                final LookupResult secondResult = compactAdapter.doGet("8.8.8.9");
+                assertThat(secondResult.multiValue().get("traits")).isInstanceOf(CompactRecord.class);
+                assertThat(objectMapper.<JsonNode>valueToTree(secondResult.multiValue()))
+                        .isEqualTo(objectMapper.valueToTree(adapter.doGet("8.8.8.9").multiValue()));
+                assertThat(compactAdapter.doGet("192.168.23.42").isEmpty()).isTrue();
+            } finally {
+                compactAdapter.doStop();
+            }
+        }
+
+        @Test
+        public void compactResultsShareEqualRecords() throws Exception {
+            final MaxmindDataAdapter compactAdapter = startAdapter(ImmutableList.of(), true);
+            try {
+                // 81.2.69.0/24 and 81.2.70.0/23 are different network blocks in the same country
+                final LookupResult firstResult = compactAdapter.doGet("81.2.69.160");
+                final LookupResult secondResult = compactAdapter.doGet("81.2.70.1");
+
+                assertThat(secondResult.multiValue().get("country")).isSameAs(firstResult.multiValue().get("country"));
+                assertThat(secondResult.multiValue().get("continent")).isSameAs(firstResult.multiValue().get("continent"));
+            } finally {
+                compactAdapter.doStop();
+            }
+        }
+
         @Test
         public void doGetReturnsEmptyResultForInvalidIPAddress() {
             final LookupResult lookupResult = adapter.doGet("Foobar");
@@ -103,8 +213,6 @@ public class MaxmindDataAdapterTest {
         }
     }
 
-    @RunWith(ConditionalRunner.class)
-    @ResourceExistsCondition(GEO_LITE2_CITY_MMDB)
     public static class CityDatabaseTest extends Base {
         public CityDatabaseTest() {
             super(DatabaseType.MAXMIND_CITY);
@@ -135,6 +243,25 @@ public class MaxmindDataAdapterTest {
                     .hasEntrySatisfying("coordinates", value -> assertThat((String) value).matches("[0-9.\\-]+,[0-9.\\-]+"));
         }
 
+        @Test
+        public void doGetReturnsProjectedCityResultFields() throws Exception {
+            final MaxmindDataAdapter projectingAdapter = startAdapter(ImmutableList.of(
+                    "coordinates", "city.names.en", "subdivisions.0.iso_code", "postal.code"), false);
+            try {
+                final LookupResult lookupResult = projectingAdapter.doGet("8.8.8.8");
+                final LookupResult fullResult = adapter.doGet("8.8.8.8");
+
+                assertThat(lookupResult.singleValue()).isEqualTo(fullResult.singleValue());
+                assertThat(lookupResult.multiValue()).containsOnly(
+                        entry("coordinates", fullResult.multiValue().get("coordinates")),
+                        entry("city.names.en", "Mountain View"),
+                        entry("subdivisions.0.iso_code", "CA"),
+                        entry("postal.code", "94035"));
+            } finally {
+                projectingAdapter.doStop();
+            }
+        }
+
         @Test
         public void doGetReturnsResultIfCityResponseFieldsAreNull() throws Exception {
             final CityResponse cityResponse = new CityResponse(null, null, null, null, null, null, null, null, null, null);
@@ -145,7 +272,7 @@ public class MaxmindDataAdapterTest {
             try {
                 adapter.setDatabaseReader(mockDatabaseReader);
 
-                final LookupResult lookupResult = adapter.doGet("127.0.0.1");
+                final LookupResult lookupResult = adapter.doGet("8.8.8.8");
                 assertThat(lookupResult.isEmpty()).isFalse();
                 assertThat(lookupResult.singleValue()).isNull();
             } finally {
@@ -154,8 +281,6 @@ public class MaxmindDataAdapterTest {
         }
     }
 
-    @RunWith(ConditionalRunner.class)
-    @ResourceExistsCondition(GEO_LITE2_COUNTRY_MMDB)
     public static class CountryDatabaseTest extends Base {
         public CountryDatabaseTest() {
             super(DatabaseType.MAXMIND_COUNTRY);
@@ -182,7 +307,7 @@ public class MaxmindDataAdapterTest {
             try {
                 adapter.setDatabaseReader(mockDatabaseReader);
 
-                final LookupResult lookupResult = adapter.doGet("127.0.0.1");
+                final LookupResult lookupResult = adapter.doGet("8.8.8.8");
                 assertThat(lookupResult.isEmpty()).isFalse();
                 assertThat(lookupResult.singleValue()).isNull();
             } finally {
@@ -190,4 +315,238 @@ public class MaxmindDataAdapterTest {
             }
         }
     }
+
+    public static class ReloadTest {
+        @Rule
+        public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+        private MetricRegistry metricRegistry;
+        private GeoIpDatabaseRegistry registry;
+        private ScheduledExecutorService scheduler;
+        private Path databasePath;
+        private LookupCachePurge cachePurge;
+        private MaxmindDataAdapter adapter;
+
+        @Before
+        public void setUp() throws Exception {
+            metricRegistry = new MetricRegistry();
+            registry = new GeoIpDatabaseRegistry(metricRegistry);
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            databasePath = temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb");
+            Files.copy(resourcePath(GEO_LITE2_CITY_MMDB), databasePath);
+            cachePurge = mock(LookupCachePurge.class);
+        }
+
+        @After
+        public void tearDown() throws Exception {
+            if (adapter != null) {
+                adapter.doStop();
+            }
+            scheduler.shutdownNow();
+        }
+
+        private void startAdapter(boolean watchFile, long trackedCacheKeys) throws Exception {
+            final MaxmindDataAdapter.Config config = MaxmindDataAdapter.Config.builder()
+                    .checkInterval(1L)
+                    .checkIntervalUnit(TimeUnit.HOURS)
+                    .dbType(DatabaseType.MAXMIND_CITY)
+                    .path(databasePath.toString())
+                    .watchFile(watchFile)
+                    .trackedCacheKeys(trackedCacheKeys)
+                    .type("test")
+                    .build();
+            adapter = new MaxmindDataAdapter("test", "test", config, metricRegistry, registry, scheduler);
+            adapter.doStart();
+            assertThat(adapter.awaitDatabase(30L, TimeUnit.SECONDS)).isTrue();
+        }
+
+        @Test
+        public void lookupsWaitForDatabaseWithinReadyTimeout() throws Exception {
+            final MaxmindDataAdapter.Config config = MaxmindDataAdapter.Config.builder()
+                    .checkInterval(1L)
+                    .checkIntervalUnit(TimeUnit.HOURS)
+                    .dbType(DatabaseType.MAXMIND_CITY)
+                    .path(databasePath.toString())
+                    .watchFile(false)
+                    .readyTimeout(30L)
+                    .type("test")
+                    .build();
+            adapter = new MaxmindDataAdapter("test", "test", config, metricRegistry, registry, scheduler);
+            adapter.doStart();
+
+            // The database gets loaded in the background
+            assertThat(adapter.doGet("8.8.8.8").singleValue()).isEqualTo("37.386,-122.0838");
+            assertThat(metricRegistry.getGauges().get("org.graylog.plugins.map.geoip.MaxmindDataAdapter.test.ready").getValue())
+                    .isEqualTo(true);
+        }
+
+        @Test
+        public void stopCancelsPendingDatabaseLoad() throws Exception {
+            final ScheduledExecutorService busyScheduler = mock(ScheduledExecutorService.class);
+            final ScheduledFuture<?> databaseLoad = mock(ScheduledFuture.class);
+            doReturn(databaseLoad).when(busyScheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+            final MaxmindDataAdapter.Config config = MaxmindDataAdapter.Config.builder()
+                    .checkInterval(1L)
+                    .checkIntervalUnit(TimeUnit.HOURS)
+                    .dbType(DatabaseType.MAXMIND_CITY)
+                    .path(databasePath.toString())
+                    .watchFile(false)
+                    .readyTimeout(30L)
+                    .type("test")
+                    .build();
+            final MaxmindDataAdapter pendingAdapter = new MaxmindDataAdapter("test", "test", config, metricRegistry, registry, busyScheduler);
+            pendingAdapter.doStart();
+            pendingAdapter.doStop();
+
+            verify(databaseLoad).cancel(false);
+            // Lookups don't wait for a database which is never loaded
+            assertThat(pendingAdapter.awaitDatabase(0L, TimeUnit.SECONDS)).isTrue();
+            assertThat(registry.openDatabases()).isEqualTo(0);
+        }
+
+        private Path resourcePath(String name) throws URISyntaxException {
+            return Paths.get(getClass().getResource(name).toURI());
+        }
+
+        private void replaceDatabase(Path source) throws Exception {
+            replaceFile(source, databasePath);
+        }
+
+        private void replaceFile(Path source, Path target) throws Exception {
+            final Path newFile = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.copy(source, newFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(newFile, FileTime.fromMillis(System.currentTimeMillis() + 60_000L));
+            Files.move(newFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Test
+        public void refreshSwapsInVerifiedDatabase() throws Exception {
+            startAdapter(false, 0L);
+            replaceDatabase(resourcePath(GEO_LITE2_CITY_MMDB));
+
+            adapter.doRefresh(cachePurge);
+
+            verify(cachePurge).purgeAll();
+            assertThat(adapter.getError()).isEmpty();
+            // The old database has been released
+            assertThat(registry.openDatabases()).isEqualTo(1);
+            assertThat(adapter.doGet("8.8.8.8").singleValue()).isEqualTo("37.386,-122.0838");
+        }
+
+        @Test
+        public void refreshRejectsDatabaseWhichFailsVerification() throws Exception {
+            startAdapter(false, 0L);
+            replaceDatabase(resourcePath(GEO_LITE2_COUNTRY_MMDB));
+
+            adapter.doRefresh(cachePurge);
+            adapter.doRefresh(cachePurge);
+
+            verify(cachePurge, never()).purgeAll();
+            assertThat(adapter.getError()).isPresent();
+            assertThat(registry.openDatabases()).isEqualTo(1);
+            // The old database stays in use
+            assertThat(adapter.doGet("8.8.8.8").singleValue()).isEqualTo("37.386,-122.0838");
+
+            replaceDatabase(resourcePath(GEO_LITE2_CITY_MMDB));
+            adapter.doRefresh(cachePurge);
+
+            verify(cachePurge).purgeAll();
+            assertThat(adapter.getError()).isEmpty();
+        }
+
+        @Test
+        public void refreshOnlyPurgesChangedResults() throws Exception {
+            startAdapter(false, 100L);
+            adapter.doRefresh(cachePurge);
+            for (String address : ImmutableList.of("8.8.8.8", "81.2.69.160", "89.160.20.112", "127.0.0.1", "invalid")) {
+                adapter.doGet(address);
+            }
+
+            // Renames a city, the records of all other networks stay the same
+            final byte[] database = Files.readAllBytes(databasePath);
+            final Path changedDatabase = temporaryFolder.newFile().toPath();
+            Files.write(changedDatabase, replaceAll(database, "Mountain View", "Mountain Vale"));
+            replaceDatabase(changedDatabase);
+            adapter.doRefresh(cachePurge);
+
+            verify(cachePurge, never()).purgeAll();
+            verify(cachePurge).purgeKey("8.8.8.8");
+            verify(cachePurge, never()).purgeKey("81.2.69.160");
+            verify(cachePurge, never()).purgeKey("89.160.20.112");
+            assertThat(metricRegistry.counter("org.graylog.plugins.map.geoip.MaxmindDataAdapter.test.cacheKeys.kept").getCount())
+                    .isEqualTo(2L);
+            assertThat(metricRegistry.counter("org.graylog.plugins.map.geoip.MaxmindDataAdapter.test.cacheKeys.purged").getCount())
+                    .isEqualTo(1L);
+        }
+
+        private static byte[] replaceAll(byte[] bytes, String target, String replacement) {
+            final byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+            final byte[] replacementBytes = replacement.getBytes(StandardCharsets.UTF_8);
+            final byte[] result = bytes.clone();
+            for (int i = 0; i <= result.length - targetBytes.length; i++) {
+                boolean match = true;
+                for (int j = 0; j < targetBytes.length && match; j++) {
+                    match = result[i + j] == targetBytes[j];
+                }
+                if (match) {
+                    System.arraycopy(replacementBytes, 0, result, i, replacementBytes.length);
+                }
+            }
+
+            return result;
+        }
+
+        @Test
+        public void fileWatcherReloadsChangedDatabase() throws Exception {
+            startAdapter(true, 0L);
+            // Without changes, refreshing leaves checking the file to the watcher
+            adapter.doRefresh(cachePurge);
+            assertThat(registry.openDatabases()).isEqualTo(1);
+
+            replaceDatabase(resourcePath(GEO_LITE2_CITY_MMDB));
+
+            verify(cachePurge, timeout(30_000L)).purgeAll();
+            assertThat(registry.openDatabases()).isEqualTo(1);
+            assertThat(adapter.doGet("8.8.8.8").isEmpty()).isFalse();
+        }
+
+        @Test
+        public void refreshChecksFileWhileWatching() throws Exception {
+            startAdapter(true, 0L);
+            adapter.doRefresh(cachePurge);
+            verify(cachePurge, never()).purgeAll();
+
+            // Network file systems don't report changes, refreshing must not wait for the watcher
+            replaceDatabase(resourcePath(GEO_LITE2_CITY_MMDB));
+            adapter.doRefresh(cachePurge);
+
+            verify(cachePurge).purgeAll();
+            assertThat(registry.openDatabases()).isEqualTo(1);
+        }
+
+        @Test
+        public void fileWatcherFollowsSymbolicLink() throws Exception {
+            // Layout of geoipupdate, the configured path links to a versioned file in another directory
+            final Path firstVersion = temporaryFolder.newFolder("v1").toPath().resolve("GeoLite2-City.mmdb");
+            final Path secondVersion = temporaryFolder.newFolder("v2").toPath().resolve("GeoLite2-City.mmdb");
+            Files.move(databasePath, firstVersion);
+            Files.createSymbolicLink(databasePath, firstVersion);
+            startAdapter(true, 0L);
+            adapter.doRefresh(cachePurge);
+
+            replaceFile(resourcePath(GEO_LITE2_CITY_MMDB), firstVersion);
+            verify(cachePurge, timeout(30_000L)).purgeAll();
+
+            Files.copy(resourcePath(GEO_LITE2_CITY_MMDB), secondVersion);
+            final Path link = temporaryFolder.getRoot().toPath().resolve("link");
+            Files.createSymbolicLink(link, secondVersion);
+            Files.move(link, databasePath, StandardCopyOption.REPLACE_EXISTING);
+            verify(cachePurge, timeout(30_000L).times(2)).purgeAll();
+
+            // The watcher follows the link to the directory of the new version
+            replaceFile(resourcePath(GEO_LITE2_CITY_MMDB), secondVersion);
+            verify(cachePurge, timeout(30_000L).times(3)).purgeAll();
+            assertThat(registry.openDatabases()).isEqualTo(1);
+        }
+    }
 }
@@ -0,0 +1,73 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.net.InetAddresses;
+import com.maxmind.db.CHMCache;
+import com.maxmind.db.NoCache;
+import com.maxmind.db.NodeCache;
+import com.maxmind.geoip2.DatabaseReader;
+import org.graylog.plugins.map.config.GeoIpResolverConfig;
+
+import java.io.File;
+import java.net.InetAddress;
+
+/**
+ * Compares the lookup latency of the MaxMind reader without a node cache, with the {@link CHMCache} of the MaxMind
+ * reader and with a {@link BoundedNodeCache}. Not run as part of the tests:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;dependencies&gt; \
+ *     org.graylog.plugins.map.geoip.NodeCacheBenchmark /path/to/GeoLite2-City.mmdb [lookups] [node cache bytes]
+ * </pre>
+ */
+public class NodeCacheBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: NodeCacheBenchmark <database path> [lookups] [node cache bytes]");
+            System.exit(1);
+        }
+        final File file = new File(args[0]);
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        final long maxBytes = args.length > 2 ? Long.parseLong(args[2]) : GeoIpResolverConfig.DEFAULT_NODE_CACHE_MAX_BYTES;
+
+        final String[] randomAddresses = LookupResultFootprintBenchmark.randomAddresses(file.toPath(), count);
+        final InetAddress[] addresses = new InetAddress[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = InetAddresses.forString(randomAddresses[i]);
+        }
+
+        System.out.printf("%d random IPv4 lookups in %s%n", count, file);
+        // The first rounds warm up the JIT compiler
+        for (int round = 0; round < 3; round++) {
+            measure("no cache", file, NoCache.getInstance(), addresses);
+            measure("CHMCache", file, new CHMCache(), addresses);
+            measure("bounded", file, new BoundedNodeCache(maxBytes, new MetricRegistry(), "benchmark"), addresses);
+        }
+    }
+
+    private static void measure(String name, File file, NodeCache nodeCache, InetAddress[] addresses) throws Exception {
+        try (DatabaseReader reader = new DatabaseReader.Builder(file).withCache(nodeCache).build()) {
+            final long start = System.nanoTime();
+            for (InetAddress address : addresses) {
+                reader.city(address);
+            }
+            final long nanos = System.nanoTime() - start;
+            System.out.printf("%-9s %,8d ns per lookup%n", name, nanos / addresses.length);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReservedAddressesTest {
+    @Test
+    public void reservedIpv4Addresses() {
+        for (String address : new String[]{"0.0.0.0", "10.0.0.1", "10.255.255.255", "100.64.0.0", "100.127.255.255",
+                "127.0.0.1", "169.254.1.1", "172.16.0.0", "172.31.255.255", "192.0.0.8", "192.0.2.1", "192.168.23.42",
+                "198.18.0.1", "198.19.255.255", "198.51.100.1", "203.0.113.1", "224.0.0.1", "239.255.255.250",
+                "240.0.0.1", "255.255.255.255"}) {
+            assertThat(isReserved(address)).as(address).isTrue();
+        }
+    }
+
+    @Test
+    public void publicIpv4Addresses() {
+        for (String address : new String[]{"1.2.3.4", "8.8.8.8", "9.255.255.255", "11.0.0.0", "100.63.255.255",
+                "100.128.0.0", "126.255.255.255", "128.0.0.0", "169.253.255.255", "172.15.255.255", "172.32.0.0",
+                "192.0.1.0", "192.167.255.255", "192.169.0.0", "198.17.255.255", "198.20.0.0", "203.0.112.255",
+                "223.255.255.255"}) {
+            assertThat(isReserved(address)).as(address).isFalse();
+        }
+    }
+
+    @Test
+    public void reservedIpv6Addresses() {
+        for (String address : new String[]{"::", "::1", "::10.0.0.1", "::ffff:192.168.0.1", "fc00::1", "fd12:3456::1",
+                "fe80::1", "febf:ffff::1", "ff02::1", "2001:db8::1", "100::1"}) {
+            assertThat(isReserved(address)).as(address).isTrue();
+        }
+    }
+
+    @Test
+    public void publicIpv6Addresses() {
+        for (String address : new String[]{"::8.8.8.8", "::ffff:8.8.8.8", "2001:4860:4860::8888", "2a02:8070::1",
+                "fec0::1", "fbff::1", "2001:db9::1", "100:0:0:1::1"}) {
+            assertThat(isReserved(address)).as(address).isFalse();
+        }
+    }
+
+    private static boolean isReserved(String address) {
+        return ReservedAddresses.isReserved(IpAddressParser.parse(address));
+    }
+}
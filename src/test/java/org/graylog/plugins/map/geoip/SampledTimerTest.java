@@ -0,0 +1,45 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SampledTimerTest {
+    @Test
+    public void countsAllEventsButTimesOnlySamples() {
+        final SampledTimer timer = new SampledTimer(10);
+        for (int i = 0; i < 10_000; i++) {
+            timer.stop(timer.start());
+        }
+
+        assertThat(timer.getCount()).isEqualTo(10_000L);
+        assertThat(timer.getSnapshot().size()).isBetween(500, 1500);
+    }
+
+    @Test
+    public void timesEveryEventWithSampleIntervalOne() {
+        final SampledTimer timer = new SampledTimer(1);
+        for (int i = 0; i < 100; i++) {
+            timer.stop(timer.start());
+        }
+
+        assertThat(timer.getCount()).isEqualTo(100L);
+        assertThat(timer.getSnapshot().size()).isEqualTo(100);
+    }
+}
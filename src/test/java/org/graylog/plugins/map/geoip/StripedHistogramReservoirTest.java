@@ -0,0 +1,120 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class StripedHistogramReservoirTest {
+    @Test
+    public void bucketsCoverAllValues() {
+        for (long value : new long[]{0L, 1L, 15L, 16L, 17L, 1000L, 123_456_789L, 1L << 40}) {
+            final int bucket = StripedHistogramReservoir.bucket(value);
+            assertThat(StripedHistogramReservoir.lowerBound(bucket)).isLessThanOrEqualTo(value);
+            assertThat(StripedHistogramReservoir.upperBound(bucket)).isGreaterThanOrEqualTo(value);
+        }
+        assertThat(StripedHistogramReservoir.bucket(Long.MAX_VALUE)).isEqualTo(StripedHistogramReservoir.bucket(1L << 41));
+    }
+
+    @Test
+    public void quantilesAreApproximatelyExact() {
+        final StripedHistogramReservoir reservoir = new StripedHistogramReservoir();
+        for (long value = 1; value <= 10_000; value++) {
+            reservoir.update(value * 1000);
+        }
+
+        final Snapshot snapshot = reservoir.getSnapshot();
+        assertThat(snapshot.size()).isEqualTo(10_000);
+        assertThat(snapshot.getMedian()).isCloseTo(5_000_000.0, within(5_000_000.0 * 0.07));
+        assertThat(snapshot.get99thPercentile()).isCloseTo(9_900_000.0, within(9_900_000.0 * 0.07));
+        assertThat(snapshot.getMean()).isCloseTo(5_000_000.0, within(5_000_000.0 * 0.07));
+        assertThat(snapshot.getMin()).isCloseTo(1000L, within(70L));
+        assertThat(snapshot.getMax()).isCloseTo(10_000_000L, within(700_000L));
+    }
+
+    @Test
+    public void snapshotValuesAreCappedAndKeepDistribution() {
+        final StripedHistogramReservoir reservoir = new StripedHistogramReservoir();
+        for (long value = 1; value <= 100_000; value++) {
+            reservoir.update(value);
+        }
+
+        final Snapshot snapshot = reservoir.getSnapshot();
+        final long[] values = snapshot.getValues();
+        assertThat(snapshot.size()).isEqualTo(100_000);
+        assertThat(values).hasSize(1028).isSorted();
+        assertThat(values[0]).isCloseTo(100L, within(10L));
+        assertThat(values[514]).isCloseTo(50_000L, within(3_500L));
+        assertThat(values[1027]).isEqualTo(snapshot.getMax());
+    }
+
+    @Test
+    public void snapshotValuesOfFewUpdatesAreComplete() {
+        final StripedHistogramReservoir reservoir = new StripedHistogramReservoir();
+        reservoir.update(1L);
+        reservoir.update(1L);
+        reservoir.update(1000L);
+
+        assertThat(reservoir.getSnapshot().getValues()).hasSize(3).containsExactly(1L, 1L, reservoir.getSnapshot().getMax());
+        assertThat(new StripedHistogramReservoir().getSnapshot().getValues()).isEmpty();
+    }
+
+    @Test
+    public void valuesAgeOutAfterTwoIntervals() {
+        final AtomicLong tick = new AtomicLong();
+        final Clock clock = new Clock() {
+            @Override
+            public long getTick() {
+                return tick.get();
+            }
+        };
+        final StripedHistogramReservoir reservoir = new StripedHistogramReservoir(clock, TimeUnit.MINUTES.toNanos(1L));
+        reservoir.update(42L);
+
+        tick.addAndGet(TimeUnit.MINUTES.toNanos(1L));
+        assertThat(reservoir.getSnapshot().size()).isEqualTo(1);
+
+        tick.addAndGet(TimeUnit.MINUTES.toNanos(1L));
+        assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+    }
+
+    @Test
+    public void mergesUpdatesOfAllThreads() throws Exception {
+        final StripedHistogramReservoir reservoir = new StripedHistogramReservoir();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    reservoir.update(j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(reservoir.getSnapshot().size()).isEqualTo(8000);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SwappableReaderTest {
+    private static class TestReader implements Closeable {
+        private final AtomicInteger closeCount = new AtomicInteger();
+        private final AtomicInteger activeLookups = new AtomicInteger();
+        private final AtomicBoolean usedAfterClose = new AtomicBoolean();
+
+        void lookup() {
+            activeLookups.incrementAndGet();
+            if (closeCount.get() > 0) {
+                usedAfterClose.set(true);
+            }
+            Thread.yield();
+            if (closeCount.get() > 0) {
+                usedAfterClose.set(true);
+            }
+            activeLookups.decrementAndGet();
+        }
+
+        @Override
+        public void close() {
+            if (activeLookups.get() > 0) {
+                usedAfterClose.set(true);
+            }
+            closeCount.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void swapClosesPreviousReaderAfterLastLease() {
+        final TestReader first = new TestReader();
+        final TestReader second = new TestReader();
+        final SwappableReader<TestReader> holder = new SwappableReader<>(first);
+
+        final SwappableReader.Lease<TestReader> lease = holder.acquire();
+        assertThat(lease).isNotNull();
+        assertThat(lease.get()).isSameAs(first);
+
+        holder.swap(second);
+        assertThat(first.closeCount).hasValue(0);
+        assertThat(holder.current()).isSameAs(second);
+
+        lease.close();
+        assertThat(first.closeCount).hasValue(1);
+        assertThat(second.closeCount).hasValue(0);
+    }
+
+    @Test
+    public void closeReleasesCurrentReader() {
+        final TestReader reader = new TestReader();
+        final SwappableReader<TestReader> holder = new SwappableReader<>(reader);
+
+        holder.close();
+
+        assertThat(reader.closeCount).hasValue(1);
+        assertThat(holder.acquire()).isNull();
+        assertThat(holder.current()).isNull();
+    }
+
+    @Test
+    public void replaceDoesNotCloseReader() {
+        final TestReader reader = new TestReader();
+        final SwappableReader<TestReader> holder = new SwappableReader<>(reader);
+
+        holder.replace(new TestReader());
+
+        assertThat(reader.closeCount).hasValue(0);
+    }
+
+    @Test
+    public void lookupsDuringRepeatedSwapsNeverUseClosedReader() throws Exception {
+        final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final List<TestReader> readers = new ArrayList<>();
+        final TestReader initialReader = new TestReader();
+        readers.add(initialReader);
+        final SwappableReader<TestReader> holder = new SwappableReader<>(initialReader);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(threads);
+        final AtomicInteger lookups = new AtomicInteger();
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    started.countDown();
+                    while (running.get()) {
+                        try (SwappableReader.Lease<TestReader> lease = holder.acquire()) {
+                            assertThat(lease).isNotNull();
+                            lease.get().lookup();
+                            lookups.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+
+            started.await();
+            for (int i = 0; i < 10_000; i++) {
+                final TestReader reader = new TestReader();
+                readers.add(reader);
+                holder.swap(reader);
+            }
+            running.set(false);
+
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+
+        holder.close();
+        assertThat(lookups.get()).isPositive();
+        for (TestReader reader : readers) {
+            assertThat(reader.usedAfterClose).isFalse();
+            assertThat(reader.closeCount).hasValue(1);
+        }
+    }
+}
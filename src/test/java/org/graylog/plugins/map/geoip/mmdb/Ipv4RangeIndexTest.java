@@ -0,0 +1,126 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.google.common.net.InetAddresses;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class Ipv4RangeIndexTest {
+    static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City-Test.mmdb";
+    static final String GEO_LITE2_COUNTRY_MMDB = "/GeoLite2-Country-Test.mmdb";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MmdbReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        reader = MmdbReader.open(Paths.get(getClass().getResource(GEO_LITE2_CITY_MMDB).toURI()));
+    }
+
+    @Test
+    public void builtIndexReturnsSameLocationsAsDecoder() throws Exception {
+        assertSameLocationsAsDecoder(Ipv4RangeIndex.build(reader));
+    }
+
+    @Test
+    public void loadedIndexReturnsSameLocationsAsBuiltIndex() throws Exception {
+        final Path path = temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb.ipv4-index");
+        final Ipv4RangeIndex builtIndex = Ipv4RangeIndex.build(reader);
+        builtIndex.write(path);
+
+        final Ipv4RangeIndex loadedIndex = Ipv4RangeIndex.load(reader, path);
+
+        assertThat(loadedIndex).isNotNull();
+        assertThat(loadedIndex.rangeCount()).isEqualTo(builtIndex.rangeCount());
+        assertThat(loadedIndex.locationCount()).isEqualTo(builtIndex.locationCount());
+        assertSameLocationsAsDecoder(loadedIndex);
+    }
+
+    @Test
+    public void loadReturnsNullForIndexOfOtherDatabase() throws Exception {
+        final Path path = temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb.ipv4-index");
+        Ipv4RangeIndex.build(reader).write(path);
+
+        final MmdbReader otherReader = MmdbReader.open(Paths.get(getClass().getResource(GEO_LITE2_COUNTRY_MMDB).toURI()));
+
+        assertThat(Ipv4RangeIndex.load(otherReader, path)).isNull();
+    }
+
+    @Test
+    public void openBuildsAndWritesMissingOrInvalidIndex() throws Exception {
+        final Path path = temporaryFolder.getRoot().toPath().resolve("GeoLite2-City.mmdb.ipv4-index");
+
+        assertSameLocationsAsDecoder(Ipv4RangeIndex.open(reader, path));
+        assertThat(Ipv4RangeIndex.load(reader, path)).isNotNull();
+
+        Files.write(path, new byte[]{1, 2, 3});
+        assertSameLocationsAsDecoder(Ipv4RangeIndex.open(reader, path));
+        assertThat(Ipv4RangeIndex.load(reader, path)).isNotNull();
+    }
+
+    @Test
+    public void indexMergesAdjacentNetworksOfSameLocation() throws Exception {
+        final Ipv4RangeIndex index = Ipv4RangeIndex.build(reader);
+        final int[] ranges = new int[1];
+        reader.visitIpv4Networks((network, prefixLength, result) -> ranges[0]++);
+
+        assertThat(index.rangeCount()).isLessThan(ranges[0]);
+        assertThat(index.find(InetAddresses.coerceToInteger(InetAddresses.forString("81.2.69.160"))))
+                .isEqualTo(index.find(InetAddresses.coerceToInteger(InetAddresses.forString("81.2.70.1"))));
+    }
+
+    private void assertSameLocationsAsDecoder(Ipv4RangeIndex index) throws Exception {
+        final String[] addresses = {"0.0.0.0", "1.2.3.4", "1.2.3.255", "1.2.4.0", "2.125.160.216", "2.125.160.223",
+                "8.8.4.4", "8.8.8.8", "81.2.69.160", "81.2.71.255", "89.160.20.112", "192.168.0.1", "255.255.255.255"};
+        for (String address : addresses) {
+            assertSameLocationAsDecoder(index, InetAddresses.coerceToInteger(InetAddresses.forString(address)));
+        }
+
+        final Random random = new Random(42L);
+        for (int i = 0; i < 10_000; i++) {
+            assertSameLocationAsDecoder(index, random.nextInt());
+        }
+    }
+
+    private void assertSameLocationAsDecoder(Ipv4RangeIndex index, int address) throws Exception {
+        final LocationRecord record = reader.readLocation(reader.findIpv4(address));
+        final int location = index.find(address);
+        final String description = InetAddresses.fromInteger(address).getHostAddress();
+
+        if (record == null) {
+            assertThat(location).as(description).isEqualTo(-1);
+        } else {
+            assertThat(location).as(description).isNotNegative();
+            assertThat(index.latitude(location)).as(description).isEqualTo(record.latitude());
+            assertThat(index.longitude(location)).as(description).isEqualTo(record.longitude());
+            assertThat(index.countryIsoCode(location)).as(description).isEqualTo(record.countryIsoCode());
+            assertThat(index.cityName(location)).as(description).isEqualTo(record.cityName());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.google.common.net.InetAddresses;
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+import com.maxmind.geoip2.model.CityResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LocationDecoderTest {
+    static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City-Test.mmdb";
+
+    private MmdbReader reader;
+    private DatabaseReader databaseReader;
+
+    @Before
+    public void setUp() throws Exception {
+        final Path path = Paths.get(getClass().getResource(GEO_LITE2_CITY_MMDB).toURI());
+        reader = MmdbReader.open(path);
+        databaseReader = new DatabaseReader.Builder(new File(path.toUri())).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        databaseReader.close();
+    }
+
+    @Test
+    public void readLocationReturnsSameValuesAsMaxmindReader() throws Exception {
+        final String[] addresses = {
+                "1.2.3.4", "8.8.8.8", "8.8.4.4", "81.2.69.160", "89.160.20.112", "2.125.160.216",
+                "2001:4860:4860::8888", "2a02:8070::1", "::8.8.8.8", "::ffff:81.2.69.160"
+        };
+        for (String address : addresses) {
+            assertParity(InetAddresses.forString(address));
+        }
+    }
+
+    @Test
+    public void readLocationReturnsSameValuesAsMaxmindReaderForRandomAddresses() throws Exception {
+        final Random random = new Random(42L);
+        for (int i = 0; i < 100_000; i++) {
+            assertParity(InetAddresses.fromInteger(random.nextInt()));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            final byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            // Keep the addresses within the allocated global unicast range
+            bytes[0] = (byte) (0x20 | (bytes[0] & 0x1f));
+            assertParity(InetAddress.getByAddress(bytes));
+        }
+    }
+
+    @Test
+    public void readLocationReturnsNullForAddressesNotInDatabase() throws Exception {
+        assertThat(reader.readLocation(reader.find(InetAddresses.forString("127.0.0.1")))).isNull();
+        assertThat(reader.readLocation(reader.find(InetAddresses.forString("192.168.23.42")))).isNull();
+    }
+
+    private void assertParity(InetAddress address) throws Exception {
+        final LocationRecord record = reader.readLocation(reader.find(address));
+
+        final CityResponse response;
+        try {
+            response = databaseReader.city(address);
+        } catch (AddressNotFoundException e) {
+            assertThat(record).as(address.getHostAddress()).isNull();
+            return;
+        }
+
+        assertThat(record).as(address.getHostAddress()).isNotNull();
+        assertThat(record.latitude()).as(address.getHostAddress()).isEqualTo(response.getLocation().getLatitude());
+        assertThat(record.longitude()).as(address.getHostAddress()).isEqualTo(response.getLocation().getLongitude());
+        assertThat(record.countryIsoCode()).as(address.getHostAddress())
+                .isEqualTo(response.getCountry().getGeoNameId() != null ? response.getCountry().getIsoCode() : null);
+        assertThat(record.cityName()).as(address.getHostAddress())
+                .isEqualTo(response.getCity().getGeoNameId() != null ? response.getCity().getName() : null);
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MmdbReaderTest {
+    static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City-Test.mmdb";
+
+    private MmdbReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        reader = MmdbReader.open(Paths.get(getClass().getResource(GEO_LITE2_CITY_MMDB).toURI()));
+    }
+
+    @Test
+    public void readsMetadata() {
+        assertThat(reader.databaseType()).contains("City");
+        assertThat(reader.ipVersion()).isEqualTo(6);
+        assertThat(reader.buildEpoch()).isPositive();
+    }
+
+    @Test
+    public void findReturnsNetworkBlockOfPublicAddress() {
+        final long result = reader.find(InetAddresses.forString("8.8.8.8"));
+
+        assertThat(MmdbReader.isFound(result)).isTrue();
+        assertThat(MmdbReader.prefixLength(result)).isBetween(1, 32);
+    }
+
+    @Test
+    public void findReturnsSameRecordForAllAddressesOfNetworkBlock() {
+        final InetAddress address = InetAddresses.forString("8.8.8.8");
+        final long result = reader.find(address);
+        final NetworkBlock networkBlock = NetworkBlock.forAddress(address, MmdbReader.prefixLength(result));
+
+        final int firstAddress = (int) networkBlock.low();
+        final int lastAddress = firstAddress | (int) ((1L << (32 - MmdbReader.prefixLength(result))) - 1);
+
+        assertThat(reader.findIpv4(firstAddress)).isEqualTo(result);
+        assertThat(reader.findIpv4(lastAddress)).isEqualTo(result);
+        assertThat(MmdbReader.dataOffset(reader.findIpv4(lastAddress + 1))).isNotEqualTo(MmdbReader.dataOffset(result));
+    }
+
+    @Test
+    public void findReturnsSameRecordForIpv4AndIpv4CompatibleIpv6Address() {
+        final long ipv4Result = reader.find(InetAddresses.forString("8.8.8.8"));
+        final long ipv6Result = reader.find(InetAddresses.forString("::8.8.8.8"));
+
+        assertThat(MmdbReader.dataOffset(ipv6Result)).isEqualTo(MmdbReader.dataOffset(ipv4Result));
+        assertThat(MmdbReader.prefixLength(ipv6Result)).isEqualTo(96 + MmdbReader.prefixLength(ipv4Result));
+    }
+
+    @Test
+    public void findReturnsNotFoundForPrivateAddresses() {
+        assertThat(MmdbReader.isFound(reader.find(InetAddresses.forString("127.0.0.1")))).isFalse();
+        assertThat(MmdbReader.isFound(reader.find(InetAddresses.forString("192.168.23.42")))).isFalse();
+        assertThat(MmdbReader.isFound(reader.find(InetAddresses.forString("fe80::1")))).isFalse();
+    }
+
+    @Test
+    public void networkBlockMasksAddress() {
+        final NetworkBlock networkBlock = NetworkBlock.forAddress(InetAddresses.forString("10.1.2.3"), 8);
+
+        assertThat(networkBlock).isEqualTo(NetworkBlock.forAddress(InetAddresses.forString("10.255.255.255"), 8));
+        assertThat(networkBlock.prefixLength()).isEqualTo(104);
+        assertThat(networkBlock.low()).isEqualTo(0x0A000000L);
+    }
+
+    @Test
+    public void readProjectionDecodesRequestedPaths() throws Exception {
+        final RecordProjection projection = RecordProjection.of(ImmutableList.of(
+                "country.iso_code", "city.names.en", "subdivisions.0.iso_code", "location", "location.latitude",
+                "postal.code.missing", "continent.missing"));
+        final Map<String, Object> values = reader.readProjection(reader.find(InetAddresses.forString("8.8.8.8")), projection);
+
+        assertThat(values)
+                .containsEntry("country.iso_code", "US")
+                .containsEntry("city.names.en", "Mountain View")
+                .containsEntry("subdivisions.0.iso_code", "CA")
+                .containsKeys("location", "location.latitude")
+                .doesNotContainKeys("postal.code.missing", "continent.missing");
+        assertThat(((Map<?, ?>) values.get("location")).get("latitude")).isEqualTo(values.get("location.latitude"));
+    }
+
+    @Test
+    public void readProjectionSkipsMissingValues() throws Exception {
+        final RecordProjection projection = RecordProjection.of(ImmutableList.of("city.names.en", "country.iso_code"));
+        // The network block of 8.8.4.4 has no city record
+        final Map<String, Object> values = reader.readProjection(reader.find(InetAddresses.forString("8.8.4.4")), projection);
+
+        assertThat(values).containsOnlyKeys("country.iso_code");
+    }
+
+    @Test
+    public void readProjectionReturnsEmptyMapIfAddressHasNotBeenFound() throws Exception {
+        final RecordProjection projection = RecordProjection.of(ImmutableList.of("country.iso_code"));
+
+        assertThat(reader.readProjection(reader.find(InetAddresses.forString("192.168.23.42")), projection)).isEmpty();
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.InetAddresses;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the small City and Country databases the tests use instead of GeoLite2 databases, which can't be shipped
+ * with the repository. The files in the test resources are generated by running {@link #main(String[])} with the
+ * resources directory as argument.
+ * <p>
+ * The writer only supports the MaxMind DB features the test databases need: maps, arrays, UTF-8 strings, doubles,
+ * booleans, unsigned integers and pointers to shared maps and strings, in an IPv6 search tree with the IPv4 networks
+ * at {@code ::/96}.
+ */
+public class TestDatabases {
+    public static final String CITY_DATABASE = "GeoLite2-City-Test.mmdb";
+    public static final String COUNTRY_DATABASE = "GeoLite2-Country-Test.mmdb";
+
+    private static final long BUILD_EPOCH = 1546300800L;
+    private static final byte[] METADATA_START_MARKER = {
+            (byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'
+    };
+
+    private static final Map<String, Object> US = country(6252001, "US", names("United States", "USA"));
+    private static final Map<String, Object> AU = country(2077456, "AU", names("Australia", null));
+    private static final Map<String, Object> GB = country(2635167, "GB", names("United Kingdom", "Vereinigtes Koenigreich"));
+    private static final Map<String, Object> DE = ImmutableMap.of("geoname_id", 2921044, "iso_code", "DE",
+            "is_in_european_union", true, "names", names("Germany", "Deutschland"));
+    private static final Map<String, Object> NA = continent("NA", 6255149, "North America");
+    private static final Map<String, Object> OC = continent("OC", 6255151, "Oceania");
+    private static final Map<String, Object> EU = continent("EU", 6255148, "Europe");
+
+    static final Map<String, Map<String, Object>> CITY_NETWORKS = ImmutableMap.<String, Map<String, Object>>builder()
+            .put("1.2.3.0/24", city(2147714, "Sydney", AU, OC, -33.8591, 151.2002, null, "Australia/Sydney", null, null))
+            .put("8.8.8.0/24", city(5375480, "Mountain View", US, NA, 37.386, -122.0838, 807, "America/Los_Angeles", "94035",
+                    ImmutableMap.of("geoname_id", 5332921, "iso_code", "CA", "names", names("California", null))))
+            .put("8.8.4.0/23", city(null, null, US, NA, 37.751, -97.822, null, null, null, null))
+            .put("81.2.69.0/24", city(2643743, "London", GB, EU, 51.5142, -0.0931, null, "Europe/London", null, null))
+            .put("81.2.70.0/23", city(2643743, "London", GB, EU, 51.5142, -0.0931, null, "Europe/London", null, null))
+            .put("89.160.0.0/16", city(2950159, "Berlin", DE, EU, 52.5167, 13.4, null, "Europe/Berlin", null, null))
+            .put("2.125.160.216/29", city(2655045, "Boxford", GB, EU, 51.75, -1.25, null, null, null, null))
+            .put("2001:4860::/32", city(null, null, US, NA, 37.751, -97.822, null, null, null, null))
+            .put("2a02:8070::/32", city(2950159, "Berlin", DE, EU, 52.5167, 13.4, null, null, null, null))
+            .build();
+
+    public static void main(String[] args) throws IOException {
+        final Path directory = Paths.get(args[0]);
+        Files.write(directory.resolve(CITY_DATABASE), write(CITY_NETWORKS, "GeoLite2-City", 28));
+        Files.write(directory.resolve(COUNTRY_DATABASE), write(countryNetworks(), "GeoLite2-Country", 24));
+    }
+
+    static Map<String, Map<String, Object>> countryNetworks() {
+        final Map<String, Map<String, Object>> networks = new LinkedHashMap<>();
+        CITY_NETWORKS.forEach((network, record) -> {
+            final Map<String, Object> countryRecord = new LinkedHashMap<>();
+            record.forEach((key, value) -> {
+                if (key.equals("continent") || key.equals("country") || key.equals("registered_country")) {
+                    countryRecord.put(key, value);
+                }
+            });
+            networks.put(network, countryRecord);
+        });
+        return networks;
+    }
+
+    private static Map<String, Object> names(String en, String de) {
+        return de == null ? ImmutableMap.of("en", en) : ImmutableMap.of("en", en, "de", de);
+    }
+
+    private static Map<String, Object> country(int geonameId, String isoCode, Map<String, Object> names) {
+        return ImmutableMap.of("geoname_id", geonameId, "iso_code", isoCode, "names", names);
+    }
+
+    private static Map<String, Object> continent(String code, int geonameId, String name) {
+        return ImmutableMap.of("code", code, "geoname_id", geonameId, "names", names(name, null));
+    }
+
+    private static Map<String, Object> city(Integer cityId, String cityName, Map<String, Object> country,
+                                            Map<String, Object> continent, double latitude, double longitude,
+                                            Integer metroCode, String timeZone, String postalCode,
+                                            Map<String, Object> subdivision) {
+        final Map<String, Object> record = new LinkedHashMap<>();
+        if (cityId != null) {
+            record.put("city", ImmutableMap.of("geoname_id", cityId, "names", names(cityName, null)));
+        }
+        record.put("continent", continent);
+        record.put("country", country);
+        final Map<String, Object> location = new LinkedHashMap<>();
+        location.put("accuracy_radius", new Uint16(1000));
+        location.put("latitude", latitude);
+        location.put("longitude", longitude);
+        if (metroCode != null) {
+            location.put("metro_code", new Uint16(metroCode));
+        }
+        if (timeZone != null) {
+            location.put("time_zone", timeZone);
+        }
+        record.put("location", location);
+        if (postalCode != null) {
+            record.put("postal", ImmutableMap.of("code", postalCode));
+        }
+        record.put("registered_country", country);
+        if (subdivision != null) {
+            record.put("subdivisions", ImmutableList.of(subdivision));
+        }
+        return record;
+    }
+
+    static byte[] write(Map<String, Map<String, Object>> networks, String databaseType, int recordSize) throws IOException {
+        final Encoder data = new Encoder();
+        // Real databases store map keys once and point to them
+        for (String key : new String[]{"geoname_id", "names", "iso_code", "latitude", "longitude", "location", "country",
+                "city", "continent", "registered_country", "accuracy_radius", "time_zone"}) {
+            data.writeSharedString(key);
+        }
+
+        final Node root = new Node();
+        for (Map.Entry<String, Map<String, Object>> network : networks.entrySet()) {
+            root.insert(network.getKey(), data.writeRecord(network.getValue()));
+        }
+
+        // Breadth-first numbering of the nodes
+        final List<Node> nodes = new ArrayList<>();
+        final Map<Node, Integer> nodeIds = new IdentityHashMap<>();
+        final Deque<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            final Node node = queue.poll();
+            nodeIds.put(node, nodes.size());
+            nodes.add(node);
+            for (Object child : node.children) {
+                if (child instanceof Node) {
+                    queue.add((Node) child);
+                }
+            }
+        }
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (Node node : nodes) {
+            final long left = recordValue(node.children[0], nodes.size(), nodeIds);
+            final long right = recordValue(node.children[1], nodes.size(), nodeIds);
+            switch (recordSize) {
+                case 24:
+                    writeBytes(output, left, 3);
+                    writeBytes(output, right, 3);
+                    break;
+                case 28:
+                    writeBytes(output, left & 0xFFFFFF, 3);
+                    output.write((int) (((left >>> 24) & 0x0F) << 4 | ((right >>> 24) & 0x0F)));
+                    writeBytes(output, right & 0xFFFFFF, 3);
+                    break;
+                default:
+                    writeBytes(output, left, 4);
+                    writeBytes(output, right, 4);
+            }
+        }
+        output.write(new byte[16]);
+        output.write(data.toByteArray());
+        output.write(METADATA_START_MARKER);
+
+        final Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("binary_format_major_version", new Uint16(2));
+        metadata.put("binary_format_minor_version", new Uint16(0));
+        metadata.put("build_epoch", BUILD_EPOCH);
+        metadata.put("database_type", databaseType);
+        metadata.put("description", ImmutableMap.of("en", "Synthetic test database"));
+        metadata.put("ip_version", new Uint16(6));
+        metadata.put("languages", ImmutableList.of("en"));
+        metadata.put("node_count", nodes.size());
+        metadata.put("record_size", new Uint16(recordSize));
+        output.write(new Encoder().encode(metadata, false));
+
+        return output.toByteArray();
+    }
+
+    private static long recordValue(Object child, int nodeCount, Map<Node, Integer> nodeIds) {
+        if (child == null) {
+            return nodeCount;
+        }
+        if (child instanceof Node) {
+            return nodeIds.get(child);
+        }
+        return nodeCount + 16 + (Integer) child;
+    }
+
+    private static void writeBytes(ByteArrayOutputStream output, long value, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            output.write((int) (value >>> (8 * i)));
+        }
+    }
+
+    private static class Node {
+        // Null for an empty record, a Node or the data section offset of a record
+        private final Object[] children = new Object[2];
+
+        void insert(String network, int dataOffset) {
+            final String[] parts = network.split("/");
+            final byte[] address = InetAddresses.forString(parts[0]).getAddress();
+            final int prefixLength = Integer.parseInt(parts[1]) + (address.length == 4 ? 96 : 0);
+            final byte[] bits = new byte[16];
+            System.arraycopy(address, 0, bits, 16 - address.length, address.length);
+
+            Node node = this;
+            for (int i = 0; i < prefixLength; i++) {
+                final int bit = (bits[i / 8] >>> (7 - i % 8)) & 1;
+                if (i == prefixLength - 1) {
+                    node.children[bit] = dataOffset;
+                } else {
+                    if (!(node.children[bit] instanceof Node)) {
+                        node.children[bit] = new Node();
+                    }
+                    node = (Node) node.children[bit];
+                }
+            }
+        }
+    }
+
+    private static class Uint16 {
+        private final int value;
+
+        Uint16(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Uint16 && ((Uint16) other).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+    }
+
+    private static class Encoder {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Map<String, Integer> sharedStrings = new HashMap<>();
+        private final Map<Map<?, ?>, Integer> sharedMaps = new HashMap<>();
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+
+        void writeSharedString(String value) throws IOException {
+            sharedStrings.put(value, buffer.size());
+            buffer.write(encode(value, false));
+        }
+
+        /**
+         * Writes a record and returns its offset. The maps of its values are written first, so records with the
+         * same values point to them.
+         */
+        int writeRecord(Map<String, Object> record) throws IOException {
+            for (Object value : record.values()) {
+                if (value instanceof Map && !sharedMaps.containsKey(value)) {
+                    final int offset = buffer.size();
+                    buffer.write(encode(value, false));
+                    sharedMaps.put((Map<?, ?>) value, offset);
+                }
+            }
+            final int offset = buffer.size();
+            buffer.write(encode(record, true));
+            return offset;
+        }
+
+        byte[] encode(Object value, boolean share) throws IOException {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            if (value instanceof Uint16) {
+                output.write(unsigned(5, BigInteger.valueOf(((Uint16) value).value)));
+            } else if (value instanceof Long) {
+                output.write(unsigned(9, BigInteger.valueOf((Long) value)));
+            } else if (value instanceof Integer) {
+                output.write(unsigned(6, BigInteger.valueOf((Integer) value)));
+            } else if (value instanceof Boolean) {
+                output.write(control(14, (Boolean) value ? 1 : 0));
+            } else if (value instanceof Double) {
+                output.write(control(3, 8));
+                writeBytes(output, Double.doubleToLongBits((Double) value), 8);
+            } else if (value instanceof String) {
+                final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                final Integer shared = share && bytes.length > 3 ? sharedStrings.get(value) : null;
+                if (shared != null) {
+                    output.write(pointer(shared));
+                } else {
+                    output.write(control(2, bytes.length));
+                    output.write(bytes);
+                }
+            } else if (value instanceof List) {
+                output.write(control(11, ((List<?>) value).size()));
+                for (Object element : (List<?>) value) {
+                    output.write(encode(element, true));
+                }
+            } else if (value instanceof Map) {
+                final Integer shared = share ? sharedMaps.get(value) : null;
+                if (shared != null) {
+                    output.write(pointer(shared));
+                } else {
+                    output.write(control(7, ((Map<?, ?>) value).size()));
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                        output.write(encode(entry.getKey(), true));
+                        output.write(encode(entry.getValue(), true));
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported value: " + value);
+            }
+            return output.toByteArray();
+        }
+
+        private static byte[] control(int type, int size) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int first = type <= 7 ? type << 5 : 0;
+            final byte[] tail;
+            if (size < 29) {
+                first |= size;
+                tail = new byte[0];
+            } else if (size < 285) {
+                first |= 29;
+                tail = new byte[]{(byte) (size - 29)};
+            } else if (size < 65821) {
+                first |= 30;
+                tail = new byte[]{(byte) ((size - 285) >>> 8), (byte) (size - 285)};
+            } else {
+                first |= 31;
+                final int rest = size - 65821;
+                tail = new byte[]{(byte) (rest >>> 16), (byte) (rest >>> 8), (byte) rest};
+            }
+            output.write(first);
+            if (type > 7) {
+                output.write(type - 7);
+            }
+            output.write(tail, 0, tail.length);
+            return output.toByteArray();
+        }
+
+        private static byte[] unsigned(int type, BigInteger value) throws IOException {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] bytes = value.toByteArray();
+            // Minimal big-endian representation without the sign byte, zero has no bytes at all
+            int start = 0;
+            while (start < bytes.length && bytes[start] == 0) {
+                start++;
+            }
+            output.write(control(type, bytes.length - start));
+            output.write(bytes, start, bytes.length - start);
+            return output.toByteArray();
+        }
+
+        private static byte[] pointer(int offset) {
+            if (offset < 2048) {
+                return new byte[]{(byte) (0x20 | (offset >>> 8)), (byte) offset};
+            }
+            if (offset < 526336) {
+                final int value = offset - 2048;
+                return new byte[]{(byte) (0x28 | (value >>> 16)), (byte) (value >>> 8), (byte) value};
+            }
+            if (offset < 134744064) {
+                final int value = offset - 526336;
+                return new byte[]{(byte) (0x30 | (value >>> 24)), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+            }
+            return new byte[]{0x38, (byte) (offset >>> 24), (byte) (offset >>> 16), (byte) (offset >>> 8), (byte) offset};
+        }
+    }
+}
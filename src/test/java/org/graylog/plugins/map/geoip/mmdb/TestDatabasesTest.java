@@ -0,0 +1,35 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.mmdb;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDatabasesTest {
+    @Test
+    public void testResourcesMatchGeneratedDatabases() throws Exception {
+        final byte[] city = Files.readAllBytes(Paths.get(getClass().getResource("/" + TestDatabases.CITY_DATABASE).toURI()));
+        final byte[] country = Files.readAllBytes(Paths.get(getClass().getResource("/" + TestDatabases.COUNTRY_DATABASE).toURI()));
+
+        assertThat(city).isEqualTo(TestDatabases.write(TestDatabases.CITY_NETWORKS, "GeoLite2-City", 28));
+        assertThat(country).isEqualTo(TestDatabases.write(TestDatabases.countryNetworks(), "GeoLite2-Country", 24));
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * This file is part of Graylog.
+ *
+ * Graylog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.map.geoip.processor;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.eventbus.EventBus;
+import org.graylog.plugins.map.config.GeoIpResolverConfig;
+import org.graylog.plugins.map.geoip.GeoIpDatabaseRegistry;
+import org.graylog.plugins.map.geoip.GeoIpResolverStatistics;
+import org.graylog2.cluster.ClusterConfigChangedEvent;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.MessageCollection;
+import org.graylog2.plugin.Messages;
+import org.graylog2.plugin.Tools;
+import org.graylog2.plugin.cluster.ClusterConfigService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+public class GeoIpProcessorTest {
+    static final String GEO_LITE2_CITY_MMDB = "/GeoLite2-City-Test.mmdb";
+    private static final String[] ADDRESSES = {"1.2.3.4", "8.8.8.8", "81.2.69.160", "89.160.20.112", "192.168.0.1"};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MetricRegistry metricRegistry;
+    private ScheduledExecutorService scheduler;
+    private GeoIpResolverConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        metricRegistry = new MetricRegistry();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        // The database gets opened in the background, the first batch waits for it
+        config = GeoIpResolverConfig.defaultConfig().toBuilder()
+                .enabled(true)
+                .dbPath(getClass().getResource(GEO_LITE2_CITY_MMDB).toURI().getPath())
+                .readyTimeout(30L)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private GeoIpProcessor createProcessor(GeoIpResolverConfig config) {
+        return createProcessor(config, scheduler);
+    }
+
+    private GeoIpProcessor createProcessor(GeoIpResolverConfig config, ScheduledExecutorService scheduler) {
+        return createProcessor(config, scheduler, new GeoIpDatabaseRegistry(metricRegistry));
+    }
+
+    private GeoIpProcessor createProcessor(GeoIpResolverConfig config, ScheduledExecutorService scheduler,
+                                           GeoIpDatabaseRegistry databaseRegistry) {
+        final ClusterConfigService clusterConfigService = mock(ClusterConfigService.class);
+        when(clusterConfigService.getOrDefault(eq(GeoIpResolverConfig.class), any(GeoIpResolverConfig.class))).thenReturn(config);
+
+        return new GeoIpProcessor(clusterConfigService, scheduler, new EventBus(), metricRegistry,
+                databaseRegistry, new GeoIpResolverStatistics(), temporaryFolder.getRoot().toPath());
+    }
+
+    @Test
+    public void processPassesMessagesThroughUntilDatabaseIsReady() {
+        // The scheduler never opens the database
+        final GeoIpProcessor processor = createProcessor(config.toBuilder().readyTimeout(0L).build(),
+                mock(ScheduledExecutorService.class));
+        final List<Message> messages = createMessages(5);
+
+        final Messages result = processor.process(new MessageCollection(messages));
+
+        assertThat(result).containsExactlyElementsOf(messages);
+        assertThat(messages.get(0).hasField("ip_geolocation")).isFalse();
+        assertThat(metricRegistry.meter(name(GeoIpProcessor.class, "notReadyMessages")).getCount()).isEqualTo(5);
+        assertThat(metricRegistry.getGauges().get(name(GeoIpProcessor.class, "ready")).getValue()).isEqualTo(false);
+    }
+
+    @Test
+    public void processWaitsForDatabaseWithinReadyTimeout() {
+        final GeoIpProcessor processor = createProcessor(config);
+        final List<Message> messages = createMessages(5);
+
+        processor.process(new MessageCollection(messages));
+
+        assertThat(messages.get(0).getField("ip_city_name")).isEqualTo("Sydney");
+        assertThat(metricRegistry.meter(name(GeoIpProcessor.class, "notReadyMessages")).getCount()).isEqualTo(0);
+        assertThat(metricRegistry.getGauges().get(name(GeoIpProcessor.class, "ready")).getValue()).isEqualTo(true);
+    }
+
+    @Test
+    public void failedReloadKeepsPreviousEngine() throws Exception {
+        final GeoIpDatabaseRegistry databaseRegistry = spy(new GeoIpDatabaseRegistry(metricRegistry));
+        final GeoIpProcessor processor = createProcessor(config, scheduler, databaseRegistry);
+        processor.process(new MessageCollection(createMessages(1)));
+
+        doThrow(new IllegalStateException("Corrupt database")).when(databaseRegistry).open(any(Path.class));
+        processor.updateConfig(ClusterConfigChangedEvent.create(Tools.nowUTC(), "node", GeoIpResolverConfig.class.getCanonicalName()));
+        // The reload runs on the single scheduler thread, wait for it to finish
+        scheduler.submit(() -> {}).get();
+
+        final List<Message> messages = createMessages(5);
+        processor.process(new MessageCollection(messages));
+
+        assertThat(messages.get(0).getField("ip_city_name")).isEqualTo("Sydney");
+        assertThat(metricRegistry.meter(name(GeoIpProcessor.class, "engineLoadFailures")).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.getGauges().get(name(GeoIpProcessor.class, "ready")).getValue()).isEqualTo(true);
+    }
+
+    private List<Message> createMessages(int count) {
+        final List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Message message = new Message("message " + i, "source", Tools.nowUTC());
+            message.addField("ip", ADDRESSES[i % ADDRESSES.length]);
+            messages.add(message);
+        }
+
+        return messages;
+    }
+
+    @Test
+    public void processEnrichesLargeBatchesInParallel() {
+        final GeoIpProcessor processor = createProcessor(config.toBuilder().parallelBatchThreshold(10).parallelism(4).build());
+        final List<Message> messages = createMessages(1000);
+
+        final Messages result = processor.process(new MessageCollection(messages));
+
+        assertThat(result).containsExactlyElementsOf(messages);
+        for (int i = 0; i < messages.size(); i++) {
+            final Message message = messages.get(i);
+            assertThat(message.getMessage()).isEqualTo("message " + i);
+            if ("192.168.0.1".equals(message.getField("ip"))) {
+                assertThat(message.hasField("ip_geolocation")).isFalse();
+            } else {
+                assertThat(message.hasField("ip_geolocation")).isTrue();
+                assertThat(message.hasField("ip_country_code")).isTrue();
+            }
+        }
+        assertThat(metricRegistry.timer(name(GeoIpProcessor.class, "parallelProcessTime")).getCount()).isEqualTo(1);
+        assertThat(metricRegistry.timer(name(GeoIpProcessor.class, "serialProcessTime")).getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void processEnrichesSmallBatchesSerially() {
+        final GeoIpProcessor processor = createProcessor(config.toBuilder().parallelBatchThreshold(10).parallelism(4).build());
+        final List<Message> messages = createMessages(5);
+
+        processor.process(new MessageCollection(messages));
+
+        assertThat(messages.get(0).getField("ip_city_name")).isEqualTo("Sydney");
+        assertThat(metricRegistry.timer(name(GeoIpProcessor.class, "parallelProcessTime")).getCount()).isEqualTo(0);
+        assertThat(metricRegistry.timer(name(GeoIpProcessor.class, "serialProcessTime")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void processEnrichesAllBatchesSeriallyWithoutThreshold() {
+        final GeoIpProcessor processor = createProcessor(config);
+
+        processor.process(new MessageCollection(createMessages(1000)));
+
+        assertThat(metricRegistry.timer(name(GeoIpProcessor.class, "parallelProcessTime")).getCount()).isEqualTo(0);
+        assertThat(metricRegistry.timer(name(GeoIpProcessor.class, "serialProcessTime")).getCount()).isEqualTo(1);
+    }
+}